@@ -0,0 +1,567 @@
+package com.segc;
+
+import com.segc.exception.RequestFailedException;
+import com.segc.exception.RetryLaterException;
+import com.segc.protocol.Protocol;
+import com.segc.protocol.ProtocolReader;
+import com.segc.protocol.ProtocolWriter;
+import com.segc.services.CipherService;
+import com.segc.services.Envelope;
+import com.segc.transaction.SignedTransaction;
+import com.segc.transaction.Transaction.Type;
+import com.segc.transaction.TransactionPage;
+import com.segc.transaction.WineTransaction;
+
+import javax.swing.ImageIcon;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * An asynchronous Tintolmarket client, in which each request returns a future of its response.
+ * <p>
+ * If {@link Protocol#PIPELINING} was negotiated, up to {@code pipelineDepth} requests are sent without waiting for
+ * the previous responses, which are matched to their requests by correlation id. Otherwise, each request is only sent
+ * once the previous one has been answered. A future fails with a {@link RequestFailedException} if the server
+ * answers with an error, or with a {@link RetryLaterException} if the server did not admit the request.
+ * <p>
+ * If {@link Protocol#PUSH} was negotiated, the client may {@link #subscribe(Consumer)} to the messages sent to the
+ * user, which the server then pushes as they are sent.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class AsyncTintolmarket implements Closeable {
+    private static final RequestWriter NO_ARGUMENTS = out -> {
+    };
+
+    private final ProtocolReader inStream;
+    private final ProtocolWriter outStream;
+    private final CipherService cipherService;
+    private final String user;
+    private final boolean isPipelined;
+    private final boolean isPushEnabled;
+    private final Semaphore inFlight;
+    private final Map<Integer, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    private final Thread responseThread;
+    private int nextCorrelationId = 1; // guarded by outStream
+    private volatile long lastRequestTime = System.nanoTime();
+    private volatile boolean isClosed = false;
+    private volatile boolean isDisconnected = false;
+    private ScheduledExecutorService keepalive;
+    private ExecutorService notifications;
+    private volatile Consumer<Message> messageListener;
+
+    /**
+     * Creates an {@link AsyncTintolmarket} for an authenticated connection.
+     *
+     * @param inStream      the reader of the connection.
+     * @param outStream     the writer of the connection.
+     * @param cipherService the service used to sign transactions and encrypt or decrypt messages.
+     * @param user          the authenticated user.
+     * @param features      the negotiated protocol features.
+     * @param pipelineDepth the maximum number of requests in flight if pipelining was negotiated.
+     */
+    public AsyncTintolmarket(ProtocolReader inStream,
+                             ProtocolWriter outStream,
+                             CipherService cipherService,
+                             String user,
+                             int features,
+                             int pipelineDepth) {
+        this.inStream = inStream;
+        this.outStream = outStream;
+        this.cipherService = cipherService;
+        this.user = user;
+        this.isPipelined = (features & Protocol.PIPELINING) != 0;
+        this.isPushEnabled = (features & Protocol.PUSH) != 0;
+        this.inFlight = new Semaphore(isPipelined ? Math.max(pipelineDepth, 1) : 1);
+        this.responseThread = new Thread(this::readResponses, "responses-" + user);
+        this.responseThread.setDaemon(true);
+        this.responseThread.start();
+    }
+
+    public boolean isPipelined() {
+        return isPipelined;
+    }
+
+    public boolean isPushEnabled() {
+        return isPushEnabled;
+    }
+
+    public CompletableFuture<String> add(String wineName, ImageIcon label) {
+        return send(Opcode.ADD, out -> {
+            out.writeString(wineName);
+            out.writeObject(label);
+        }, ProtocolReader::readString);
+    }
+
+    public CompletableFuture<String> sell(String wineName, double value, int quantity) {
+        WineTransaction wt = new WineTransaction(wineName, user, quantity, value, Type.SELL);
+        SignedTransaction st = new SignedTransaction(cipherService.sign(wt));
+        return send(Opcode.SELL, out -> out.writeSignedTransaction(st), ProtocolReader::readString);
+    }
+
+    public CompletableFuture<String> view(String wineName) {
+        return send(Opcode.VIEW, out -> out.writeString(wineName), ProtocolReader::readString);
+    }
+
+    /**
+     * Views a wine without its label, which may then be fetched with {@link #getLabel(String)}.
+     *
+     * @param wineName the name of the wine.
+     * @return a future of the description of the wine and the digest of its label.
+     */
+    public CompletableFuture<WineView> viewWine(String wineName) {
+        return send(Opcode.VIEW_WINE, out -> out.writeString(wineName),
+                in -> new WineView(in.readString(), in.readString()));
+    }
+
+    /**
+     * Fetches a wine label.
+     *
+     * @param labelDigest the digest of the label, as returned by {@link #viewWine(String)}.
+     * @return a future of the label, a PNG image.
+     */
+    public CompletableFuture<byte[]> getLabel(String labelDigest) {
+        return send(Opcode.GET_LABEL, out -> out.writeString(labelDigest), ProtocolReader::readBytes);
+    }
+
+    /**
+     * Buys wine from a seller. The quote sent by the server is signed and returned as soon as it arrives, using the
+     * same correlation id, so other requests may be pipelined behind the purchase.
+     */
+    public CompletableFuture<String> buy(String wineName, String sellerId, int quantity) {
+        return send(Opcode.BUY, out -> {
+            out.writeString(wineName);
+            out.writeString(sellerId);
+            out.writeInt(quantity);
+        }, new ResponseReader<>() {
+            private boolean isQuoted = false;
+
+            @Override
+            public String read(ProtocolReader in) throws IOException {
+                if (isQuoted) {
+                    return in.readString();
+                }
+                WineTransaction wt = in.readWineTransaction();
+                // the server waits for the signed quote, so a quote that is not signed ends the session
+                double unitPrice = wt.getUnitPrice();
+                if (wt.getType() != Type.BUY || !sellerId.equals(wt.getAuthorId()) || !wineName.equals(wt.getItemId())
+                    || quantity != wt.getUnitCount() || !(unitPrice > 0) || Double.isInfinite(unitPrice)) {
+                    throw new ProtocolException("The quote for '" + wineName + "' does not match the purchase.");
+                }
+                SignedTransaction st = new SignedTransaction(cipherService.sign(wt));
+                isQuoted = true;
+                write(in.getCorrelationId(), out -> out.writeSignedTransaction(st));
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<String> wallet() {
+        return send(Opcode.WALLET, NO_ARGUMENTS, ProtocolReader::readString);
+    }
+
+    public CompletableFuture<String> classify(String wineName, int stars) {
+        return send(Opcode.CLASSIFY, out -> {
+            out.writeString(wineName);
+            out.writeInt(stars);
+        }, ProtocolReader::readString);
+    }
+
+    public CompletableFuture<String> talk(String recipientId, String message) {
+        Envelope envelope;
+        try {
+            envelope = cipherService.seal(message.getBytes(StandardCharsets.UTF_8), recipientId);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(new RequestFailedException(e.getMessage()));
+        }
+        return send(Opcode.TALK, out -> {
+            out.writeString(recipientId);
+            out.writeBytes(envelope.getContent());
+            out.writeBytes(envelope.getHeader());
+        }, ProtocolReader::readString);
+    }
+
+    /**
+     * Reads the oldest message sent to the user.
+     *
+     * @return a future of the message, with its content already decrypted.
+     */
+    public CompletableFuture<Message> read() {
+        return send(Opcode.READ, NO_ARGUMENTS, in -> {
+            Message message = in.readMessage();
+            return decrypt(message);
+        });
+    }
+
+    /**
+     * Reads a page of the oldest messages sent to the user, which the server removes with a single write.
+     *
+     * @param maxCount the maximum number of messages to read, which the server may lower.
+     * @param maxBytes the maximum total size of the messages' contents, although the first message is always read.
+     * @return a future of the page, which is empty if there are no messages to read.
+     */
+    public CompletableFuture<MessagePage> readPage(int maxCount, int maxBytes) {
+        return send(Opcode.READ_MESSAGES, out -> {
+            out.writeInt(maxCount);
+            out.writeInt(maxBytes);
+        }, in -> {
+            int remaining = in.readInt();
+            int count = in.readInt();
+            List<Message> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Message message = in.readMessage();
+                messages.add(decrypt(message));
+            }
+            return new MessagePage(messages, remaining);
+        });
+    }
+
+    /**
+     * Reads up to {@code count} messages with as many {@link #readPage(int, int)} requests as needed.
+     *
+     * @param count    the maximum number of messages to read.
+     * @param pageSize the maximum number of messages read per request.
+     * @param maxBytes the maximum total size of the messages' contents per request.
+     * @return a future of the messages read, oldest first.
+     */
+    public CompletableFuture<List<Message>> readMessages(int count, int pageSize, int maxBytes) {
+        return readMessages(new ArrayList<>(), count, pageSize, maxBytes);
+    }
+
+    private CompletableFuture<List<Message>> readMessages(List<Message> read, int count, int pageSize, int maxBytes) {
+        // the next page is requested off the response thread, which must not wait for a free slot in the window
+        return readPage(Math.min(count - read.size(), pageSize), maxBytes).thenComposeAsync(page -> {
+            read.addAll(page.getMessages());
+            if (read.size() >= count || page.getRemaining() == 0 || page.getMessages().isEmpty()) {
+                return CompletableFuture.completedFuture(read);
+            }
+            return readMessages(read, count, pageSize, maxBytes);
+        });
+    }
+
+    /**
+     * Asks the server to push the messages sent to the user from now on. Pushed messages are decrypted and passed to
+     * the listener on a separate thread, in the order they arrive, and are then acknowledged, so they are no longer
+     * kept for {@link #read()}. A message that is not pushed, as the client was not reading fast enough, is kept.
+     *
+     * @param listener the listener of pushed messages.
+     * @return a future of the server's confirmation.
+     */
+    public CompletableFuture<String> subscribe(Consumer<Message> listener) {
+        if (!isPushEnabled) {
+            return CompletableFuture.failedFuture(
+                    new RequestFailedException("Push notifications were not negotiated."));
+        }
+        synchronized (this) {
+            if (notifications == null) {
+                notifications = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "notifications-" + user);
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+        messageListener = listener;
+        return send(Opcode.SUBSCRIBE, NO_ARGUMENTS, ProtocolReader::readString);
+    }
+
+    public CompletableFuture<List<SignedTransaction>> list() {
+        return send(Opcode.LIST, NO_ARGUMENTS, ProtocolReader::readTransactions);
+    }
+
+    /**
+     * Lists a page of the transactions in the blockchain.
+     *
+     * @param resumeToken the token of a previous page, or an empty string to start from the first transaction.
+     * @param maxCount    the maximum number of transactions to list, which the server may lower.
+     * @return a future of the page.
+     */
+    public CompletableFuture<TransactionPage> listPage(String resumeToken, int maxCount) {
+        return send(Opcode.LIST_FROM, out -> {
+            out.writeString(resumeToken);
+            out.writeInt(maxCount);
+        }, in -> {
+            List<SignedTransaction> transactions = in.readTransactions();
+            return new TransactionPage(transactions, in.readString(), in.readInt());
+        });
+    }
+
+    /**
+     * Lists every transaction after the given resume token with as many {@link #listPage(String, int)} requests as
+     * needed.
+     *
+     * @param resumeToken the token of a previous page, or an empty string to start from the first transaction.
+     * @param pageSize    the maximum number of transactions listed per request.
+     * @return a future of a page with all the transactions listed and the token to resume from after them.
+     */
+    public CompletableFuture<TransactionPage> listSince(String resumeToken, int pageSize) {
+        return listSince(new ArrayList<>(), resumeToken, pageSize);
+    }
+
+    private CompletableFuture<TransactionPage> listSince(List<SignedTransaction> listed,
+                                                         String resumeToken,
+                                                         int pageSize) {
+        return listPage(resumeToken, pageSize).thenComposeAsync(page -> {
+            listed.addAll(page.getTransactions());
+            if (page.getRemaining() == 0 || page.getTransactions().isEmpty()) {
+                return CompletableFuture.completedFuture(new TransactionPage(listed, page.getResumeToken(), 0));
+            }
+            return listSince(listed, page.getResumeToken(), pageSize);
+        });
+    }
+
+    /**
+     * Sends a keepalive request.
+     *
+     * @return a future of the round-trip time of the request.
+     */
+    public CompletableFuture<Duration> ping() {
+        long start = System.nanoTime();
+        return send(Opcode.PING, NO_ARGUMENTS, in -> Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    /**
+     * Sends a {@link #ping()} whenever no request has been sent for the given interval, so the server does not close
+     * the session while the user is idle.
+     *
+     * @param interval the keepalive interval.
+     * @param unit     the time unit of the interval.
+     */
+    public synchronized void startKeepalive(long interval, TimeUnit unit) {
+        if (keepalive != null) {
+            return;
+        }
+        keepalive = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "keepalive-" + user);
+            t.setDaemon(true);
+            return t;
+        });
+        long intervalNanos = unit.toNanos(interval);
+        keepalive.scheduleWithFixedDelay(() -> {
+            if (!isClosed && System.nanoTime() - lastRequestTime >= intervalNanos) {
+                ping();
+            }
+        }, interval, interval, unit);
+    }
+
+    /**
+     * Ends the session once every pending request has been answered.
+     */
+    @Override
+    public void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        synchronized (this) {
+            if (keepalive != null) {
+                keepalive.shutdownNow();
+            }
+        }
+        try {
+            if (!isDisconnected) {
+                write(0, out -> out.writeOpcode(Opcode.EXIT)); // handled by the server after every pending request
+                responseThread.join();
+            }
+            synchronized (this) {
+                if (notifications != null) {
+                    notifications.shutdown();
+                    notifications.awaitTermination(1, TimeUnit.SECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private <T> CompletableFuture<T> send(Opcode opcode, RequestWriter body, ResponseReader<T> reader) {
+        if (isClosed) {
+            throw new IllegalStateException("Session is closed.");
+        }
+        inFlight.acquireUninterruptibly();
+        if (isDisconnected) {
+            return CompletableFuture.failedFuture(new EOFException("Not connected."));
+        }
+        lastRequestTime = System.nanoTime();
+        PendingRequest request = new PendingRequest(reader);
+        try {
+            synchronized (outStream) {
+                int correlationId = isPipelined ? nextCorrelationId++ : 0;
+                pendingRequests.put(correlationId, request);
+                outStream.setCorrelationId(correlationId);
+                outStream.writeOpcode(opcode);
+                body.write(outStream);
+                outStream.send();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (pendingRequests.values().remove(request)) {
+                inFlight.release();
+            }
+            request.future.completeExceptionally(e);
+        }
+        @SuppressWarnings("unchecked")
+        CompletableFuture<T> future = (CompletableFuture<T>) request.future;
+        return future;
+    }
+
+    private void write(int correlationId, RequestWriter body) throws IOException {
+        synchronized (outStream) {
+            outStream.setCorrelationId(correlationId);
+            body.write(outStream);
+            outStream.send();
+        }
+    }
+
+    /**
+     * Reads responses until the connection is closed or a response cannot be handled, and then fails every pending
+     * request.
+     */
+    private void readResponses() {
+        Throwable failure;
+        try {
+            while (true) {
+                inStream.receive();
+                Opcode status = inStream.readOpcode(); // the serialization reader only blocks here
+                if (isPushEnabled && status == Opcode.TALK && inStream.getCorrelationId() == 0) {
+                    long messageId = inStream.readLong();
+                    onPush(messageId, inStream.readMessage());
+                    continue;
+                }
+                int correlationId = inStream.getCorrelationId();
+                PendingRequest request = pendingRequests.get(correlationId);
+                if (request == null) {
+                    throw new ProtocolException("Unexpected response: " + correlationId);
+                }
+                boolean isComplete;
+                try {
+                    isComplete = request.onResponse(status, inStream);
+                } catch (RuntimeException e) {
+                    // the rest of the response is left unread, and a purchase waits for its signed transaction
+                    request.future.completeExceptionally(e);
+                    throw new ProtocolException("Could not handle the response to request " + correlationId + ": "
+                                                + e.getMessage());
+                }
+                if (isComplete) {
+                    pendingRequests.remove(correlationId);
+                    inFlight.release();
+                }
+            }
+        } catch (EOFException e) {
+            failure = isClosed ? null : new EOFException("Connection closed by the server.");
+        } catch (Throwable e) {
+            failure = e; // pending requests must fail even if the thread dies of an error
+        }
+        Throwable cause = failure != null ? failure : new EOFException("Session closed.");
+        isDisconnected = true;
+        pendingRequests.values().forEach(request -> request.future.completeExceptionally(cause));
+        pendingRequests.clear();
+        inFlight.release(Integer.MAX_VALUE / 2); // unblock senders, which now fail immediately
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            System.err.println(failure.getMessage());
+        }
+    }
+
+    /**
+     * Passes a pushed message to the listener, without blocking the thread that reads responses, and then acknowledges
+     * it, so the server no longer keeps it for {@link #read()}.
+     */
+    private void onPush(long messageId, Message message) {
+        Consumer<Message> listener = messageListener;
+        if (listener == null) {
+            return;
+        }
+        notifications.execute(() -> {
+            try {
+                listener.accept(decrypt(message));
+            } catch (RuntimeException e) {
+                // left unacknowledged, so the message can still be read
+                System.err.println("Could not deliver pushed message " + messageId + ": " + e);
+                return;
+            }
+            if (!isClosed) {
+                send(Opcode.ACK_MESSAGE, out -> out.writeLong(messageId), in -> messageId);
+            }
+        });
+    }
+
+    /**
+     * Decrypts the content of a message, which is in an envelope unless it was stored before envelopes were used.
+     */
+    private Message decrypt(Message message) {
+        if (message.getHeader() == null) {
+            return new Message(message.getAuthor(), cipherService.decrypt(message.getContent()));
+        }
+        try {
+            return new Message(message.getAuthor(), cipherService.open(
+                    new Envelope(message.getHeader(), message.getContent())));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface RequestWriter {
+        void write(ProtocolWriter out) throws IOException;
+    }
+
+    /**
+     * Reads the body of a successful response, or returns {@code null} if the request expects another response.
+     */
+    @FunctionalInterface
+    private interface ResponseReader<T> {
+        T read(ProtocolReader in) throws IOException;
+    }
+
+    private static class PendingRequest {
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+        final ResponseReader<?> reader;
+
+        PendingRequest(ResponseReader<?> reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * Handles a response to this request.
+         *
+         * @return {@code true} if the request is complete, {@code false} if another response is expected.
+         */
+        boolean onResponse(Opcode status, ProtocolReader in) throws IOException {
+            if (status == Opcode.ERROR) {
+                future.completeExceptionally(new RequestFailedException(in.readString()));
+                return true;
+            }
+            if (status == Opcode.RETRY) {
+                int retryAfterMillis = in.readInt();
+                future.completeExceptionally(new RetryLaterException(in.readString(), retryAfterMillis));
+                return true;
+            }
+            Object response = reader.read(in);
+            if (response == null) {
+                return false;
+            }
+            future.complete(response);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.segc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.regex.Pattern;
+
+/**
+ * A local cache of wine labels, keyed by the digest the server stores them under.
+ * <p>
+ * A label is only fetched from the server the first time it is needed, and is checked against its digest before it
+ * is cached.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class LabelCache {
+    private static final Pattern DIGEST_PATTERN = Pattern.compile("[0-9A-F]+");
+    private final Path cacheDir;
+    private final String digestAlgorithm;
+
+    public LabelCache(String cacheDir, String digestAlgorithm) {
+        this.cacheDir = Path.of(cacheDir);
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+    /**
+     * Returns the cached file of a label, fetching the label from the server if it is not cached yet.
+     *
+     * @param client      the client to fetch the label with.
+     * @param labelDigest the digest of the label.
+     * @return a future of the path of the label, a PNG image.
+     */
+    public CompletableFuture<Path> get(AsyncTintolmarket client, String labelDigest) {
+        if (!DIGEST_PATTERN.matcher(labelDigest).matches()) {
+            return CompletableFuture.failedFuture(new IOException("Invalid label digest: " + labelDigest));
+        }
+        Path path = cacheDir.resolve(labelDigest + ".png");
+        if (Files.exists(path)) {
+            return CompletableFuture.completedFuture(path);
+        }
+        return client.getLabel(labelDigest).thenApply(label -> {
+            try {
+                byte[] digest = MessageDigest.getInstance(digestAlgorithm).digest(label);
+                if (!HexFormat.of().withUpperCase().formatHex(digest).equals(labelDigest)) {
+                    throw new IOException("The label received does not match its digest.");
+                }
+                Files.createDirectories(cacheDir);
+                Path tempPath = Files.createTempFile(cacheDir, labelDigest, ".part");
+                Files.write(tempPath, label);
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return path;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+}
@@ -0,0 +1,34 @@
+package com.segc;
+
+import java.util.List;
+
+/**
+ * A page of the messages read from the user's mailbox, with the number of messages left to read.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class MessagePage {
+    private final List<Message> messages;
+    private final int remaining;
+
+    public MessagePage(List<Message> messages, int remaining) {
+        this.messages = messages;
+        this.remaining = remaining;
+    }
+
+    /**
+     * @return the messages of this page, oldest first, with their content already decrypted.
+     */
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return the number of messages left in the mailbox after this page was read.
+     */
+    public int getRemaining() {
+        return remaining;
+    }
+}
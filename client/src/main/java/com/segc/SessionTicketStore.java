@@ -0,0 +1,63 @@
+package com.segc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A local store of the session tickets issued to each user by each server, which let a client skip the nonce
+ * challenge when it reconnects.
+ * <p>
+ * A ticket lets anyone holding it authenticate as its user until it expires, so tickets are stored in files only
+ * readable by their owner.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class SessionTicketStore {
+    private final Path ticketDir;
+
+    public SessionTicketStore(String ticketDir) {
+        this.ticketDir = Path.of(ticketDir);
+    }
+
+    /**
+     * Returns the ticket stored for a user of a server.
+     *
+     * @return the ticket, or {@code null} if there is none.
+     */
+    public byte[] get(String host, int port, String user) {
+        try {
+            return Files.readAllBytes(getPath(host, port, user));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.err.println("Could not read the session ticket: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores the ticket of a user of a server, replacing the previous ticket.
+     */
+    public void put(String host, int port, String user, byte[] ticket) {
+        try {
+            Files.createDirectories(ticketDir);
+            Path tempPath = Files.createTempFile(ticketDir, user, ".part"); // only readable by its owner
+            Files.write(tempPath, ticket);
+            Files.move(tempPath,
+                    getPath(host, port, user),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not store the session ticket: " + e.getMessage());
+        }
+    }
+
+    private Path getPath(String host, int port, String user) {
+        return ticketDir.resolve(String.format("%s@%s_%d.ticket", user, host, port));
+    }
+}
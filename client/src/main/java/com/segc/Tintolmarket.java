@@ -3,21 +3,28 @@
  */
 package com.segc;
 
+import com.segc.exception.RequestFailedException;
+import com.segc.protocol.CompressionStats;
+import com.segc.protocol.Protocol;
+import com.segc.protocol.ProtocolReader;
+import com.segc.protocol.ProtocolWriter;
 import com.segc.services.CipherService;
 import com.segc.transaction.SignedTransaction;
-import com.segc.transaction.WineTransaction;
-import com.segc.transaction.Transaction.Type;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.security.SignedObject;
 
 import javax.net.SocketFactory;
@@ -63,8 +70,8 @@ public class Tintolmarket {
             "- wallet%n" +
             "- classify <wine> <stars>%n" +
             "- talk <user> <message>%n" +
-            "- list%n" +
-            "- read%n" +
+            "- list [new]%n" +
+            "- read [<count>|all]%n" +
             "- quit%n");
 
     private static String user;
@@ -98,115 +105,160 @@ public class Tintolmarket {
         System.setProperty("javax.net.ssl.trustStorePassword", config.getValue("trustStorePassword"));
         System.setProperty("javax.net.ssl.trustStoreType", config.getValue("trustStoreType"));
 
-        String signatureAlgorithm = config.getValue("signatureAlgorithm");
-        CipherService cipherService = new CipherService(user, signatureAlgorithm);
+        CipherService cipherService = CipherService.fromConfig(user, config);
 
         SocketFactory sf = SSLSocketFactory.getDefault();
         try (SSLSocket socket = (SSLSocket) sf.createSocket(host, port);
-             ObjectInputStream inStream = new ObjectInputStream(socket.getInputStream());
-             ObjectOutputStream outStream = new ObjectOutputStream(socket.getOutputStream())) {
+             ObjectInputStream handshakeIn = Protocol.newObjectInputStream(socket.getInputStream(), config);
+             ObjectOutputStream handshakeOut = new ObjectOutputStream(socket.getOutputStream())) {
 
             Scanner sc = new Scanner(System.in);
-            outStream.writeObject(user);
-
-            long nonce = (Long) inStream.readObject();
-            boolean isRegistered = (Boolean) inStream.readObject();
+            int offeredFeatures = Protocol.getFeatures(config);
+            SessionTicketStore ticketStore = new SessionTicketStore(config.getValue("sessionTicketDir"));
+            byte[] ticket = (offeredFeatures & Protocol.SESSION_TICKETS) != 0 ? ticketStore.get(host, port, user)
+                                                                               : null;
+            handshakeOut.writeObject(Protocol.HELLO);
+            handshakeOut.writeObject(Protocol.VERSION);
+            handshakeOut.writeObject(user);
+            handshakeOut.writeObject(ticket != null ? offeredFeatures | Protocol.RESUMPTION : offeredFeatures);
+            if (ticket != null) {
+                handshakeOut.writeObject(ticket);
+            }
+            handshakeOut.flush();
+
+            Long nonce = (Long) handshakeIn.readObject(); // no nonce if the ticket was accepted
+            boolean isRegistered = (Boolean) handshakeIn.readObject();
+            int version = (Integer) handshakeIn.readObject();
+            int features = (Integer) handshakeIn.readObject();
+            if (version > Protocol.VERSION) {
+                System.out.println("Unsupported protocol version: " + version);
+                System.exit(1);
+            }
 
-            SignedObject signedNonce = cipherService.sign(nonce);
-            outStream.writeObject(signedNonce);
-            if (!isRegistered) {
-                outStream.writeObject(cipherService.getCertificate());
+            if (nonce != null) {
+                SignedObject signedNonce = cipherService.sign(nonce);
+                handshakeOut.writeObject(signedNonce);
+                if (!isRegistered) {
+                    handshakeOut.writeObject(cipherService.getCertificate());
+                }
+                handshakeOut.flush();
             }
 
-            boolean isAuthenticated = (Boolean) inStream.readObject();
+            boolean isAuthenticated = (Boolean) handshakeIn.readObject();
             if (!isAuthenticated) {
                 System.out.println("Authentication failed.");
                 System.exit(1);
             }
+            if ((features & Protocol.SESSION_TICKETS) != 0) {
+                ticketStore.put(host, port, user, (byte[]) handshakeIn.readObject());
+            }
+            CompressionStats compressionStats = new CompressionStats();
+            ProtocolWriter outStream = Protocol.newWriter(features, handshakeOut, socket.getOutputStream(), config,
+                    compressionStats);
+            ProtocolReader inStream = Protocol.newReader(features, handshakeIn, socket.getInputStream(), config,
+                    compressionStats);
+            AsyncTintolmarket client = new AsyncTintolmarket(inStream, outStream, cipherService, user, features,
+                    config.getInt("pipelineDepth"));
+            if (config.getInt("keepaliveInterval") > 0) {
+                client.startKeepalive(config.getInt("keepaliveInterval"), TimeUnit.SECONDS);
+            }
 
             System.out.printf("Authenticated.%n%s%n", COMMANDS);
+            if (client.isPushEnabled()) {
+                client.subscribe(message -> System.out.println(format(message))).exceptionally(e -> {
+                    System.err.println("Could not subscribe to new messages: " + e.getMessage());
+                    return null;
+                });
+            }
 
-            boolean isExiting = false;
+            // responses are printed in the order of their commands, as soon as they arrive
+            LabelCache labelCache = new LabelCache(config.getValue("labelCacheDir"), config.getValue("digestAlgorithm"));
+            AtomicReference<String> lastListToken = new AtomicReference<>(""); // the end of the last list
+            CompletableFuture<Void> printed = CompletableFuture.completedFuture(null);
             while (sc.hasNextLine()) {
                 String command = sc.nextLine();
                 String[] c = command.split(" ");
                 Opcode opcode = opcodes.getOrDefault(c[0].toLowerCase(), Opcode.INVALID);
                 if (opcode == Opcode.INVALID) {
-                    System.out.println("Unexpected command: " + c[0]);
+                    printed = print(printed, CompletableFuture.completedFuture("Unexpected command: " + c[0]));
                     continue;
                 }
+                if (opcode == Opcode.EXIT) {
+                    break;
+                }
 
-                Opcode status = Opcode.OK;
+                CompletableFuture<String> response;
+                boolean isChained = false; // whether the command may send a request once the previous one is answered
                 switch (opcode) {
                     case ADD: {
-                        status = add(outStream, c, sc);
+                        response = add(client, c, sc);
                         break;
                     }
                     case SELL: {
-                        status = sell(outStream, c, cipherService);
+                        response = sell(client, c);
                         break;
                     }
                     case VIEW: {
-                        status = view(outStream, c);
+                        response = view(client, c, labelCache);
+                        isChained = true;
                         break;
                     }
                     case BUY: {
-                        status = buy(outStream, inStream, c, cipherService);
+                        response = buy(client, c);
                         break;
                     }
                     case CLASSIFY: {
-                        status = classify(outStream, c);
+                        response = classify(client, c);
                         break;
                     }
                     case TALK: {
-                        status = talk(outStream, c, cipherService);
+                        response = talk(client, c);
                         break;
                     }
-                    case EXIT: {
-                        outStream.writeObject(opcode);
-                        isExiting = true;
+                    case WALLET: {
+                        response = client.wallet();
+                        break;
+                    }
+                    case READ: {
+                        response = c.length == 1 ? client.read().thenApply(Tintolmarket::format)
+                                                 : read(client, c, config);
+                        isChained = c.length > 1;
                         break;
                     }
-                    case WALLET:
-                    case READ:
                     case LIST: {
-                        outStream.writeObject(opcode);
+                        if (c.length > 2 || (c.length == 2 && !c[1].equalsIgnoreCase("new"))) {
+                            response = null;
+                            break;
+                        }
+                        String resumeToken = c.length == 2 ? lastListToken.get() : "";
+                        isChained = true;
+                        response = client.listSince(resumeToken, config.getInt("listPageSize")).thenApply(page -> {
+                            lastListToken.set(page.getResumeToken());
+                            List<SignedTransaction> transactions = page.getTransactions();
+                            StringBuilder sb = new StringBuilder(transactions.size() * 128);
+                            sb.append("Number of transactions: ")
+                              .append(transactions.size())
+                              .append(System.lineSeparator());
+                            transactions.forEach(sb::append);
+                            return sb.toString();
+                        });
                         break;
                     }
                     default: {
                         throw new RuntimeException();
                     }
                 }
-                if (isExiting) {
-                    break;
-                }
-                if (status == Opcode.INVALID) {
-                    continue;
-                }
-
-                if (status == Opcode.OK) {
-                    status = (Opcode) inStream.readObject(); // if there was no error in the middle of an exchange
+                if (response == null) {
+                    response = CompletableFuture.completedFuture("Error in the command");
                 }
-                String response;
-                if (opcode == Opcode.READ && status == Opcode.OK) {
-                    Message message = (Message) inStream.readObject();
-                    String author = message.getAuthor();
-                    byte[] content = message.getContent();
-                    content = cipherService.decrypt(content);
-                    response = String.format("Enviado por: '%s'%n%s", author, new String(content));
-                } else if (opcode == Opcode.LIST && status == Opcode.OK) {
-                    @SuppressWarnings("unchecked")
-                    LinkedList<SignedTransaction> transactions = (LinkedList<SignedTransaction>) inStream.readObject();
-                    StringBuilder sb = new StringBuilder(transactions.size() * 128);
-                    sb.append("Number of transactions: ").append(transactions.size()).append(System.lineSeparator());
-                    transactions.forEach(sb::append);
-                    response = sb.toString();
-                } else {
-                    response = (String) inStream.readObject();
+                printed = print(printed, response);
+                // later commands are not sent before the requests that follow a response, such as the next page
+                if (!client.isPipelined() || isChained) {
+                    printed.join();
                 }
-                PrintStream out = status == Opcode.ERROR ? System.err : System.out;
-                out.println(response);
             }
+            client.close();
+            printed.join();
             sc.close();
 
         } catch (IOException | ClassNotFoundException e) {
@@ -214,13 +266,64 @@ public class Tintolmarket {
         }
     }
 
-    private static Opcode add(ObjectOutputStream outStream, String[] command, Scanner sc) throws IOException {
+    /**
+     * Prints a response once it arrives and every previous response has been printed. Errors sent by the server and
+     * connection errors are printed to {@code System.err}.
+     *
+     * @param previous the printing of the previous response.
+     * @param response the response to print.
+     * @return the printing of the given response.
+     */
+    private static CompletableFuture<Void> print(CompletableFuture<Void> previous, CompletableFuture<String> response) {
+        return previous.thenCompose(v -> response.handle((s, e) -> {
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (e == null) {
+                System.out.println(s);
+            } else if (cause instanceof RequestFailedException || cause instanceof IOException) {
+                System.err.println(cause.getMessage());
+            } else {
+                e.printStackTrace();
+            }
+            return null;
+        }));
+    }
+
+    private static String format(Message message) {
+        return String.format("Enviado por: '%s'%n%s", message.getAuthor(), new String(message.getContent()));
+    }
+
+    private static CompletableFuture<String> read(AsyncTintolmarket client, String[] command, Configuration config) {
+        if (command.length != 2) {
+            return null;
+        }
+        int count;
+        if (command[1].equalsIgnoreCase("all")) {
+            count = Integer.MAX_VALUE;
+        } else {
+            try {
+                count = Integer.parseInt(command[1]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (count <= 0) {
+                return null;
+            }
+        }
+        return client.readMessages(count, config.getInt("readPageSize"), config.getInt("readPageBytes"))
+                     .thenApply(messages -> {
+                         if (messages.isEmpty()) {
+                             return "No messages to read.";
+                         }
+                         StringJoiner sj = new StringJoiner(System.lineSeparator());
+                         messages.forEach(message -> sj.add(format(message)));
+                         return sj.toString();
+                     });
+    }
+
+    private static CompletableFuture<String> add(AsyncTintolmarket client, String[] command, Scanner sc) {
         if (command.length != 3) {
-            System.out.println("Error in the command");
-            return Opcode.INVALID;
+            return null;
         }
-        outStream.writeObject(Opcode.ADD);
-        outStream.writeObject(command[1]);
         Path path = Paths.get(command[2]);
         ImageIcon image;
 
@@ -235,105 +338,68 @@ public class Tintolmarket {
             System.out.println("INFO: Wine does not have a label.");
             image = new ImageIcon();
         }
-        outStream.writeObject(image);
-        return Opcode.OK;
+        return client.add(command[1], image);
     }
 
-    private static Opcode sell(ObjectOutputStream outStream, String[] command, CipherService cipherService)
-            throws IOException {
+    private static CompletableFuture<String> sell(AsyncTintolmarket client, String[] command) {
         if (command.length != 4) {
-            System.out.println("Error in the command");
-            return Opcode.INVALID;
+            return null;
         }
-        outStream.writeObject(Opcode.SELL);
         String wine = command[1];
         double value = Double.parseDouble(command[2]);
         int quantity = Integer.parseInt(command[3]);
-        WineTransaction wt = new WineTransaction(wine, user, quantity, value, Type.SELL);
-        SignedTransaction signedTransaction = new SignedTransaction(cipherService.sign(wt));
-        outStream.writeObject(signedTransaction);
-        return Opcode.OK;
+        return client.sell(wine, value, quantity);
     }
 
-    private static Opcode view(ObjectOutputStream outStream, String[] command) throws IOException {
+    /**
+     * Views a wine, fetching its label only if it is not in the label cache yet.
+     */
+    private static CompletableFuture<String> view(AsyncTintolmarket client, String[] command, LabelCache labelCache) {
         if (command.length != 2) {
-            System.out.println("Error in the command");
-            return Opcode.INVALID;
+            return null;
         }
-        outStream.writeObject(Opcode.VIEW);
-        outStream.writeObject(command[1]);
-        return Opcode.OK;
+        // the label is requested off the response thread, which must not wait for a free slot in the window
+        return client.viewWine(command[1]).thenComposeAsync(wine -> {
+            if (wine.getLabelDigest().isEmpty()) {
+                return CompletableFuture.completedFuture(wine.getDescription());
+            }
+            return labelCache.get(client, wine.getLabelDigest())
+                             .thenApply(path -> wine.getDescription() + "Label: " + path);
+        });
     }
 
-
-    private static Opcode buy(ObjectOutputStream outStream,
-                              ObjectInputStream inStream,
-                              String[] command,
-                              CipherService cipherService) throws IOException {
+    private static CompletableFuture<String> buy(AsyncTintolmarket client, String[] command) {
         if (command.length != 4) {
-            System.out.println("Error in the command");
-            return Opcode.INVALID;
+            return null;
         }
-        outStream.writeObject(Opcode.BUY);
         String wine = command[1];
         String sellerId = command[2];
         int quantity = Integer.parseInt(command[3]);
-        outStream.writeObject(wine);
-        outStream.writeObject(sellerId);
-        outStream.writeObject(quantity);
-        try {
-            Opcode requestStatus = (Opcode) inStream.readObject();
-            if (requestStatus.equals(Opcode.ERROR)) {
-                return Opcode.ERROR;
-            }
-            WineTransaction wt = (WineTransaction) inStream.readObject();
-            assert user.equals(wt.getAuthorId()) && wine.equals(wt.getItemId()) && quantity == wt.getUnitCount();
-            SignedTransaction signedTransaction = new SignedTransaction(cipherService.sign(wt));
-            outStream.writeObject(signedTransaction);
-            return Opcode.OK;
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
-        }
+        return client.buy(wine, sellerId, quantity);
     }
 
-    private static Opcode classify(ObjectOutputStream outStream, String[] command) throws IOException {
+    private static CompletableFuture<String> classify(AsyncTintolmarket client, String[] command) {
         if (command.length != 3) {
-            System.out.println("Error in the command");
-            return Opcode.INVALID;
+            return null;
         }
-        outStream.writeObject(Opcode.CLASSIFY);
         int stars;
         try {
             stars = Integer.parseInt(command[2]);
         } catch (NumberFormatException e) {
             stars = -1;
         }
-        outStream.writeObject(command[1]);
-        outStream.writeObject(stars);
-        return Opcode.OK;
+        return client.classify(command[1], stars);
     }
 
-    private static Opcode talk(ObjectOutputStream outStream, String[] command, CipherService cipherService)
-            throws IOException {
-
+    private static CompletableFuture<String> talk(AsyncTintolmarket client, String[] command) {
         if (command.length < 3) {
-            System.out.println("Error in the command");
-            return Opcode.INVALID;
+            return null;
         }
-        outStream.writeObject(Opcode.TALK);
         StringBuilder builder = new StringBuilder();
         builder.append(command[2]);
         for (int i = 3; i < command.length; i++) {
             builder.append(" ").append(command[i]);
         }
-
-        String receiverId = command[1];
-        String message = builder.toString();
-        byte[] encryptedMessage = message.getBytes();
-        encryptedMessage = cipherService.encrypt(encryptedMessage, receiverId);
-
-        outStream.writeObject(receiverId);
-        outStream.writeObject(encryptedMessage);
-        return Opcode.OK;
+        return client.talk(command[1], builder.toString());
     }
 }
@@ -0,0 +1,32 @@
+package com.segc;
+
+/**
+ * The description of a wine, with a reference to its label.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class WineView {
+    private final String description;
+    private final String labelDigest;
+
+    public WineView(String description, String labelDigest) {
+        this.description = description;
+        this.labelDigest = labelDigest;
+    }
+
+    /**
+     * @return the rating and listings of the wine.
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return the digest of the wine's label, or an empty string if it has none.
+     */
+    public String getLabelDigest() {
+        return labelDigest;
+    }
+}
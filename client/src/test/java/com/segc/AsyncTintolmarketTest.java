@@ -0,0 +1,143 @@
+package com.segc;
+
+import com.segc.exception.RequestFailedException;
+import com.segc.protocol.BinaryProtocolReader;
+import com.segc.protocol.BinaryProtocolWriter;
+import com.segc.protocol.ProtocolReader;
+import com.segc.protocol.ProtocolWriter;
+import com.segc.protocol.Protocol;
+import com.segc.protocol.SerializationFilter;
+import com.segc.transaction.Transaction;
+import com.segc.transaction.WineTransaction;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.ProtocolException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the client against a scripted server over in-memory pipes.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+class AsyncTintolmarketTest {
+    private static final int MAX_FRAME_SIZE = 1024 * 1024;
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    private PipedOutputStream serverOut;
+    private ProtocolReader server;
+    private ProtocolWriter serverWriter;
+    private AsyncTintolmarket client;
+
+    @BeforeEach
+    void connect() throws IOException {
+        PipedOutputStream clientOut = new PipedOutputStream();
+        PipedInputStream serverIn = new PipedInputStream(clientOut, PIPE_SIZE);
+        serverOut = new PipedOutputStream();
+        PipedInputStream clientIn = new PipedInputStream(serverOut, PIPE_SIZE);
+        SerializationFilter filter = new SerializationFilter(16, 1024, MAX_FRAME_SIZE);
+        server = new BinaryProtocolReader(serverIn, MAX_FRAME_SIZE, 16, filter);
+        serverWriter = new BinaryProtocolWriter(serverOut, true);
+        // without a cipher service, decrypting a message fails while its response is handled
+        client = new AsyncTintolmarket(new BinaryProtocolReader(clientIn, MAX_FRAME_SIZE, 16, filter),
+                new BinaryProtocolWriter(clientOut, true),
+                null,
+                "ana",
+                Protocol.BINARY | Protocol.PIPELINING,
+                8);
+    }
+
+    @AfterEach
+    void disconnect() throws IOException {
+        serverOut.close();
+        client.close();
+    }
+
+    @Test
+    void matchesResponsesToPipelinedRequests() throws Exception {
+        CompletableFuture<String> wallet = client.wallet();
+        CompletableFuture<String> view = client.view("vinho");
+        int walletId = receive(Opcode.WALLET);
+        int viewId = receive(Opcode.VIEW);
+        assertEquals("vinho", server.readString());
+
+        respond(viewId, Opcode.OK, "Wine 'vinho'");
+        respond(walletId, Opcode.OK, "Your balance is 200.0$.");
+
+        assertEquals("Your balance is 200.0$.", wallet.get(5, TimeUnit.SECONDS));
+        assertEquals("Wine 'vinho'", view.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void failsRequestAnsweredWithAnError() throws Exception {
+        CompletableFuture<String> view = client.view("vinho");
+        int viewId = receive(Opcode.VIEW);
+        respond(viewId, Opcode.ERROR, "Wine 'vinho' does not exist.");
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> view.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(RequestFailedException.class, e.getCause());
+        assertEquals("Wine 'vinho' does not exist.", e.getCause().getMessage());
+    }
+
+    @Test
+    void failsEveryPendingRequestIfAResponseCannotBeHandled() throws Exception {
+        CompletableFuture<Message> read = client.read();
+        CompletableFuture<String> wallet = client.wallet();
+        int readId = receive(Opcode.READ);
+        receive(Opcode.WALLET);
+
+        serverWriter.setCorrelationId(readId);
+        serverWriter.writeOpcode(Opcode.OK);
+        serverWriter.writeMessage(new Message("joao", new byte[]{1, 2, 3}));
+        serverWriter.send();
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> read.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(NullPointerException.class, e.getCause());
+        assertThrows(ExecutionException.class, () -> wallet.get(5, TimeUnit.SECONDS));
+        CompletableFuture<String> afterFailure = client.wallet();
+        assertThrows(ExecutionException.class, () -> afterFailure.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void failsPurchaseWithoutSigningAQuoteThatDoesNotMatch() throws Exception {
+        CompletableFuture<String> buy = client.buy("vinho", "joao", 2);
+        int buyId = receive(Opcode.BUY);
+
+        serverWriter.setCorrelationId(buyId);
+        serverWriter.writeOpcode(Opcode.OK);
+        serverWriter.writeWineTransaction(new WineTransaction("vinho", "joao", 20, 10, Transaction.Type.BUY));
+        serverWriter.send();
+
+        // signing without a cipher service would fail with a NullPointerException instead
+        ExecutionException e = assertThrows(ExecutionException.class, () -> buy.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(ProtocolException.class, e.getCause());
+    }
+
+    /**
+     * Receives a request and checks its opcode.
+     *
+     * @return the correlation id of the request.
+     */
+    private int receive(Opcode opcode) throws IOException {
+        server.receive();
+        assertEquals(opcode, server.readOpcode());
+        return server.getCorrelationId();
+    }
+
+    private void respond(int correlationId, Opcode status, String body) throws IOException {
+        serverWriter.setCorrelationId(correlationId);
+        serverWriter.writeOpcode(status);
+        serverWriter.writeString(body);
+        serverWriter.send();
+    }
+}
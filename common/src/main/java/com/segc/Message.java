@@ -1,6 +1,10 @@
 package com.segc;
 
+import com.segc.protocol.BinaryDecoder;
+import com.segc.protocol.BinaryEncoder;
+
 import java.io.Serializable;
+import java.net.ProtocolException;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -13,6 +17,8 @@ public class Message implements Serializable {
     private static final long serialVersionUID = -7586386340771570949L;
     private final String author;
     private final byte[] content;
+    private final byte[] header; // null in messages encrypted with RSA alone, stored before envelopes were used
+    private final long id; // assigned when the message is stored, 0 in messages stored before ids were used
 
     /**
      * Creates a new {@code Message} with the given author and content.
@@ -21,8 +27,35 @@ public class Message implements Serializable {
      * @param content the content of this message
      */
     public Message(String author, byte[] content) {
+        this(author, content, null);
+    }
+
+    /**
+     * Creates a new {@code Message} with the given author, content and envelope header.
+     *
+     * @param author  the client ID of the author of this message
+     * @param content the content of this message
+     * @param header  the header of the envelope of the content, or {@code null} if it is not in an envelope
+     */
+    public Message(String author, byte[] content, byte[] header) {
+        this(author, content, header, 0);
+    }
+
+    private Message(String author, byte[] content, byte[] header, long id) {
         this.author = author;
         this.content = content;
+        this.header = header;
+        this.id = id;
+    }
+
+    /**
+     * Returns a copy of this message with the given id, which identifies it among the messages of its recipient.
+     *
+     * @param id the id of the message.
+     * @return the message with the given id.
+     */
+    public Message withId(long id) {
+        return new Message(author, content, header, id);
     }
 
     public String getAuthor() {
@@ -33,6 +66,43 @@ public class Message implements Serializable {
         return content;
     }
 
+    /**
+     * @return the id of this message among the messages of its recipient, or {@code 0} if it has none.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return the header of the envelope of the content, or {@code null} if it is not in an envelope.
+     */
+    public byte[] getHeader() {
+        return header;
+    }
+
+    /**
+     * Writes the binary encoding of this message.
+     *
+     * @param encoder the encoder to write to.
+     */
+    public void encode(BinaryEncoder encoder) {
+        encoder.writeString(author).writeBytes(content).writeBytes(header != null ? header : new byte[0]);
+    }
+
+    /**
+     * Reads a message written by {@link #encode(BinaryEncoder)}.
+     *
+     * @param decoder the decoder to read from.
+     * @return the decoded message.
+     * @throws ProtocolException if the input is malformed.
+     */
+    public static Message decode(BinaryDecoder decoder) throws ProtocolException {
+        String author = decoder.readString();
+        byte[] content = decoder.readBytes();
+        byte[] header = decoder.readBytes();
+        return new Message(author, content, header.length > 0 ? header : null);
+    }
+
     @Override
     public String toString() {
         return "Enviado por: '" + author + "'" + System.lineSeparator() + new String(content, StandardCharsets.UTF_8);
@@ -1,5 +1,10 @@
 package com.segc;
 
+/**
+ * The commands and statuses exchanged between client and server.
+ * <p>
+ * The binary protocol encodes an opcode as its ordinal, so new constants must only be appended.
+ */
 public enum Opcode {
     OK,
     ERROR,
@@ -14,5 +19,37 @@ public enum Opcode {
     EXIT,
     INVALID,
     LIST,
-}
+    PING,
+    RETRY,
+    SUBSCRIBE,
+    READ_MESSAGES,
+    LIST_FROM,
+    VIEW_WINE,
+    GET_LABEL,
+    ACK_MESSAGE;
+
+    private static final Opcode[] VALUES = values();
 
+    /**
+     * Returns the binary encoding of this opcode.
+     *
+     * @return the code of this opcode.
+     */
+    public byte toByte() {
+        return (byte) ordinal();
+    }
+
+    /**
+     * Returns the opcode with the given binary encoding.
+     *
+     * @param code the code of the opcode.
+     * @return the opcode with the given code.
+     * @throws IllegalArgumentException if there is no opcode with the given code.
+     */
+    public static Opcode fromByte(byte code) throws IllegalArgumentException {
+        if (code < 0 || code >= VALUES.length) {
+            throw new IllegalArgumentException("Unknown opcode: " + code);
+        }
+        return VALUES[code];
+    }
+}
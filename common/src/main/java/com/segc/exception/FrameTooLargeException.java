@@ -0,0 +1,19 @@
+package com.segc.exception;
+
+import java.net.ProtocolException;
+
+/**
+ * Thrown when a message is larger than the largest frame the peer accepts. Nothing is sent, so the connection can
+ * still be used.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class FrameTooLargeException extends ProtocolException {
+    private static final long serialVersionUID = 4127630951284420716L;
+
+    public FrameTooLargeException(String message) {
+        super(message);
+    }
+}
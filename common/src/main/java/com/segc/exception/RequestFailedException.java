@@ -0,0 +1,13 @@
+package com.segc.exception;
+
+/**
+ * Thrown when the server answers a request with {@link com.segc.Opcode#ERROR}.
+ */
+public class RequestFailedException extends RuntimeException {
+
+    private static final long serialVersionUID = -3215390612826429518L;
+
+    public RequestFailedException(String message) {
+        super(message);
+    }
+}
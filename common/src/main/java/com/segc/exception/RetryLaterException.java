@@ -0,0 +1,24 @@
+package com.segc.exception;
+
+/**
+ * Thrown when the server answers a request with {@link com.segc.Opcode#RETRY} because it is over its rate limits or
+ * busy.
+ */
+public class RetryLaterException extends RequestFailedException {
+
+    private static final long serialVersionUID = 6153012437291640338L;
+
+    private final long retryAfterMillis;
+
+    public RetryLaterException(String message, long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Returns the time after which the request may be retried, in milliseconds.
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,115 @@
+package com.segc.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes the values written by a {@link BinaryEncoder}.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class BinaryDecoder {
+    private final ByteBuffer buffer;
+    private final SerializationFilter filter;
+
+    public BinaryDecoder(ByteBuffer buffer) {
+        this(buffer, null);
+    }
+
+    /**
+     * Creates a {@link BinaryDecoder} that checks the objects read by {@link #readSerializable(Class)} with the
+     * given filter.
+     *
+     * @param buffer the buffer to decode.
+     * @param filter the filter of serialized objects, or {@code null} for none.
+     */
+    public BinaryDecoder(ByteBuffer buffer, SerializationFilter filter) {
+        this.buffer = buffer;
+        this.filter = filter;
+    }
+
+    public BinaryDecoder(byte[] bytes, int offset, int length) {
+        this(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    public byte readByte() throws ProtocolException {
+        try {
+            return buffer.get();
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Unexpected end of message.");
+        }
+    }
+
+    public boolean readBoolean() throws ProtocolException {
+        return readByte() != 0;
+    }
+
+    public int readInt() throws ProtocolException {
+        try {
+            return buffer.getInt();
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Unexpected end of message.");
+        }
+    }
+
+    public long readLong() throws ProtocolException {
+        try {
+            return buffer.getLong();
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Unexpected end of message.");
+        }
+    }
+
+    public double readDouble() throws ProtocolException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    /**
+     * Reads a length-prefixed byte array.
+     */
+    public byte[] readBytes() throws ProtocolException {
+        int length = readInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new ProtocolException("Invalid length: " + length);
+        }
+        byte[] b = new byte[length];
+        buffer.get(b);
+        return b;
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string.
+     */
+    public String readString() throws ProtocolException {
+        return new String(readBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads an object written by {@link BinaryEncoder#writeSerializable(Serializable)}.
+     */
+    public <T extends Serializable> T readSerializable(Class<T> clazz) throws IOException {
+        byte[] bytes = readBytes();
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            if (filter != null) {
+                filter.startObject();
+                in.setObjectInputFilter(filter);
+            }
+            return clazz.cast(in.readObject());
+        } catch (ClassNotFoundException | ClassCastException | InvalidClassException e) {
+            throw new ProtocolException("Unexpected object: " + e.getMessage());
+        }
+    }
+
+    public int remaining() {
+        return buffer.remaining();
+    }
+}
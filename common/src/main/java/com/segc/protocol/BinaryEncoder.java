@@ -0,0 +1,156 @@
+package com.segc.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes primitive values, length-prefixed byte arrays and UTF-8 strings into a growable big-endian buffer.
+ * <p>
+ * The buffer grows as needed, and is only kept at its larger size until {@link #clear()} is called if it is at most
+ * {@link #MAX_RETAINED_CAPACITY} bytes, so a single large message does not keep its buffer allocated.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class BinaryEncoder {
+    /**
+     * The largest buffer kept once the data it holds is no longer needed.
+     */
+    static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private final int initialCapacity;
+    private byte[] buf;
+    private int count;
+
+    public BinaryEncoder() {
+        this(256);
+    }
+
+    public BinaryEncoder(int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.buf = new byte[initialCapacity];
+    }
+
+    private void ensureCapacity(int additional) {
+        if (count + additional > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + additional));
+        }
+    }
+
+    public BinaryEncoder writeByte(int b) {
+        ensureCapacity(1);
+        buf[count++] = (byte) b;
+        return this;
+    }
+
+    public BinaryEncoder writeBoolean(boolean b) {
+        return writeByte(b ? 1 : 0);
+    }
+
+    public BinaryEncoder writeInt(int i) {
+        ensureCapacity(4);
+        putInt(count, i);
+        count += 4;
+        return this;
+    }
+
+    public BinaryEncoder writeLong(long l) {
+        writeInt((int) (l >>> 32));
+        return writeInt((int) l);
+    }
+
+    public BinaryEncoder writeDouble(double d) {
+        return writeLong(Double.doubleToLongBits(d));
+    }
+
+    /**
+     * Writes the given bytes as they are, without a length prefix.
+     */
+    public BinaryEncoder writeRaw(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+        return this;
+    }
+
+    /**
+     * Writes the length of the given array followed by its contents.
+     */
+    public BinaryEncoder writeBytes(byte[] b) {
+        writeInt(b.length);
+        return writeRaw(b, 0, b.length);
+    }
+
+    /**
+     * Writes the given string as length-prefixed UTF-8.
+     */
+    public BinaryEncoder writeString(String s) {
+        return writeBytes(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes the Java serialization of an object that has no explicit encoding, as a length-prefixed byte array.
+     */
+    public BinaryEncoder writeSerializable(Serializable obj) {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             ObjectOutputStream out = new ObjectOutputStream(baos)) {
+            out.writeObject(obj);
+            out.flush();
+            return writeBytes(baos.toByteArray());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Overwrites 4 bytes at the given position with the given integer.
+     */
+    public void putInt(int position, int i) {
+        buf[position] = (byte) (i >>> 24);
+        buf[position + 1] = (byte) (i >>> 16);
+        buf[position + 2] = (byte) (i >>> 8);
+        buf[position + 3] = (byte) i;
+    }
+
+    /**
+     * Discards everything after the first {@code size} bytes.
+     */
+    public void truncate(int size) {
+        count = size;
+    }
+
+    /**
+     * Discards all the encoded data, replacing the buffer with a new one of the initial capacity if it has grown past
+     * {@link #MAX_RETAINED_CAPACITY}.
+     */
+    public void clear() {
+        count = 0;
+        if (buf.length > MAX_RETAINED_CAPACITY) {
+            buf = new byte[initialCapacity];
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the internal buffer, whose first {@link #size()} bytes hold the encoded data.
+     */
+    byte[] buffer() {
+        return buf;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+}
@@ -0,0 +1,287 @@
+package com.segc.protocol;
+
+import com.segc.Message;
+import com.segc.Opcode;
+import com.segc.transaction.SignedTransaction;
+import com.segc.transaction.WineTransaction;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A {@link ProtocolReader} that reads the frames sent by a {@link BinaryProtocolWriter}.
+ * <p>
+ * Frames are read exactly, without reading ahead, so the underlying stream can tell whether another frame is pending.
+ * Compressed frames are only accepted if an {@link Inflater} is given, and are limited to {@code maxFrameSize} bytes
+ * once decompressed. The buffers of frames larger than {@link BinaryEncoder#MAX_RETAINED_CAPACITY} are released once
+ * the frame has been read, so an idle session only keeps small buffers.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class BinaryProtocolReader implements ProtocolReader {
+    private final DataInputStream in;
+    private final int maxFrameSize;
+    private final int maxDeferredFrames;
+    private final SerializationFilter filter;
+    private final Inflater inflater;
+    private final CompressionStats compressionStats;
+    private final Queue<DeferredFrame> deferredFrames = new ArrayDeque<>();
+    private static final int INITIAL_FRAME_CAPACITY = 256;
+    private static final BinaryDecoder EMPTY_DECODER = new BinaryDecoder(new byte[0], 0, 0);
+    private byte[] frame = new byte[INITIAL_FRAME_CAPACITY];
+    private byte[] compressedFrame = new byte[0];
+    private int frameLength;
+    private int correlationId;
+    private BinaryDecoder decoder = EMPTY_DECODER;
+
+    /**
+     * Creates a {@link BinaryProtocolReader}.
+     *
+     * @param in                the stream to read frames from.
+     * @param maxFrameSize      the largest payload accepted, in bytes.
+     * @param maxDeferredFrames the largest number of frames deferred by {@link #receive(int)}.
+     * @param filter            the filter of the serialized objects within frames.
+     */
+    public BinaryProtocolReader(InputStream in, int maxFrameSize, int maxDeferredFrames, SerializationFilter filter) {
+        this(in, maxFrameSize, maxDeferredFrames, filter, null, null);
+    }
+
+    /**
+     * Creates a {@link BinaryProtocolReader} that accepts compressed frames.
+     *
+     * @param in                the stream to read frames from.
+     * @param maxFrameSize      the largest payload accepted, in bytes, before and after decompression.
+     * @param maxDeferredFrames the largest number of frames deferred by {@link #receive(int)}.
+     * @param filter            the filter of the serialized objects within frames.
+     * @param inflater          the inflater of compressed frames, or {@code null} to reject them.
+     * @param compressionStats  the statistics to record decompression in.
+     */
+    public BinaryProtocolReader(InputStream in,
+                                int maxFrameSize,
+                                int maxDeferredFrames,
+                                SerializationFilter filter,
+                                Inflater inflater,
+                                CompressionStats compressionStats) {
+        this.in = new DataInputStream(in);
+        this.maxFrameSize = maxFrameSize;
+        this.maxDeferredFrames = maxDeferredFrames;
+        this.filter = filter;
+        this.inflater = inflater;
+        this.compressionStats = compressionStats;
+    }
+
+    @Override
+    public void receive() throws IOException {
+        DeferredFrame deferred = deferredFrames.poll();
+        if (deferred == null) {
+            readFrame();
+        } else {
+            correlationId = deferred.correlationId;
+            decoder = new BinaryDecoder(ByteBuffer.wrap(deferred.payload), filter);
+        }
+    }
+
+    @Override
+    public void receive(int correlationId) throws IOException {
+        while (!receiveOrDefer(correlationId)) {
+            // the frames of other requests are deferred
+        }
+    }
+
+    @Override
+    public boolean receiveOrDefer(int correlationId) throws IOException {
+        readFrame();
+        if (this.correlationId == correlationId) {
+            return true;
+        }
+        if (deferredFrames.size() >= maxDeferredFrames) {
+            throw new ProtocolException("Too many pipelined requests.");
+        }
+        deferredFrames.add(new DeferredFrame(this.correlationId, Arrays.copyOf(frame, frameLength)));
+        release();
+        return false;
+    }
+
+    private void readFrame() throws IOException {
+        release(); // before waiting for the next frame, which may take as long as the session is idle
+        int length = in.readInt();
+        if (length < 0 || length > maxFrameSize) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+        byte flags = in.readByte();
+        int supportedFlags = BinaryProtocolWriter.FLAG_CORRELATION_ID
+                             | (inflater != null ? BinaryProtocolWriter.FLAG_COMPRESSED : 0);
+        if ((flags & ~supportedFlags) != 0) {
+            throw new ProtocolException("Unsupported frame flags: " + flags);
+        }
+        correlationId = (flags & BinaryProtocolWriter.FLAG_CORRELATION_ID) != 0 ? in.readInt() : 0;
+        if ((flags & BinaryProtocolWriter.FLAG_COMPRESSED) != 0) {
+            length = readCompressedFrame(length);
+        } else {
+            ensureFrameCapacity(length);
+            in.readFully(frame, 0, length);
+        }
+        frameLength = length;
+        decoder = new BinaryDecoder(ByteBuffer.wrap(frame, 0, length), filter);
+    }
+
+    private void ensureFrameCapacity(int length) {
+        if (frame.length < length) {
+            frame = new byte[Math.max(length, frame.length << 1)];
+        }
+    }
+
+    /**
+     * Reads and decompresses a compressed payload into {@link #frame}.
+     *
+     * @param length the size of the compressed payload.
+     * @return the size of the decompressed payload.
+     */
+    private int readCompressedFrame(int length) throws IOException {
+        if (length < 4) {
+            throw new ProtocolException("Invalid compressed frame length: " + length);
+        }
+        int uncompressedLength = in.readInt();
+        if (uncompressedLength < 0 || uncompressedLength > maxFrameSize) {
+            throw new ProtocolException("Invalid uncompressed frame length: " + uncompressedLength);
+        }
+        if (compressedFrame.length < length - 4) {
+            compressedFrame = new byte[Math.max(length - 4, compressedFrame.length << 1)];
+        }
+        in.readFully(compressedFrame, 0, length - 4);
+        long start = System.nanoTime();
+        // one spare byte, to detect payloads that inflate past their stated size
+        ensureFrameCapacity(uncompressedLength + 1);
+        inflater.setInput(compressedFrame, 0, length - 4);
+        int size = 0;
+        try {
+            while (!inflater.finished() && size <= uncompressedLength) {
+                int n = inflater.inflate(frame, size, uncompressedLength + 1 - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += n;
+            }
+            if (!inflater.finished() || size != uncompressedLength) {
+                throw new ProtocolException("Compressed frame does not match its uncompressed length.");
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Invalid compressed frame: " + e.getMessage());
+        } finally {
+            inflater.reset(); // drops the inflater's reference to the compressed payload
+            if (compressedFrame.length > BinaryEncoder.MAX_RETAINED_CAPACITY) {
+                compressedFrame = new byte[0];
+            }
+        }
+        compressionStats.recordDecompression(System.nanoTime() - start);
+        return uncompressedLength;
+    }
+
+    @Override
+    public void release() {
+        decoder = EMPTY_DECODER;
+        if (frame.length > BinaryEncoder.MAX_RETAINED_CAPACITY) {
+            frame = new byte[INITIAL_FRAME_CAPACITY];
+        }
+    }
+
+    @Override
+    public int getCorrelationId() {
+        return correlationId;
+    }
+
+    @Override
+    public boolean hasDeferred() {
+        return !deferredFrames.isEmpty();
+    }
+
+    @Override
+    public Opcode readOpcode() throws IOException {
+        try {
+            return Opcode.fromByte(decoder.readByte());
+        } catch (IllegalArgumentException e) {
+            throw new ProtocolException(e.getMessage());
+        }
+    }
+
+    @Override
+    public String readString() throws IOException {
+        return decoder.readString();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        return decoder.readInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        return decoder.readLong();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return decoder.readDouble();
+    }
+
+    @Override
+    public byte[] readBytes() throws IOException {
+        return decoder.readBytes();
+    }
+
+    @Override
+    public Message readMessage() throws IOException {
+        return Message.decode(decoder);
+    }
+
+    @Override
+    public WineTransaction readWineTransaction() throws IOException {
+        return WineTransaction.decode(decoder);
+    }
+
+    @Override
+    public SignedTransaction readSignedTransaction() throws IOException {
+        return SignedTransaction.decode(decoder);
+    }
+
+    @Override
+    public List<SignedTransaction> readTransactions() throws IOException {
+        int size = decoder.readInt();
+        if (size < 0 || size > decoder.remaining()) {
+            throw new ProtocolException("Invalid list size: " + size);
+        }
+        List<SignedTransaction> transactions = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            transactions.add(SignedTransaction.decode(decoder));
+        }
+        return transactions;
+    }
+
+    @Override
+    public <T extends Serializable> T readObject(Class<T> clazz) throws IOException {
+        return decoder.readSerializable(clazz);
+    }
+
+    private static class DeferredFrame {
+        final int correlationId;
+        final byte[] payload;
+
+        DeferredFrame(int correlationId, byte[] payload) {
+            this.correlationId = correlationId;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.segc.protocol;
+
+import com.segc.Message;
+import com.segc.Opcode;
+import com.segc.exception.FrameTooLargeException;
+import com.segc.transaction.SignedTransaction;
+import com.segc.transaction.WineTransaction;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * A {@link ProtocolWriter} that sends each message as a single length-prefixed binary frame.
+ * <p>
+ * This is the framing of protocol version 1. A frame consists of a 4-byte payload length, a flags byte, a 4-byte
+ * correlation id if {@link #FLAG_CORRELATION_ID} is set, and the payload itself. A payload larger than
+ * {@code maxFrameSize} bytes is not sent, as the peer would reject it and close the connection.
+ * <p>
+ * If a {@link Deflater} is given, payloads of at least {@code compressionThreshold} bytes are compressed, unless that
+ * does not make them smaller. A compressed payload has {@link #FLAG_COMPRESSED} set and starts with the 4-byte size
+ * of the uncompressed payload. The deflater is reused for every frame.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class BinaryProtocolWriter implements ProtocolWriter {
+    static final int FLAG_CORRELATION_ID = 0x01;
+    static final int FLAG_COMPRESSED = 0x02;
+
+    private final OutputStream out;
+    private final BinaryEncoder encoder = new BinaryEncoder();
+    private final boolean isCorrelated;
+    private final int headerSize;
+    private final int maxFrameSize;
+    private final Deflater deflater;
+    private final int compressionThreshold;
+    private final CompressionStats compressionStats;
+    private byte[] compressedFrame = new byte[0]; // released after frames larger than the retained capacity
+    private int correlationId;
+
+    /**
+     * Creates a {@link BinaryProtocolWriter} that does not compress frames nor limit their size.
+     *
+     * @param out          the stream to write frames to.
+     * @param isCorrelated whether frames carry a correlation id.
+     */
+    public BinaryProtocolWriter(OutputStream out, boolean isCorrelated) {
+        this(out, isCorrelated, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a {@link BinaryProtocolWriter} that does not compress frames.
+     *
+     * @param out          the stream to write frames to.
+     * @param isCorrelated whether frames carry a correlation id.
+     * @param maxFrameSize the largest payload sent, in bytes.
+     */
+    public BinaryProtocolWriter(OutputStream out, boolean isCorrelated, int maxFrameSize) {
+        this(out, isCorrelated, maxFrameSize, null, 0, null);
+    }
+
+    /**
+     * Creates a {@link BinaryProtocolWriter}.
+     *
+     * @param out                  the stream to write frames to.
+     * @param isCorrelated         whether frames carry a correlation id.
+     * @param maxFrameSize         the largest payload sent, in bytes, before compression.
+     * @param deflater             the deflater of large payloads, or {@code null} to not compress frames.
+     * @param compressionThreshold the size from which payloads are compressed.
+     * @param compressionStats     the statistics to record compression in.
+     */
+    public BinaryProtocolWriter(OutputStream out,
+                                boolean isCorrelated,
+                                int maxFrameSize,
+                                Deflater deflater,
+                                int compressionThreshold,
+                                CompressionStats compressionStats) {
+        this.out = out;
+        this.isCorrelated = isCorrelated;
+        this.headerSize = isCorrelated ? 9 : 5;
+        this.maxFrameSize = maxFrameSize;
+        this.deflater = deflater;
+        this.compressionThreshold = compressionThreshold;
+        this.compressionStats = compressionStats;
+        reset();
+    }
+
+    private void reset() {
+        encoder.clear();
+        if (deflater != null) {
+            deflater.reset(); // drops the deflater's reference to the buffer of the last payload
+        }
+        if (compressedFrame.length > BinaryEncoder.MAX_RETAINED_CAPACITY) {
+            compressedFrame = new byte[0];
+        }
+        encoder.writeInt(0).writeByte(isCorrelated ? FLAG_CORRELATION_ID : 0); // length is filled in by send()
+        if (isCorrelated) {
+            encoder.writeInt(0);
+        }
+    }
+
+    @Override
+    public void writeOpcode(Opcode opcode) {
+        encoder.writeByte(opcode.toByte());
+    }
+
+    @Override
+    public void writeString(String s) {
+        encoder.writeString(s);
+    }
+
+    @Override
+    public void writeInt(int i) {
+        encoder.writeInt(i);
+    }
+
+    @Override
+    public void writeLong(long l) {
+        encoder.writeLong(l);
+    }
+
+    @Override
+    public void writeDouble(double d) {
+        encoder.writeDouble(d);
+    }
+
+    @Override
+    public void writeBytes(byte[] b) {
+        encoder.writeBytes(b);
+    }
+
+    @Override
+    public void writeMessage(Message message) {
+        message.encode(encoder);
+    }
+
+    @Override
+    public void writeWineTransaction(WineTransaction transaction) {
+        transaction.encode(encoder);
+    }
+
+    @Override
+    public void writeSignedTransaction(SignedTransaction transaction) {
+        transaction.encode(encoder);
+    }
+
+    @Override
+    public void writeTransactions(List<SignedTransaction> transactions) {
+        encoder.writeInt(transactions.size());
+        for (SignedTransaction transaction : transactions) {
+            transaction.encode(encoder);
+        }
+    }
+
+    @Override
+    public void writeObject(Serializable obj) {
+        encoder.writeSerializable(obj);
+    }
+
+    @Override
+    public void setCorrelationId(int correlationId) {
+        this.correlationId = correlationId;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws FrameTooLargeException if the payload is larger than {@code maxFrameSize}, in which case the message is
+     *                                discarded and nothing is sent.
+     */
+    @Override
+    public void send() throws IOException {
+        int payloadSize = encoder.size() - headerSize;
+        if (payloadSize > maxFrameSize) {
+            reset();
+            throw new FrameTooLargeException("The message has " + payloadSize + " bytes, more than the "
+                                             + maxFrameSize + " bytes a frame may have.");
+        }
+        encoder.putInt(0, payloadSize);
+        if (isCorrelated) {
+            encoder.putInt(5, correlationId);
+        }
+        try {
+            int compressedFrameSize = deflater != null && payloadSize >= compressionThreshold
+                                      ? compress(payloadSize) : -1;
+            if (compressedFrameSize < 0) {
+                encoder.writeTo(out);
+            } else {
+                out.write(compressedFrame, 0, compressedFrameSize); // a single write, like an uncompressed frame
+            }
+            out.flush();
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Compresses the encoded payload into {@link #compressedFrame}, along with its header.
+     *
+     * @return the size of the compressed frame, or {@code -1} if compressing the payload does not make it smaller.
+     */
+    private int compress(int payloadSize) {
+        long start = System.nanoTime();
+        int offset = headerSize + 4;
+        int maxSize = payloadSize - 4; // the compressed payload must make up for the uncompressed size
+        if (compressedFrame.length < offset + maxSize) {
+            compressedFrame = new byte[offset + maxSize];
+        }
+        deflater.reset();
+        deflater.setInput(encoder.buffer(), headerSize, payloadSize);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished() && size < maxSize) {
+            size += deflater.deflate(compressedFrame, offset + size, maxSize - size);
+        }
+        if (!deflater.finished()) {
+            compressionStats.recordCompression(payloadSize, -1, System.nanoTime() - start);
+            return -1;
+        }
+        byte[] header = encoder.buffer();
+        System.arraycopy(header, 0, compressedFrame, 0, headerSize);
+        compressedFrame[4] |= FLAG_COMPRESSED;
+        putInt(compressedFrame, 0, 4 + size);
+        putInt(compressedFrame, headerSize, payloadSize);
+        compressionStats.recordCompression(payloadSize, 4 + size, System.nanoTime() - start);
+        return offset + size;
+    }
+
+    private static void putInt(byte[] b, int position, int i) {
+        b[position] = (byte) (i >>> 24);
+        b[position + 1] = (byte) (i >>> 16);
+        b[position + 2] = (byte) (i >>> 8);
+        b[position + 3] = (byte) i;
+    }
+}
@@ -0,0 +1,95 @@
+package com.segc.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The compression statistics of the frames sent and received by any number of connections.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class CompressionStats implements CompressionStatsMXBean {
+    private final AtomicLong compressedFrames = new AtomicLong();
+    private final AtomicLong incompressibleFrames = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressionTimeNanos = new AtomicLong();
+    private final AtomicLong decompressedFrames = new AtomicLong();
+    private final AtomicLong decompressionTimeNanos = new AtomicLong();
+
+    /**
+     * Records the compression of a frame.
+     *
+     * @param uncompressedSize the size of the payload.
+     * @param compressedSize   the size of the compressed payload, or {@code -1} if it was not smaller.
+     * @param timeNanos        the time spent compressing the payload.
+     */
+    void recordCompression(int uncompressedSize, int compressedSize, long timeNanos) {
+        compressionTimeNanos.addAndGet(timeNanos);
+        if (compressedSize < 0) {
+            incompressibleFrames.incrementAndGet();
+            return;
+        }
+        compressedFrames.incrementAndGet();
+        uncompressedBytes.addAndGet(uncompressedSize);
+        compressedBytes.addAndGet(compressedSize);
+    }
+
+    void recordDecompression(long timeNanos) {
+        decompressedFrames.incrementAndGet();
+        decompressionTimeNanos.addAndGet(timeNanos);
+    }
+
+    @Override
+    public long getCompressedFrames() {
+        return compressedFrames.get();
+    }
+
+    @Override
+    public long getIncompressibleFrames() {
+        return incompressibleFrames.get();
+    }
+
+    @Override
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    @Override
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long uncompressed = uncompressedBytes.get();
+        return uncompressed == 0 ? 1.0 : (double) compressedBytes.get() / uncompressed;
+    }
+
+    @Override
+    public long getCompressionTimeNanos() {
+        return compressionTimeNanos.get();
+    }
+
+    @Override
+    public long getDecompressedFrames() {
+        return decompressedFrames.get();
+    }
+
+    @Override
+    public long getDecompressionTimeNanos() {
+        return decompressionTimeNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d frames compressed to %.1f%% in %.1f ms, %d incompressible, %d decompressed in %.1f ms",
+                getCompressedFrames(),
+                getCompressionRatio() * 100,
+                getCompressionTimeNanos() / 1e6,
+                getIncompressibleFrames(),
+                getDecompressedFrames(),
+                getDecompressionTimeNanos() / 1e6);
+    }
+}
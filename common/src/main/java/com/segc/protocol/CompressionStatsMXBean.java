@@ -0,0 +1,34 @@
+package com.segc.protocol;
+
+/**
+ * The management interface of {@link CompressionStats}.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public interface CompressionStatsMXBean {
+
+    long getCompressedFrames();
+
+    /**
+     * Returns the number of frames above the threshold that were sent uncompressed, because compressing them did not
+     * make them smaller.
+     */
+    long getIncompressibleFrames();
+
+    long getUncompressedBytes();
+
+    long getCompressedBytes();
+
+    /**
+     * Returns the size of the compressed frames relative to their uncompressed size.
+     */
+    double getCompressionRatio();
+
+    long getCompressionTimeNanos();
+
+    long getDecompressedFrames();
+
+    long getDecompressionTimeNanos();
+}
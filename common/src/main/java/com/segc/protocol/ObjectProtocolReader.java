@@ -0,0 +1,130 @@
+package com.segc.protocol;
+
+import com.segc.Message;
+import com.segc.Opcode;
+import com.segc.transaction.SignedTransaction;
+import com.segc.transaction.WineTransaction;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.net.ProtocolException;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A {@link ProtocolReader} that reads each field as a Java-serialized object.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class ObjectProtocolReader implements ProtocolReader {
+    private final ObjectInputStream in;
+    private final SerializationFilter filter;
+
+    /**
+     * Creates an {@link ObjectProtocolReader}.
+     *
+     * @param in     the stream to read objects from.
+     * @param filter the filter installed on {@code in}, which is told where each object starts, or {@code null}.
+     */
+    public ObjectProtocolReader(ObjectInputStream in, SerializationFilter filter) {
+        this.in = in;
+        this.filter = filter;
+    }
+
+    @Override
+    public void receive() {
+        // fields are read straight from the stream
+    }
+
+    @Override
+    public void receive(int correlationId) {
+        // requests are answered in order
+    }
+
+    @Override
+    public boolean receiveOrDefer(int correlationId) {
+        return true; // requests are answered in order
+    }
+
+    @Override
+    public void release() {
+        // objects are not buffered once read
+    }
+
+    @Override
+    public int getCorrelationId() {
+        return 0;
+    }
+
+    @Override
+    public boolean hasDeferred() {
+        return false;
+    }
+
+    @Override
+    public Opcode readOpcode() throws IOException {
+        return readObject(Opcode.class);
+    }
+
+    @Override
+    public String readString() throws IOException {
+        return readObject(String.class);
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        return readObject(Integer.class);
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        return readObject(Long.class);
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return readObject(Double.class);
+    }
+
+    @Override
+    public byte[] readBytes() throws IOException {
+        return readObject(byte[].class);
+    }
+
+    @Override
+    public Message readMessage() throws IOException {
+        return readObject(Message.class);
+    }
+
+    @Override
+    public WineTransaction readWineTransaction() throws IOException {
+        return readObject(WineTransaction.class);
+    }
+
+    @Override
+    public SignedTransaction readSignedTransaction() throws IOException {
+        return readObject(SignedTransaction.class);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<SignedTransaction> readTransactions() throws IOException {
+        return readObject(LinkedList.class);
+    }
+
+    @Override
+    public <T extends Serializable> T readObject(Class<T> clazz) throws IOException {
+        if (filter != null) {
+            filter.startObject();
+        }
+        try {
+            return clazz.cast(in.readObject());
+        } catch (ClassNotFoundException | ClassCastException | InvalidClassException e) {
+            throw new ProtocolException("Unexpected object: " + e.getMessage());
+        }
+    }
+}
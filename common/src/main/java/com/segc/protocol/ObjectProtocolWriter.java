@@ -0,0 +1,114 @@
+package com.segc.protocol;
+
+import com.segc.Message;
+import com.segc.Opcode;
+import com.segc.transaction.SignedTransaction;
+import com.segc.transaction.WineTransaction;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A {@link ProtocolWriter} that writes each field as a Java-serialized object.
+ * <p>
+ * The stream is reset after a message once {@code resetInterval} objects have been written since the last reset, so
+ * neither end keeps a reference to every object sent during the session.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class ObjectProtocolWriter implements ProtocolWriter {
+    private final ObjectOutputStream out;
+    private final int resetInterval;
+    private int objectsSinceReset;
+
+    /**
+     * Creates an {@link ObjectProtocolWriter}.
+     *
+     * @param out           the stream to write objects to.
+     * @param resetInterval the number of objects after which the stream is reset.
+     */
+    public ObjectProtocolWriter(ObjectOutputStream out, int resetInterval) {
+        this.out = out;
+        this.resetInterval = resetInterval;
+    }
+
+    @Override
+    public void writeOpcode(Opcode opcode) throws IOException {
+        write(opcode);
+    }
+
+    @Override
+    public void writeString(String s) throws IOException {
+        write(s);
+    }
+
+    @Override
+    public void writeInt(int i) throws IOException {
+        write(i);
+    }
+
+    @Override
+    public void writeLong(long l) throws IOException {
+        write(l);
+    }
+
+    @Override
+    public void writeDouble(double d) throws IOException {
+        write(d);
+    }
+
+    @Override
+    public void writeBytes(byte[] b) throws IOException {
+        write(b);
+    }
+
+    @Override
+    public void writeMessage(Message message) throws IOException {
+        write(message);
+    }
+
+    @Override
+    public void writeWineTransaction(WineTransaction transaction) throws IOException {
+        write(transaction);
+    }
+
+    @Override
+    public void writeSignedTransaction(SignedTransaction transaction) throws IOException {
+        write(transaction);
+    }
+
+    @Override
+    public void writeTransactions(List<SignedTransaction> transactions) throws IOException {
+        out.writeObject(transactions instanceof LinkedList ? transactions : new LinkedList<>(transactions));
+        objectsSinceReset += transactions.size() + 1;
+    }
+
+    @Override
+    public void writeObject(Serializable obj) throws IOException {
+        write(obj);
+    }
+
+    private void write(Object obj) throws IOException {
+        out.writeObject(obj);
+        objectsSinceReset++;
+    }
+
+    @Override
+    public void setCorrelationId(int correlationId) {
+        // requests are answered in order
+    }
+
+    @Override
+    public void send() throws IOException {
+        if (objectsSinceReset >= resetInterval) {
+            out.reset();
+            objectsSinceReset = 0;
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,281 @@
+package com.segc.protocol;
+
+import com.segc.Configuration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The protocol version and the optional protocol features negotiated during the handshake.
+ * <p>
+ * The client starts the handshake with {@link #HELLO} and the highest version it supports, followed by its id and a
+ * bitmask of the features it supports. The server replies with the version used for the session and the subset of
+ * the features it accepts. A client that starts the handshake with its id instead, as clients that predate the
+ * negotiation do, is offered no version or features and keeps using Java serialization for the whole session.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public final class Protocol {
+    /**
+     * Sent by a client before its id to offer a protocol version and features. Clients that predate the negotiation
+     * send their id first, which is a {@link String} rather than an {@link Integer}.
+     */
+    public static final int HELLO = 0x544D4B48; // "TMKH"
+    /**
+     * The protocol version of the binary frames written by {@link BinaryProtocolWriter}.
+     */
+    public static final int VERSION = 1;
+    /**
+     * The version of a session with a client that did not offer one, which only supports Java serialization.
+     */
+    public static final int LEGACY_VERSION = 0;
+
+    /**
+     * Messages are sent as length-prefixed binary frames instead of serialized objects.
+     */
+    public static final int BINARY = 1;
+    /**
+     * Each message carries a correlation id, so a client may send requests without waiting for previous responses.
+     * Requires {@link #BINARY}.
+     */
+    public static final int PIPELINING = 2;
+    /**
+     * The server pushes each message sent to a subscribed client as a frame with correlation id {@code 0}, which is
+     * never used by a request, holding the id of the message followed by the message. The message is kept by the
+     * server until the client acknowledges it or reads it. Requires {@link #PIPELINING}.
+     */
+    public static final int PUSH = 4;
+    /**
+     * Binary frames with payloads of at least {@code compressionThreshold} bytes are deflated, unless that does not
+     * make them smaller. Requires {@link #BINARY}.
+     */
+    public static final int COMPRESSION = 8;
+    /**
+     * The server issues a session ticket at the end of each successful handshake, which the client may present when it
+     * reconnects to skip the nonce challenge. Does not require {@link #BINARY}, as it only changes the handshake.
+     */
+    public static final int SESSION_TICKETS = 16;
+    /**
+     * Not a feature: set in the features offered by a client that sends a session ticket right after them.
+     */
+    public static final int RESUMPTION = 32;
+
+    /**
+     * The size of the header of a binary frame, which is sent on top of a payload of up to {@code maxFrameSize} bytes.
+     */
+    public static final int MAX_FRAME_HEADER_SIZE = 9;
+
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    private static final int DEFAULT_MAX_DEFERRED_REQUESTS = 64;
+    private static final int DEFAULT_SERIALIZATION_RESET_INTERVAL = 64;
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    private static final int DEFAULT_COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+    private Protocol() {
+    }
+
+    /**
+     * Returns the features enabled by the {@code protocolFeatures} property, a comma-separated list of feature names.
+     *
+     * @param config the configuration to read.
+     * @return the bitmask of the enabled features.
+     */
+    public static int getFeatures(Configuration config) {
+        String value = config.getValue("protocolFeatures");
+        int features = 0;
+        if (value == null) {
+            return features;
+        }
+        for (String feature : value.split(",")) {
+            switch (feature.trim().toLowerCase()) {
+                case "binary":
+                    features |= BINARY;
+                    break;
+                case "pipelining":
+                    features |= PIPELINING;
+                    break;
+                case "push":
+                    features |= PUSH;
+                    break;
+                case "compression":
+                    features |= COMPRESSION;
+                    break;
+                case "tickets":
+                    features |= SESSION_TICKETS;
+                    break;
+                case "":
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown protocol feature: " + feature);
+            }
+        }
+        return features;
+    }
+
+    /**
+     * Returns the version used for a session, which is the highest version supported by both peers.
+     *
+     * @param offered the version offered by the client, or {@link #LEGACY_VERSION} if it offered none.
+     * @return the negotiated version.
+     */
+    public static int negotiateVersion(int offered) {
+        return Math.max(LEGACY_VERSION, Math.min(offered, VERSION));
+    }
+
+    /**
+     * Returns the features offered by a client that are also supported by the server.
+     *
+     * @param offered   the features offered by the client.
+     * @param supported the features enabled on the server.
+     * @param version   the negotiated version.
+     * @return the bitmask of the accepted features.
+     */
+    public static int negotiate(int offered, int supported, int version) {
+        if (version == LEGACY_VERSION) {
+            return 0;
+        }
+        int features = offered & supported & ~RESUMPTION;
+        if ((features & PIPELINING) == 0) {
+            features &= ~PUSH;
+        }
+        return (features & BINARY) != 0 ? features : features & SESSION_TICKETS;
+    }
+
+    /**
+     * Returns the largest payload of a binary frame, set by the {@code maxFrameSize} property.
+     *
+     * @param config the configuration to read.
+     * @return the maximum frame size, in bytes.
+     */
+    public static int getMaxFrameSize(Configuration config) {
+        return getInt(config, "maxFrameSize", DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Returns the value of an optional integer property.
+     */
+    private static int getInt(Configuration config, String key, int defaultValue) {
+        String value = config.getValue(key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * Creates the stream used during the handshake, with a {@link SerializationFilter} configured by
+     * {@link SerializationFilter#fromConfig(Configuration)}. The byte limit applies to the handshake as a whole.
+     *
+     * @param in     the stream to read from.
+     * @param config the configuration to read the filter limits from.
+     * @return a new {@link ObjectInputStream}.
+     * @throws IOException if the stream header cannot be read.
+     */
+    public static ObjectInputStream newObjectInputStream(InputStream in, Configuration config) throws IOException {
+        ObjectInputStream inStream = new ObjectInputStream(in);
+        inStream.setObjectInputFilter(SerializationFilter.fromConfig(config));
+        return inStream;
+    }
+
+    /**
+     * Creates the reader for the rest of the session.
+     * <p>
+     * The size of binary frames is limited by the {@code maxFrameSize} property and the number of requests deferred by
+     * {@link ProtocolReader#receive(int)} by the {@code maxDeferredRequests} property.
+     *
+     * @param features         the negotiated features.
+     * @param inStream         the stream used during the handshake, created by {@link #newObjectInputStream}.
+     * @param in               the underlying stream of {@code inStream}.
+     * @param config           the configuration to read the limits from.
+     * @param compressionStats the statistics to record decompression in.
+     * @return a binary reader if {@link #BINARY} was negotiated, a serialization reader otherwise.
+     */
+    public static ProtocolReader newReader(int features,
+                                           ObjectInputStream inStream,
+                                           InputStream in,
+                                           Configuration config,
+                                           CompressionStats compressionStats) {
+        if ((features & BINARY) == 0) {
+            ObjectInputFilter filter = inStream.getObjectInputFilter();
+            return new ObjectProtocolReader(inStream,
+                    filter instanceof SerializationFilter ? (SerializationFilter) filter : null);
+        }
+        return new BinaryProtocolReader(in,
+                getMaxFrameSize(config),
+                getInt(config, "maxDeferredRequests", DEFAULT_MAX_DEFERRED_REQUESTS),
+                SerializationFilter.fromConfig(config),
+                (features & COMPRESSION) != 0 ? new Inflater() : null,
+                compressionStats);
+    }
+
+    /**
+     * Creates the writer for the rest of the session.
+     * <p>
+     * A serialization writer resets its stream every {@code serializationResetInterval} objects. If
+     * {@link #COMPRESSION} was negotiated, a binary writer deflates payloads of at least {@code compressionThreshold}
+     * bytes with the {@code compressionLevel} property as the level.
+     *
+     * @param features         the negotiated features.
+     * @param outStream        the stream used during the handshake, which must have been flushed.
+     * @param out              the underlying stream of {@code outStream}.
+     * @param config           the configuration to read the reset interval and compression settings from.
+     * @param compressionStats the statistics to record compression in.
+     * @return a binary writer if {@link #BINARY} was negotiated, a serialization writer otherwise.
+     */
+    public static ProtocolWriter newWriter(int features,
+                                           ObjectOutputStream outStream,
+                                           OutputStream out,
+                                           Configuration config,
+                                           CompressionStats compressionStats) {
+        if ((features & BINARY) == 0) {
+            return new ObjectProtocolWriter(outStream,
+                    getInt(config, "serializationResetInterval", DEFAULT_SERIALIZATION_RESET_INTERVAL));
+        }
+        return newBinaryWriter(features, out, (features & PIPELINING) != 0, config, compressionStats);
+    }
+
+    private static BinaryProtocolWriter newBinaryWriter(int features,
+                                                        OutputStream out,
+                                                        boolean isCorrelated,
+                                                        Configuration config,
+                                                        CompressionStats compressionStats) {
+        if ((features & COMPRESSION) == 0) {
+            return new BinaryProtocolWriter(out, isCorrelated, getMaxFrameSize(config));
+        }
+        return new BinaryProtocolWriter(out,
+                isCorrelated,
+                getMaxFrameSize(config),
+                new Deflater(getInt(config, "compressionLevel", DEFAULT_COMPRESSION_LEVEL)),
+                getInt(config, "compressionThreshold", DEFAULT_COMPRESSION_THRESHOLD),
+                compressionStats);
+    }
+
+    /**
+     * Creates a writer of pushed messages, which shares the stream of the session's writer.
+     * <p>
+     * A binary writer writes each frame with a single call, so frames do not interleave as long as each write to
+     * {@code out} is atomic.
+     *
+     * @param features         the negotiated features.
+     * @param out              the stream to write frames to.
+     * @param config           the configuration to read the compression settings from.
+     * @param compressionStats the statistics to record compression in.
+     * @return a writer of frames with correlation id {@code 0}, or {@code null} if {@link #PUSH} was not negotiated.
+     */
+    public static ProtocolWriter newPushWriter(int features,
+                                               OutputStream out,
+                                               Configuration config,
+                                               CompressionStats compressionStats) {
+        if ((features & PUSH) == 0) {
+            return null;
+        }
+        ProtocolWriter writer = newBinaryWriter(features, out, true, config, compressionStats);
+        writer.setCorrelationId(0);
+        return writer;
+    }
+}
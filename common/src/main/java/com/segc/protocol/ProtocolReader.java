@@ -0,0 +1,88 @@
+package com.segc.protocol;
+
+import com.segc.Message;
+import com.segc.Opcode;
+import com.segc.transaction.SignedTransaction;
+import com.segc.transaction.WineTransaction;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Reads the fields of protocol messages. {@link #receive()} must be called before reading each message.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public interface ProtocolReader {
+
+    /**
+     * Waits for the next message.
+     */
+    void receive() throws IOException;
+
+    /**
+     * Waits for the next message with the given correlation id. Messages with other ids received in the meantime are
+     * deferred and returned, in order, by the following calls to {@link #receive()}.
+     *
+     * @param correlationId the correlation id of the expected message.
+     */
+    void receive(int correlationId) throws IOException;
+
+    /**
+     * Waits for the next message, which becomes the current message if it has the given correlation id, and is
+     * otherwise deferred like the messages skipped by {@link #receive(int)}. A single message is read, so a reader of
+     * a stream that does not block can tell how far it got.
+     *
+     * @param correlationId the correlation id of the expected message.
+     * @return {@code true} if the message has the given correlation id, {@code false} if it was deferred.
+     */
+    boolean receiveOrDefer(int correlationId) throws IOException;
+
+    /**
+     * Returns the correlation id of the current message, or {@code 0} if {@link Protocol#PIPELINING} was not
+     * negotiated.
+     */
+    int getCorrelationId();
+
+    /**
+     * Releases the buffers of the current message, which must not be read any further, so a session that stays idle
+     * after a large message does not keep them. {@link #receive()} releases them as well before waiting.
+     */
+    void release();
+
+    /**
+     * Returns whether there are deferred messages, which {@link #receive()} returns without blocking.
+     */
+    boolean hasDeferred();
+
+    Opcode readOpcode() throws IOException;
+
+    String readString() throws IOException;
+
+    int readInt() throws IOException;
+
+    long readLong() throws IOException;
+
+    double readDouble() throws IOException;
+
+    byte[] readBytes() throws IOException;
+
+    Message readMessage() throws IOException;
+
+    WineTransaction readWineTransaction() throws IOException;
+
+    SignedTransaction readSignedTransaction() throws IOException;
+
+    List<SignedTransaction> readTransactions() throws IOException;
+
+    /**
+     * Reads an object that has no explicit encoding using Java serialization.
+     *
+     * @param clazz the expected class of the object.
+     * @return the object read.
+     */
+    <T extends Serializable> T readObject(Class<T> clazz) throws IOException;
+}
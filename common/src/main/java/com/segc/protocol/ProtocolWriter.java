@@ -0,0 +1,60 @@
+package com.segc.protocol;
+
+import com.segc.Message;
+import com.segc.Opcode;
+import com.segc.transaction.SignedTransaction;
+import com.segc.transaction.WineTransaction;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Writes the fields of protocol messages. A message is only sent once {@link #send()} is called.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public interface ProtocolWriter {
+
+    void writeOpcode(Opcode opcode) throws IOException;
+
+    void writeString(String s) throws IOException;
+
+    void writeInt(int i) throws IOException;
+
+    void writeLong(long l) throws IOException;
+
+    void writeDouble(double d) throws IOException;
+
+    void writeBytes(byte[] b) throws IOException;
+
+    void writeMessage(Message message) throws IOException;
+
+    void writeWineTransaction(WineTransaction transaction) throws IOException;
+
+    void writeSignedTransaction(SignedTransaction transaction) throws IOException;
+
+    void writeTransactions(List<SignedTransaction> transactions) throws IOException;
+
+    /**
+     * Writes an object that has no explicit encoding using Java serialization.
+     *
+     * @param obj the object to write.
+     */
+    void writeObject(Serializable obj) throws IOException;
+
+    /**
+     * Sets the correlation id sent with the following messages, which is ignored unless
+     * {@link Protocol#PIPELINING} was negotiated.
+     *
+     * @param correlationId the id of the request being answered or sent.
+     */
+    void setCorrelationId(int correlationId);
+
+    /**
+     * Completes the current message and sends it.
+     */
+    void send() throws IOException;
+}
@@ -0,0 +1,71 @@
+package com.segc.protocol;
+
+import com.segc.Configuration;
+
+import java.io.ObjectInputFilter;
+
+/**
+ * An {@link ObjectInputFilter} that bounds the graph depth, the array lengths and the number of bytes of each object
+ * read from a peer.
+ * <p>
+ * The byte limit applies from the last call to {@link #startObject()}, so a long-lived stream is not rejected for
+ * the total amount of data it has carried. Accepted objects are left to the process-wide filter, if any.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class SerializationFilter implements ObjectInputFilter {
+    private final long maxDepth;
+    private final long maxArrayLength;
+    private final long maxBytes;
+    private boolean isNewObject = true;
+    private long startBytes;
+
+    /**
+     * Creates a {@link SerializationFilter}.
+     *
+     * @param maxDepth       the maximum depth of an object graph.
+     * @param maxArrayLength the maximum length of an array.
+     * @param maxBytes       the maximum number of bytes of an object.
+     */
+    public SerializationFilter(long maxDepth, long maxArrayLength, long maxBytes) {
+        this.maxDepth = maxDepth;
+        this.maxArrayLength = maxArrayLength;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Creates a {@link SerializationFilter} with the {@code serialMaxDepth}, {@code serialMaxArrayLength} and
+     * {@code serialMaxBytes} properties.
+     *
+     * @param config the configuration to read.
+     * @return a new {@link SerializationFilter}.
+     */
+    public static SerializationFilter fromConfig(Configuration config) {
+        return new SerializationFilter(Long.parseLong(config.getValue("serialMaxDepth")),
+                Long.parseLong(config.getValue("serialMaxArrayLength")),
+                Long.parseLong(config.getValue("serialMaxBytes")));
+    }
+
+    /**
+     * Starts counting the bytes of a new top-level object.
+     */
+    public void startObject() {
+        isNewObject = true;
+    }
+
+    @Override
+    public Status checkInput(FilterInfo info) {
+        if (isNewObject) {
+            isNewObject = false;
+            startBytes = info.streamBytes();
+        }
+        if (info.depth() > maxDepth
+                || info.arrayLength() > maxArrayLength
+                || info.streamBytes() - startBytes > maxBytes) {
+            return Status.REJECTED;
+        }
+        return Status.UNDECIDED;
+    }
+}
@@ -1,18 +1,35 @@
 package com.segc.services;
 
+import com.segc.Configuration;
+
 import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import javax.security.auth.DestroyFailedException;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.cert.Certificate;
+import java.security.interfaces.ECPublicKey;
 import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A class that handles encryption and decryption.
+ * <p>
+ * {@link Signature} and {@link Cipher} engines are taken from pools for each operation, so a single service can be
+ * used by many threads at once without sharing an engine or creating one per operation.
+ * <p>
+ * Keys may be RSA, EC or EdDSA keys, even in a single key store. Each key signs and verifies with the signature
+ * algorithm configured for its type.
  *
  * @author fc54685 Francisco Correia
  * @author fc55955 Alexandre Fonseca
@@ -20,19 +37,30 @@ import java.util.Optional;
  */
 public class CipherService {
     private static final SecureRandom sr = new SecureRandom();
+    private static final int MAX_IDLE_ENGINES = 4 * Runtime.getRuntime().availableProcessors();
+    private static final byte ENVELOPE_RSA = 1;
+    private static final byte ENVELOPE_ECDH = 2;
+    private static final String ENVELOPE_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String ENVELOPE_WRAP_TRANSFORMATION = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+    private static final int ENVELOPE_KEY_SIZE = 256;
+    private static final int ENVELOPE_NONCE_SIZE = 12;
+    private static final int ENVELOPE_TAG_SIZE = 128;
     private final KeyStore ks;
     private final String defaultAlias;
     private final PrivateKey defaultPrivateKey;
     private final Certificate defaultCertificate;
-    private final Signature signature;
+    private final Map<String, String> signatureAlgorithms;
+    private final Map<String, EnginePool<Signature>> signatures = new ConcurrentHashMap<>();
+    private final Map<String, EnginePool<Cipher>> ciphers = new ConcurrentHashMap<>();
 
     /**
      * Creates a {@link CipherService} with the given key store file, password and format.
      *
-     * @param signatureEngine the signature engine to use.
-     * @param defaultAlias    the default alias to use.
+     * @param defaultAlias        the default alias to use.
+     * @param signatureAlgorithms the signature algorithm of each key type ({@code RSA}, {@code EC} or
+     *                            {@code EdDSA}).
      */
-    public CipherService(String defaultAlias, String signatureEngine) {
+    public CipherService(String defaultAlias, Map<String, String> signatureAlgorithms) {
 
         String keyStore = System.getProperty("javax.net.ssl.keyStore");
         char[] keyStorePassword = System.getProperty("javax.net.ssl.keyStorePassword").toCharArray();
@@ -46,12 +74,35 @@ public class CipherService {
                                              .orElseThrow(() -> new NoSuchElementException(
                                                      "Alias " + defaultAlias + " does not exist."));
             this.defaultCertificate = getCertificate(defaultAlias);
-            this.signature = Signature.getInstance(signatureEngine);
-        } catch (UnrecoverableKeyException | NoSuchAlgorithmException e) {
+            this.signatureAlgorithms = Map.copyOf(signatureAlgorithms);
+            // fails early on an unknown algorithm, and leaves one engine ready
+            EnginePool<Signature> pool = getSignaturePool(defaultPrivateKey);
+            pool.release(pool.borrow());
+        } catch (UnrecoverableKeyException | InvalidKeyException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Creates a {@link CipherService} with the {@code signatureAlgorithm} property for RSA keys and the
+     * {@code signatureAlgorithm.EC} and {@code signatureAlgorithm.EdDSA} properties for EC and EdDSA keys.
+     *
+     * @param defaultAlias the default alias to use.
+     * @param config       the configuration to read.
+     * @return a new {@link CipherService}.
+     */
+    public static CipherService fromConfig(String defaultAlias, Configuration config) {
+        Map<String, String> signatureAlgorithms = new HashMap<>();
+        signatureAlgorithms.put("RSA", config.getValue("signatureAlgorithm"));
+        for (String keyType : new String[]{"EC", "EdDSA"}) {
+            String algorithm = config.getValue("signatureAlgorithm." + keyType);
+            if (algorithm != null) {
+                signatureAlgorithms.put(keyType, algorithm);
+            }
+        }
+        return new CipherService(defaultAlias, signatureAlgorithms);
+    }
+
     /**
      * Returns the default certificate (i.e., that which is identified by the default alias).
      *
@@ -108,10 +159,19 @@ public class CipherService {
      * @return the signed (encrypted) object.
      */
     public SignedObject sign(Serializable obj, PrivateKey privateKey) {
+        EnginePool<Signature> pool;
+        try {
+            pool = getSignaturePool(privateKey);
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException(e);
+        }
+        Signature signature = pool.borrow();
         try {
             return new SignedObject(obj, privateKey, signature);
         } catch (IOException | InvalidKeyException | SignatureException e) {
             throw new RuntimeException(e);
+        } finally {
+            pool.release(signature);
         }
     }
 
@@ -132,7 +192,23 @@ public class CipherService {
      * @return {@code true} true if the signature is valid, {@code false} otherwise.
      */
     public boolean verify(SignedObject obj, Certificate certificate) throws SignatureException, InvalidKeyException {
-        return obj.verify(certificate.getPublicKey(), signature);
+        return verify(obj, certificate.getPublicKey());
+    }
+
+    /**
+     * Verifies the given {@link SignedObject} using the given {@link PublicKey}.
+     *
+     * @param obj the object to verify.
+     * @return {@code true} true if the signature is valid, {@code false} otherwise.
+     */
+    public boolean verify(SignedObject obj, PublicKey key) throws SignatureException, InvalidKeyException {
+        EnginePool<Signature> pool = getSignaturePool(key);
+        Signature signature = pool.borrow();
+        try {
+            return obj.verify(key, signature);
+        } finally {
+            pool.release(signature);
+        }
     }
 
     /**
@@ -176,13 +252,15 @@ public class CipherService {
     }
 
     private byte[] encrypt(byte[] data, Key key) {
+        EnginePool<Cipher> pool = getCipherPool(key.getAlgorithm());
+        Cipher cipher = pool.borrow();
         try {
-            Cipher cipher = Cipher.getInstance(key.getAlgorithm());
             cipher.init(Cipher.ENCRYPT_MODE, key);
             return cipher.doFinal(data);
-        } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException | IllegalBlockSizeException |
-                 BadPaddingException e) {
+        } catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
             throw new RuntimeException(e);
+        } finally {
+            pool.release(cipher);
         }
     }
 
@@ -190,40 +268,206 @@ public class CipherService {
         return decrypt(data, defaultPrivateKey);
     }
 
+    /**
+     * Encrypts the given data into an {@link Envelope} for the owner of the {@link Certificate} identified by the
+     * given alias. The content key is wrapped with an RSA key, or agreed with an EC key through an ephemeral EC key,
+     * so the data may be of any size.
+     *
+     * @param data  the data to encrypt.
+     * @param alias the alias of the certificate of the recipient.
+     * @return the envelope.
+     * @throws IllegalArgumentException if the key of the recipient can only be used for signing.
+     */
+    public Envelope seal(byte[] data, String alias) {
+        PublicKey recipientKey = getCertificate(alias).getPublicKey();
+        byte version;
+        byte[] keyMaterial;
+        SecretKey contentKey;
+        try {
+            switch (recipientKey.getAlgorithm()) {
+                case "RSA":
+                    version = ENVELOPE_RSA;
+                    KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+                    keyGenerator.init(ENVELOPE_KEY_SIZE, sr);
+                    contentKey = keyGenerator.generateKey();
+                    keyMaterial = wrapContentKey(contentKey, recipientKey);
+                    break;
+                case "EC":
+                    version = ENVELOPE_ECDH;
+                    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+                    keyPairGenerator.initialize(((ECPublicKey) recipientKey).getParams(), sr);
+                    KeyPair ephemeralKeys = keyPairGenerator.generateKeyPair();
+                    keyMaterial = ephemeralKeys.getPublic().getEncoded();
+                    contentKey = agreeContentKey(ephemeralKeys.getPrivate(), recipientKey, keyMaterial);
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                            "Cannot encrypt for " + alias + ": " + recipientKey.getAlgorithm() + " keys only sign.");
+            }
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        byte[] nonce = new byte[ENVELOPE_NONCE_SIZE];
+        sr.nextBytes(nonce);
+        byte[] header = ByteBuffer.allocate(3 + keyMaterial.length + nonce.length)
+                                  .put(version)
+                                  .putShort((short) keyMaterial.length)
+                                  .put(keyMaterial)
+                                  .put(nonce)
+                                  .array();
+        EnginePool<Cipher> pool = getCipherPool(ENVELOPE_TRANSFORMATION);
+        Cipher cipher = pool.borrow();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, contentKey, new GCMParameterSpec(ENVELOPE_TAG_SIZE, nonce));
+            cipher.updateAAD(header);
+            return new Envelope(header, cipher.doFinal(data));
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException |
+                 BadPaddingException e) {
+            throw new RuntimeException(e);
+        } finally {
+            pool.release(cipher);
+        }
+    }
+
+    /**
+     * Decrypts an {@link Envelope} sealed for the owner of the default {@link PrivateKey}.
+     *
+     * @param envelope the envelope to decrypt.
+     * @return the decrypted data.
+     * @throws GeneralSecurityException if the header is malformed, or the envelope was not sealed for this key or
+     *                                  has been tampered with.
+     */
+    public byte[] open(Envelope envelope) throws GeneralSecurityException {
+        ByteBuffer header = ByteBuffer.wrap(envelope.getHeader());
+        if (header.remaining() < 3) {
+            throw new GeneralSecurityException("Malformed envelope header.");
+        }
+        byte version = header.get();
+        int keyMaterialLength = header.getShort() & 0xFFFF;
+        if (header.remaining() != keyMaterialLength + ENVELOPE_NONCE_SIZE) {
+            throw new GeneralSecurityException("Malformed envelope header.");
+        }
+        byte[] keyMaterial = new byte[keyMaterialLength];
+        byte[] nonce = new byte[ENVELOPE_NONCE_SIZE];
+        header.get(keyMaterial).get(nonce);
+        Key contentKey;
+        if (version == ENVELOPE_RSA) {
+            contentKey = unwrapContentKey(keyMaterial);
+        } else if (version == ENVELOPE_ECDH) {
+            PublicKey ephemeralKey = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(keyMaterial));
+            contentKey = agreeContentKey(defaultPrivateKey, ephemeralKey, keyMaterial);
+        } else {
+            throw new GeneralSecurityException("Unsupported envelope version " + version + ".");
+        }
+        EnginePool<Cipher> pool = getCipherPool(ENVELOPE_TRANSFORMATION);
+        Cipher cipher = pool.borrow();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, contentKey, new GCMParameterSpec(ENVELOPE_TAG_SIZE, nonce));
+            cipher.updateAAD(envelope.getHeader());
+            return cipher.doFinal(envelope.getContent());
+        } finally {
+            pool.release(cipher);
+        }
+    }
+
+    private byte[] wrapContentKey(SecretKey contentKey, PublicKey recipientKey) throws GeneralSecurityException {
+        EnginePool<Cipher> pool = getCipherPool(ENVELOPE_WRAP_TRANSFORMATION);
+        Cipher cipher = pool.borrow();
+        try {
+            cipher.init(Cipher.WRAP_MODE, recipientKey);
+            return cipher.wrap(contentKey);
+        } finally {
+            pool.release(cipher);
+        }
+    }
+
+    private Key unwrapContentKey(byte[] wrappedKey) throws GeneralSecurityException {
+        EnginePool<Cipher> pool = getCipherPool(ENVELOPE_WRAP_TRANSFORMATION);
+        Cipher cipher = pool.borrow();
+        try {
+            cipher.init(Cipher.UNWRAP_MODE, defaultPrivateKey);
+            return cipher.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+        } finally {
+            pool.release(cipher);
+        }
+    }
+
+    /**
+     * Derives a content key from the ECDH secret of the given keys, hashed along with the ephemeral public key of
+     * the envelope, so each envelope has its own content key.
+     */
+    private SecretKey agreeContentKey(PrivateKey privateKey, PublicKey publicKey, byte[] ephemeralKey)
+            throws GeneralSecurityException {
+        KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
+        keyAgreement.init(privateKey);
+        keyAgreement.doPhase(publicKey, true);
+        byte[] secret = keyAgreement.generateSecret();
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(secret);
+        byte[] key = md.digest(ephemeralKey);
+        Arrays.fill(secret, (byte) 0);
+        return new SecretKeySpec(key, "AES");
+    }
+
     private byte[] decrypt(byte[] data, Key key) {
+        EnginePool<Cipher> pool = getCipherPool(key.getAlgorithm());
+        Cipher cipher = pool.borrow();
         try {
-            Cipher cipher = Cipher.getInstance(key.getAlgorithm());
             cipher.init(Cipher.DECRYPT_MODE, key);
             return cipher.doFinal(data);
-        } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException | IllegalBlockSizeException |
-                 BadPaddingException e) {
+        } catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
             throw new RuntimeException(e);
+        } finally {
+            pool.release(cipher);
         }
     }
 
-    public void decrypt(FileInputStream fis, FileOutputStream fos, Key key, AlgorithmParameterSpec spec) {
+    public void decrypt(InputStream fis, OutputStream fos, Key key, AlgorithmParameterSpec spec) {
+        EnginePool<Cipher> pool = getCipherPool(key.getAlgorithm());
+        Cipher cipher = pool.borrow();
         try {
-            Cipher cipher = Cipher.getInstance(key.getAlgorithm());
             cipher.init(Cipher.DECRYPT_MODE, key, spec);
             cipher(fis, fos, cipher);
-        } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException |
-                 InvalidAlgorithmParameterException | IOException e) {
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            pool.release(cipher);
         }
     }
 
-    public void encrypt(FileInputStream fis, FileOutputStream fos, Key key, AlgorithmParameterSpec spec) {
+    public void encrypt(InputStream fis, OutputStream fos, Key key, AlgorithmParameterSpec spec) {
+        EnginePool<Cipher> pool = getCipherPool(key.getAlgorithm());
+        Cipher cipher = pool.borrow();
         try {
-            Cipher cipher = Cipher.getInstance(key.getAlgorithm());
             cipher.init(Cipher.ENCRYPT_MODE, key, spec);
             cipher(fis, fos, cipher);
-        } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException |
-                 InvalidAlgorithmParameterException | IOException e) {
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            pool.release(cipher);
+        }
+    }
+
+    /**
+     * @throws InvalidKeyException if no signature algorithm is configured for the type of the given key.
+     */
+    private EnginePool<Signature> getSignaturePool(Key key) throws InvalidKeyException {
+        // EdDSA keys may name their curve instead, depending on the provider
+        String keyType = key.getAlgorithm().startsWith("Ed") ? "EdDSA" : key.getAlgorithm();
+        String algorithm = signatureAlgorithms.get(keyType);
+        if (algorithm == null) {
+            throw new InvalidKeyException("No signature algorithm configured for " + keyType + " keys.");
         }
+        return signatures.computeIfAbsent(algorithm,
+                a -> new EnginePool<>(() -> Signature.getInstance(a), MAX_IDLE_ENGINES));
+    }
+
+    private EnginePool<Cipher> getCipherPool(String transformation) {
+        return ciphers.computeIfAbsent(transformation,
+                t -> new EnginePool<>(() -> Cipher.getInstance(t), MAX_IDLE_ENGINES));
     }
 
-    private void cipher(FileInputStream fis, FileOutputStream fos, Cipher cipher) throws IOException {
+    private void cipher(InputStream fis, OutputStream fos, Cipher cipher) throws IOException {
         CipherInputStream cis = new CipherInputStream(fis, cipher);
         byte[] b = new byte[16];
         int i = cis.read(b);
@@ -0,0 +1,67 @@
+package com.segc.services;
+
+import java.security.GeneralSecurityException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of cryptographic engines, such as {@link java.security.Signature} and {@link javax.crypto.Cipher} instances,
+ * which are not thread-safe and are costly to create.
+ * <p>
+ * Each engine is used by a single thread between {@link #borrow()} and {@link #release(Object)}, and must be
+ * initialized by that thread before use. A pool creates engines on demand and keeps up to a given number of idle
+ * engines, most recently released first.
+ *
+ * @param <T> the type of the engines.
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+final class EnginePool<T> {
+    private final Factory<T> factory;
+    private final int maxIdle;
+    private final Deque<T> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    EnginePool(Factory<T> factory, int maxIdle) {
+        this.factory = factory;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Takes an idle engine from the pool, or creates one if there is none.
+     *
+     * @return an engine for the exclusive use of the caller.
+     */
+    T borrow() {
+        T engine = idle.pollFirst();
+        if (engine != null) {
+            idleCount.decrementAndGet();
+            return engine;
+        }
+        try {
+            return factory.create();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns an engine to the pool, unless the pool already has as many idle engines as it may keep.
+     *
+     * @param engine an engine taken with {@link #borrow()}.
+     */
+    void release(T engine) {
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offerFirst(engine);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    @FunctionalInterface
+    interface Factory<T> {
+        T create() throws GeneralSecurityException;
+    }
+}
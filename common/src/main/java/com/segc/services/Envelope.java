@@ -0,0 +1,38 @@
+package com.segc.services;
+
+/**
+ * Data encrypted with an AES-GCM content key, which the recipient recovers with its private key.
+ * <p>
+ * The header holds, in order, a format version byte, the length of the key material as two bytes, the key material
+ * and the GCM nonce. It is authenticated along with the content, which is the ciphertext followed by the GCM tag.
+ * <p>
+ * The version byte selects how the content key is recovered from the key material:
+ * <ul>
+ *     <li>{@code 1}, for RSA recipients: the key material is a random content key, encrypted with the recipient's RSA
+ *     public key.</li>
+ *     <li>{@code 2}, for EC recipients: the key material is the encoded public key of an ephemeral EC key pair, and
+ *     the content key is derived from the ECDH secret of that key pair and the recipient's key, hashed with SHA-256
+ *     along with the key material. No key is encrypted.</li>
+ * </ul>
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class Envelope {
+    private final byte[] header;
+    private final byte[] content;
+
+    public Envelope(byte[] header, byte[] content) {
+        this.header = header;
+        this.content = content;
+    }
+
+    public byte[] getHeader() {
+        return header;
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+}
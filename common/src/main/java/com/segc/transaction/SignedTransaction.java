@@ -1,5 +1,8 @@
 package com.segc.transaction;
 
+import com.segc.protocol.BinaryDecoder;
+import com.segc.protocol.BinaryEncoder;
+
 import java.io.IOException;
 import java.security.*;
 import java.util.Base64;
@@ -33,6 +36,28 @@ public class SignedTransaction implements Transaction {
         return t;
     }
 
+    /**
+     * Writes the binary encoding of this transaction.
+     * <p>
+     * A {@link SignedObject} can only be rebuilt through deserialization, so it is encoded as a serialized blob.
+     *
+     * @param encoder the encoder to write to.
+     */
+    public void encode(BinaryEncoder encoder) {
+        encoder.writeSerializable(signedObject);
+    }
+
+    /**
+     * Reads a transaction written by {@link #encode(BinaryEncoder)}.
+     *
+     * @param decoder the decoder to read from.
+     * @return the decoded transaction.
+     * @throws IOException if the input is malformed.
+     */
+    public static SignedTransaction decode(BinaryDecoder decoder) throws IOException {
+        return new SignedTransaction(decoder.readSerializable(SignedObject.class));
+    }
+
     @Override
     public String getItemId() {
         return getTransaction().getItemId();
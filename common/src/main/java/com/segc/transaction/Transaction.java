@@ -18,6 +18,9 @@ public interface Transaction extends Serializable {
 
     Type getType();
 
+    /**
+     * The binary protocol encodes a type as its ordinal, so new constants must only be appended.
+     */
     enum Type {
         BUY,
         SELL
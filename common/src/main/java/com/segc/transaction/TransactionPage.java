@@ -0,0 +1,46 @@
+package com.segc.transaction;
+
+import java.util.List;
+
+/**
+ * A page of the transactions in the blockchain, starting at the position given by a resume token.
+ * <p>
+ * A resume token is opaque to clients. The token of a page points just past its last transaction, so a client that
+ * keeps it can later fetch only the transactions added since.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class TransactionPage {
+    private final List<SignedTransaction> transactions;
+    private final String resumeToken;
+    private final int remaining;
+
+    public TransactionPage(List<SignedTransaction> transactions, String resumeToken, int remaining) {
+        this.transactions = transactions;
+        this.resumeToken = resumeToken;
+        this.remaining = remaining;
+    }
+
+    /**
+     * @return the transactions of this page, in blockchain order.
+     */
+    public List<SignedTransaction> getTransactions() {
+        return transactions;
+    }
+
+    /**
+     * @return the token to resume listing from after this page.
+     */
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    /**
+     * @return the number of transactions after this page when it was read.
+     */
+    public int getRemaining() {
+        return remaining;
+    }
+}
@@ -1,5 +1,10 @@
 package com.segc.transaction;
 
+import com.segc.protocol.BinaryDecoder;
+import com.segc.protocol.BinaryEncoder;
+
+import java.net.ProtocolException;
+
 /**
  * @author fc54685 Francisco Correia
  * @author fc55955 Alexandre Fonseca
@@ -46,6 +51,38 @@ public class WineTransaction implements Transaction {
         return type;
     }
 
+    /**
+     * Writes the binary encoding of this transaction.
+     *
+     * @param encoder the encoder to write to.
+     */
+    public void encode(BinaryEncoder encoder) {
+        encoder.writeString(wineName)
+               .writeString(authorId)
+               .writeInt(quantity)
+               .writeDouble(costPerUnit)
+               .writeByte(type.ordinal());
+    }
+
+    /**
+     * Reads a transaction written by {@link #encode(BinaryEncoder)}.
+     *
+     * @param decoder the decoder to read from.
+     * @return the decoded transaction.
+     * @throws ProtocolException if the input is malformed.
+     */
+    public static WineTransaction decode(BinaryDecoder decoder) throws ProtocolException {
+        String wineName = decoder.readString();
+        String authorId = decoder.readString();
+        int quantity = decoder.readInt();
+        double costPerUnit = decoder.readDouble();
+        byte type = decoder.readByte();
+        if (type < 0 || type >= Type.values().length) {
+            throw new ProtocolException("Unknown transaction type: " + type);
+        }
+        return new WineTransaction(wineName, authorId, quantity, costPerUnit, Type.values()[type]);
+    }
+
     @Override
     public String toString() {
         String author = type == Type.BUY
@@ -0,0 +1,178 @@
+package com.segc.protocol;
+
+import com.segc.Message;
+import com.segc.Opcode;
+import com.segc.exception.FrameTooLargeException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+class BinaryProtocolTest {
+    private static final int MAX_FRAME_SIZE = 1024 * 1024;
+    private static final int COMPRESSION_THRESHOLD = 1024;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final CompressionStats stats = new CompressionStats();
+
+    @Test
+    void roundTripsEveryType() throws IOException {
+        BinaryProtocolWriter writer = new BinaryProtocolWriter(out, false);
+        writer.writeOpcode(Opcode.TALK);
+        writer.writeString("olá");
+        writer.writeInt(-7);
+        writer.writeLong(Long.MAX_VALUE);
+        writer.writeDouble(12.5);
+        writer.writeBytes(new byte[]{1, 2, 3});
+        writer.writeMessage(new Message("ana", new byte[]{4, 5}, new byte[]{6}).withId(9));
+        writer.send();
+
+        ProtocolReader reader = newReader(null);
+        reader.receive();
+        assertEquals(Opcode.TALK, reader.readOpcode());
+        assertEquals("olá", reader.readString());
+        assertEquals(-7, reader.readInt());
+        assertEquals(Long.MAX_VALUE, reader.readLong());
+        assertEquals(12.5, reader.readDouble());
+        assertArrayEquals(new byte[]{1, 2, 3}, reader.readBytes());
+        Message message = reader.readMessage();
+        assertEquals("ana", message.getAuthor());
+        assertArrayEquals(new byte[]{4, 5}, message.getContent());
+        assertArrayEquals(new byte[]{6}, message.getHeader());
+    }
+
+    @Test
+    void defersFramesOfOtherRequests() throws IOException {
+        BinaryProtocolWriter writer = new BinaryProtocolWriter(out, true);
+        for (int correlationId = 1; correlationId <= 3; correlationId++) {
+            writer.setCorrelationId(correlationId);
+            writer.writeInt(correlationId * 10);
+            writer.send();
+        }
+
+        ProtocolReader reader = newReader(null);
+        reader.receive(3);
+        assertEquals(30, reader.readInt());
+        assertTrue(reader.hasDeferred());
+        reader.receive();
+        assertEquals(1, reader.getCorrelationId());
+        assertEquals(10, reader.readInt());
+        reader.receive();
+        assertEquals(2, reader.getCorrelationId());
+        assertEquals(20, reader.readInt());
+        assertFalse(reader.hasDeferred());
+    }
+
+    @Test
+    void compressesLargeCompressiblePayloads() throws IOException {
+        byte[] label = new byte[64 * 1024];
+        Arrays.fill(label, (byte) 'x');
+        byte[] small = {1, 2, 3};
+        BinaryProtocolWriter writer = newCompressingWriter();
+        writer.writeBytes(label);
+        writer.send();
+        int compressedSize = out.size();
+        writer.writeBytes(small);
+        writer.send();
+
+        assertTrue(compressedSize < label.length / 10);
+        assertEquals(1, stats.getCompressedFrames());
+        ProtocolReader reader = newReader(new Inflater());
+        reader.receive();
+        assertArrayEquals(label, reader.readBytes());
+        reader.receive();
+        assertArrayEquals(small, reader.readBytes());
+        assertEquals(1, stats.getDecompressedFrames());
+    }
+
+    @Test
+    void sendsIncompressiblePayloadsUncompressed() throws IOException {
+        byte[] noise = new byte[8 * 1024];
+        new Random(42).nextBytes(noise);
+        BinaryProtocolWriter writer = newCompressingWriter();
+        writer.writeBytes(noise);
+        writer.send();
+
+        assertEquals(0, stats.getCompressedFrames());
+        assertEquals(1, stats.getIncompressibleFrames());
+        ProtocolReader reader = newReader(null); // so a compressed frame would be rejected
+        reader.receive();
+        assertArrayEquals(noise, reader.readBytes());
+    }
+
+    @Test
+    void rejectsCompressedFramesIfCompressionWasNotNegotiated() throws IOException {
+        BinaryProtocolWriter writer = newCompressingWriter();
+        writer.writeBytes(new byte[COMPRESSION_THRESHOLD * 4]);
+        writer.send();
+
+        ProtocolReader reader = newReader(null);
+        assertThrows(ProtocolException.class, reader::receive);
+    }
+
+    @Test
+    void rejectsFramesLargerThanTheLimit() throws IOException {
+        BinaryProtocolWriter writer = new BinaryProtocolWriter(out, false);
+        writer.writeBytes(new byte[MAX_FRAME_SIZE]);
+        writer.send();
+
+        ProtocolReader reader = newReader(null);
+        assertThrows(ProtocolException.class, reader::receive);
+    }
+
+    @Test
+    void sendsNothingForMessagesLargerThanTheLimit() throws IOException {
+        BinaryProtocolWriter writer = new BinaryProtocolWriter(out, false, MAX_FRAME_SIZE);
+        writer.writeBytes(new byte[MAX_FRAME_SIZE]);
+        assertThrows(FrameTooLargeException.class, writer::send);
+        assertEquals(0, out.size());
+
+        writer.writeOpcode(Opcode.ERROR); // the writer can still send the next message
+        writer.send();
+        ProtocolReader reader = newReader(null);
+        reader.receive();
+        assertEquals(Opcode.ERROR, reader.readOpcode());
+    }
+
+    @Test
+    void rejectsCompressedFramesThatInflatePastTheLimit() throws IOException {
+        BinaryProtocolWriter writer = newCompressingWriter();
+        writer.writeBytes(new byte[MAX_FRAME_SIZE]); // compresses to a small frame
+        writer.send();
+
+        ProtocolReader reader = newReader(new Inflater());
+        assertThrows(ProtocolException.class, reader::receive);
+    }
+
+    private BinaryProtocolWriter newCompressingWriter() {
+        // frames are not limited, so the limits of the reader can be tested
+        return new BinaryProtocolWriter(out,
+                false,
+                Integer.MAX_VALUE,
+                new Deflater(Deflater.BEST_SPEED),
+                COMPRESSION_THRESHOLD,
+                stats);
+    }
+
+    private ProtocolReader newReader(Inflater inflater) {
+        return new BinaryProtocolReader(new ByteArrayInputStream(out.toByteArray()),
+                MAX_FRAME_SIZE,
+                4,
+                new SerializationFilter(16, 1024, MAX_FRAME_SIZE),
+                inflater,
+                stats);
+    }
+}
@@ -0,0 +1,55 @@
+package com.segc.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+class ProtocolTest {
+    private static final int ALL = Protocol.BINARY | Protocol.PIPELINING | Protocol.PUSH | Protocol.COMPRESSION
+                                   | Protocol.SESSION_TICKETS;
+
+    @Test
+    void negotiatesHighestCommonVersion() {
+        assertEquals(Protocol.LEGACY_VERSION, Protocol.negotiateVersion(Protocol.LEGACY_VERSION));
+        assertEquals(Protocol.VERSION, Protocol.negotiateVersion(Protocol.VERSION));
+        assertEquals(Protocol.VERSION, Protocol.negotiateVersion(Protocol.VERSION + 1));
+        assertEquals(Protocol.LEGACY_VERSION, Protocol.negotiateVersion(-1));
+    }
+
+    @Test
+    void acceptsNoFeaturesFromLegacyClients() {
+        assertEquals(0, Protocol.negotiate(ALL, ALL, Protocol.LEGACY_VERSION));
+    }
+
+    @Test
+    void acceptsFeaturesOfferedAndSupported() {
+        assertEquals(ALL, Protocol.negotiate(ALL, ALL, Protocol.VERSION));
+        assertEquals(Protocol.BINARY | Protocol.COMPRESSION,
+                Protocol.negotiate(Protocol.BINARY | Protocol.COMPRESSION, ALL, Protocol.VERSION));
+        assertEquals(Protocol.BINARY,
+                Protocol.negotiate(ALL, Protocol.BINARY, Protocol.VERSION));
+    }
+
+    @Test
+    void neverAcceptsResumption() {
+        assertEquals(Protocol.BINARY,
+                Protocol.negotiate(Protocol.BINARY | Protocol.RESUMPTION, ALL | Protocol.RESUMPTION, Protocol.VERSION));
+    }
+
+    @Test
+    void requiresPipeliningForPush() {
+        assertEquals(Protocol.BINARY,
+                Protocol.negotiate(Protocol.BINARY | Protocol.PUSH, ALL, Protocol.VERSION));
+    }
+
+    @Test
+    void keepsOnlySessionTicketsWithoutBinaryFraming() {
+        assertEquals(Protocol.SESSION_TICKETS, Protocol.negotiate(ALL, ALL & ~Protocol.BINARY, Protocol.VERSION));
+        assertEquals(0, Protocol.negotiate(Protocol.PIPELINING | Protocol.COMPRESSION, ALL, Protocol.VERSION));
+    }
+}
@@ -4,6 +4,21 @@ TS_PASSWORD=${TS_PASSWORD:-trustpass}
 SERVER_KS_PASSWORD=${SERVER_KS_PASSWORD:-server123}
 SERVER_ALIAS=${SERVER_ALIAS:-server}
 OUTPUT_DIR=${OUTPUT_DIR:-keytool_data}
+# Algoritmo das chaves (RSA, EC ou Ed25519). Pode ser alterado para o servidor com SERVER_KEY_ALGORITHM e para cada
+# cliente com KEY_ALGORITHM_<cliente> (por exemplo, KEY_ALGORITHM_ana=EC).
+KEY_ALGORITHM=${KEY_ALGORITHM:-RSA}
+SERVER_KEY_ALGORITHM=${SERVER_KEY_ALGORITHM:-$KEY_ALGORITHM}
+
+# Imprime as opções do keytool para o algoritmo dado: RSA de 2048 bits, EC na curva P-256 ou Ed25519.
+key_options() {
+    case "$1" in
+        RSA) echo "-keyalg RSA -keysize 2048" ;;
+        EC) echo "-keyalg EC -groupname secp256r1" ;;
+        Ed25519) echo "-keyalg Ed25519" ;;
+        *) echo "Algoritmo de chaves desconhecido: $1" >&2; exit 1 ;;
+    esac
+}
+SERVER_KEY_OPTIONS=$(key_options "$SERVER_KEY_ALGORITHM") || exit 1
 
 set 'ana' 'joao' 'maria' 'pedro' 'ines' 'tiago'
 
@@ -13,12 +28,11 @@ for i do
     mkdir -p "$OUTPUT_DIR/client/$i"
 done
 
-# 2. Criar o par de chaves RSA de 2048 bits e o certificado auto-assinado do servidor.
+# 2. Criar o par de chaves e o certificado auto-assinado do servidor.
 keytool -genkeypair \
     -alias "$SERVER_ALIAS" \
     -dname "CN=server, OU=TintolmarketServer, OU=Grupo005, O=SegC, L=Lisbon, S=Lisbon, C=PT" \
-    -keyalg "RSA" \
-    -keysize "2048" \
+    $SERVER_KEY_OPTIONS \
     -storetype "PKCS12" \
     -keystore "$OUTPUT_DIR/server/keystore.p12" \
     -storepass "$SERVER_KS_PASSWORD"
@@ -41,11 +55,12 @@ keytool -importcert \
 # 5. Criar keystores para os vários clientes e acrescentar certificados à truststore comum.
 for i do
     # 5.1. Criar keystore do cliente.
+    eval "client_key_algorithm=\${KEY_ALGORITHM_$i:-\$KEY_ALGORITHM}"
+    client_key_options=$(key_options "$client_key_algorithm") || exit 1
     keytool -genkeypair \
         -alias "$i" \
         -dname "CN=client-$i, OU=Tintolmarket, OU=Grupo005, O=SegC, L=Lisbon, S=Lisbon, C=PT" \
-        -keyalg "RSA" \
-        -keysize "2048" \
+        $client_key_options \
         -storetype "PKCS12" \
         -keystore "$OUTPUT_DIR/client/$i/keystore.p12" \
         -storepass "$CLIENT_KS_PASSWORD"
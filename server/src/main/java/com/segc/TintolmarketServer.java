@@ -3,27 +3,52 @@
  */
 package com.segc;
 
+import com.segc.exception.DataIntegrityException;
 import com.segc.exception.DuplicateElementException;
+import com.segc.exception.FrameTooLargeException;
+import com.segc.net.AdmissionController;
+import com.segc.net.ConnectionExecutor;
+import com.segc.net.IncompleteInputException;
+import com.segc.net.MBeans;
+import com.segc.net.MonitoredInputStream;
+import com.segc.net.NioTransport;
+import com.segc.net.OutboundStream;
+import com.segc.net.QueuedOutputStream;
+import com.segc.net.Session;
+import com.segc.net.SessionManager;
+import com.segc.protocol.CompressionStats;
+import com.segc.protocol.Protocol;
+import com.segc.protocol.ProtocolReader;
+import com.segc.protocol.ProtocolWriter;
 import com.segc.services.AuthenticationService;
 import com.segc.services.BlockchainService;
 import com.segc.services.CipherService;
 import com.segc.services.DataPersistenceService;
+import com.segc.services.SessionTicketService;
 import com.segc.transaction.SignedTransaction;
 import com.segc.transaction.Transaction;
+import com.segc.transaction.TransactionPage;
 import com.segc.transaction.WineTransaction;
+import com.segc.users.MessageBroker;
 import com.segc.users.UserCatalog;
 import com.segc.wines.WineCatalog;
 
 import javax.net.ServerSocketFactory;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
 import javax.swing.*;
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketException;
 import java.security.*;
 import java.security.cert.Certificate;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author fc54685 Francisco Correia
@@ -39,6 +64,15 @@ public class TintolmarketServer {
     private final AuthenticationService authService;
     private final CipherService cipherService;
     private final BlockchainService blockchainService;
+    private final ConnectionExecutor connectionExecutor;
+    private final ExecutorService outboundWriters;
+    private final int maxOutboundBytes;
+    private final SessionManager sessionManager;
+    private final AdmissionController admissionController;
+    private final CompressionStats compressionStats;
+    private final SessionTicketService sessionTicketService;
+    private volatile SSLServerSocket serverSocket;
+    private volatile NioTransport nioTransport;
 
     public TintolmarketServer(int port,
                               AuthenticationService authService,
@@ -46,6 +80,7 @@ public class TintolmarketServer {
                               BlockchainService blockchainService,
                               DataPersistenceService dps) {
         this(port, new WineCatalog(dps), new UserCatalog(dps), authService, cipherService, blockchainService);
+        MBeans.register(dps, "DataPersistence");
     }
 
     public TintolmarketServer(int port,
@@ -60,6 +95,19 @@ public class TintolmarketServer {
         this.authService = authService;
         this.cipherService = cipherService;
         this.blockchainService = blockchainService;
+        this.connectionExecutor = ConnectionExecutor.fromConfig(config);
+        this.sessionManager = SessionManager.fromConfig(config);
+        MBeans.register(sessionManager, "SessionManager");
+        this.admissionController = AdmissionController.fromConfig(config);
+        MBeans.register(admissionController, "AdmissionController");
+        MBeans.register(authService.getCertificateCache(), "CertificateCache");
+        MBeans.register(userCatalog.getLog(), "UserLog");
+        MBeans.register(wineCatalog.getLog(), "WineLog");
+        this.compressionStats = new CompressionStats();
+        this.sessionTicketService = SessionTicketService.fromConfig(config);
+        MBeans.register(compressionStats, "Compression");
+        this.outboundWriters = ConnectionExecutor.newWriterExecutor(config);
+        this.maxOutboundBytes = getMaxOutboundBytes();
     }
 
     public static void main(String[] args) {
@@ -73,42 +121,129 @@ public class TintolmarketServer {
         String keyStore = args[2];
         String keyStorePassword = args[3];
 
-        String signatureAlgorithm = config.getValue("signatureAlgorithm");
         String blockchainDir = config.getValue("blockchainDir");
 
         System.setProperty("javax.net.ssl.keyStore", keyStore);
         System.setProperty("javax.net.ssl.keyStorePassword", keyStorePassword);
         System.setProperty("javax.net.ssl.keyStoreType", config.getValue("keyStoreType"));
+        configureTlsSessions();
 
-        CipherService cipherService = new CipherService(config.getValue("keyStoreAlias"), signatureAlgorithm);
+        CipherService cipherService = CipherService.fromConfig(config.getValue("keyStoreAlias"), config);
         AuthenticationService authService = new AuthenticationService(password, cipherService);
 
         DataPersistenceService dps = new DataPersistenceService();
         BlockchainService blockchainService = new BlockchainService(blockchainDir, cipherService, dps);
         TintolmarketServer tms = new TintolmarketServer(port, authService, cipherService, blockchainService, dps);
+        Runtime.getRuntime().addShutdownHook(new Thread(tms::stopServer));
         tms.startServer();
     }
 
-    @SuppressWarnings("InfiniteLoopStatement")
-    public void startServer() {
+    /**
+     * Configures the cache of TLS sessions that clients may resume, skipping the full TLS handshake.
+     */
+    private static void configureTlsSessions() {
+        try {
+            SSLSessionContext sessionContext = SSLContext.getDefault().getServerSessionContext();
+            sessionContext.setSessionCacheSize(config.getInt("tlsSessionCacheSize"));
+            sessionContext.setSessionTimeout(config.getInt("tlsSessionTimeout"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the {@code maxOutboundBytes} property, which must leave room for a frame of {@code maxFrameSize} bytes
+     * on top of the {@code outboundHighWaterMark} bytes a connection may have queued before it is written.
+     */
+    private static int getMaxOutboundBytes() {
+        int maxOutboundBytes = config.getInt("maxOutboundBytes");
+        long minOutboundBytes = (long) config.getInt("outboundHighWaterMark") + Protocol.getMaxFrameSize(config)
+                                + Protocol.MAX_FRAME_HEADER_SIZE;
+        if (maxOutboundBytes <= minOutboundBytes) {
+            throw new IllegalArgumentException("maxOutboundBytes must be larger than outboundHighWaterMark plus "
+                                               + "maxFrameSize (" + minOutboundBytes + " bytes).");
+        }
+        return maxOutboundBytes;
+    }
 
+    public void startServer() {
+        if (NioTransport.NIO.equalsIgnoreCase(config.getValue("transport"))) {
+            startNioServer();
+            return;
+        }
         ServerSocketFactory ssf = SSLServerSocketFactory.getDefault();
         try (SSLServerSocket sSoc = (SSLServerSocket) ssf.createServerSocket(this.port)) {
-            while (true) {
+            serverSocket = sSoc;
+            while (!connectionExecutor.isShutdown()) {
                 try {
                     Socket inSoc = sSoc.accept();
-                    ServerThread newServerThread = new ServerThread(inSoc);
-                    newServerThread.start();
+                    ServerThread serverThread = new ServerThread(inSoc);
+                    if (!connectionExecutor.execute(serverThread)) {
+                        System.out.println("Connection limit reached, rejecting " + inSoc.getRemoteSocketAddress());
+                        serverThread.close();
+                    }
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    if (!sSoc.isClosed()) {
+                        e.printStackTrace();
+                    }
                 }
-
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private void startNioServer() {
+        try {
+            nioTransport = new NioTransport(port,
+                    SSLContext.getDefault(),
+                    ClientSession::new,
+                    config.getInt("nioEventLoops"),
+                    config.getInt("nioWorkerThreads"),
+                    config.getInt("maxConnections"),
+                    config.getInt("outboundHighWaterMark"),
+                    maxOutboundBytes,
+                    sessionManager);
+            nioTransport.start();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Stops accepting new connections and waits for the running sessions to end.
+     */
+    public void stopServer() {
+        sessionManager.shutdown();
+        if (nioTransport != null) {
+            try {
+                nioTransport.stop(config.getInt("shutdownTimeout"), TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        if (connectionExecutor.isShutdown()) {
+            return;
+        }
+        for (Runnable pendingSession : connectionExecutor.shutdown()) {
+            ((ServerThread) pendingSession).close();
+        }
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            if (!connectionExecutor.awaitTermination(config.getInt("shutdownTimeout"), TimeUnit.SECONDS)) {
+                System.out.println("Timed out waiting for active sessions to end.");
+            }
+            outboundWriters.shutdown();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     public void add(String wineName, ImageIcon label) throws DuplicateElementException {
         wineCatalog.add(wineName, label);
     }
@@ -133,18 +268,30 @@ public class TintolmarketServer {
         return userCatalog.getBalance(clientId);
     }
 
-    public void talk(String recipient, byte[] message, String sender) throws NoSuchElementException {
-        userCatalog.talk(sender, recipient, message);
+    public void talk(String recipient, byte[] message, byte[] header, String sender) throws NoSuchElementException {
+        userCatalog.talk(sender, recipient, message, header);
     }
 
     public Message read(String clientId) throws NoSuchElementException, IllegalArgumentException {
         return userCatalog.read(clientId);
     }
 
+    public List<Message> read(String clientId, int maxCount, int maxBytes) throws NoSuchElementException {
+        return userCatalog.read(clientId, maxCount, maxBytes);
+    }
+
     public String view(String wineName) throws NoSuchElementException {
         return wineCatalog.view(wineName);
     }
 
+    public String getLabelDigest(String wineName) throws NoSuchElementException {
+        return wineCatalog.getLabelDigest(wineName);
+    }
+
+    public byte[] getLabel(String labelDigest) throws NoSuchElementException, DataIntegrityException {
+        return wineCatalog.getLabel(labelDigest);
+    }
+
     public void classify(String wineName, int stars) throws NoSuchElementException, IllegalArgumentException {
         wineCatalog.classify(wineName, stars);
     }
@@ -153,171 +300,402 @@ public class TintolmarketServer {
         return blockchainService.getTransactions();
     }
 
-    private void interactionLoop(ObjectOutputStream outStream, ObjectInputStream inStream, String clientId)
-            throws ClassNotFoundException, IOException, InvalidKeyException, SignatureException {
+    public TransactionPage list(String resumeToken, int maxCount) throws IllegalArgumentException {
+        return blockchainService.getTransactions(resumeToken, maxCount);
+    }
+
+    /**
+     * Verifies an object against the certificate of a user. A certificate that cannot be loaded verifies nothing.
+     *
+     * @return {@code true} if the user signed the object, {@code false} otherwise.
+     */
+    private boolean isSignedBy(SignedObject obj, String clientId) throws InvalidKeyException, SignatureException {
+        PublicKey key;
+        try {
+            key = authService.getPublicKey(clientId);
+        } catch (DataIntegrityException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+        return cipherService.verify(obj, key);
+    }
+
+    /**
+     * Handles a single client command, reading its arguments and writing the response.
+     *
+     * @param version    the negotiated protocol version.
+     * @param subscriber the subscriber that pushes messages to the client, or {@code null} if
+     *                   {@link Protocol#PUSH} was not negotiated.
+     * @param session    the session of the client, which completes a purchase once its quote is signed.
+     * @return {@code true} if the client is exiting, {@code false} otherwise.
+     */
+    private boolean handleCommand(Opcode command,
+                                  ProtocolWriter outStream,
+                                  ProtocolReader inStream,
+                                  String clientId,
+                                  int version,
+                                  MessageBroker.Subscriber subscriber,
+                                  ClientSession session)
+            throws IOException, InvalidKeyException, SignatureException {
+        try (AdmissionController.Admission admission = admissionController.newAdmission(clientId, command)) {
+            return handleCommand(command, outStream, inStream, clientId, version, subscriber, session, admission);
+        }
+    }
+
+    /**
+     * Replies that a request was not admitted, unless it is admitted by the given {@code admission}.
+     *
+     * @return {@code true} if the request was admitted, {@code false} otherwise.
+     */
+    private static boolean admit(AdmissionController.Admission admission, ProtocolWriter outStream)
+            throws IOException {
+        if (admission.tryAdmit()) {
+            return true;
+        }
+        outStream.writeOpcode(Opcode.RETRY);
+        outStream.writeInt((int) Math.min(admission.getRetryAfterMillis(), Integer.MAX_VALUE));
+        outStream.writeString(admission.getReason());
+        return false;
+    }
+
+    private boolean handleCommand(Opcode command,
+                                  ProtocolWriter outStream,
+                                  ProtocolReader inStream,
+                                  String clientId,
+                                  int version,
+                                  MessageBroker.Subscriber subscriber,
+                                  ClientSession session,
+                                  AdmissionController.Admission admission)
+            throws IOException, InvalidKeyException, SignatureException {
         boolean isExiting = false;
-        while (!isExiting) {
-            Opcode command = (Opcode) inStream.readObject();
-            switch (command) {
-                case ADD: {
-                    String wineName = (String) inStream.readObject();
-                    ImageIcon label = (ImageIcon) inStream.readObject();
-                    try {
-                        add(wineName, label);
-                        outStream.writeObject(Opcode.OK);
-                        outStream.writeObject("Wine '" + wineName + "' successfully added.");
-                    } catch (Exception e) {
-                        outStream.writeObject(Opcode.ERROR);
-                        outStream.writeObject("Wine already exists");
-                    }
+        int correlationId = inStream.getCorrelationId();
+        outStream.setCorrelationId(correlationId);
+        switch (command) {
+            case ADD: {
+                String wineName = inStream.readString();
+                ImageIcon label = inStream.readObject(ImageIcon.class);
+                if (!admit(admission, outStream)) {
                     break;
                 }
-                case SELL: {
-                    SignedTransaction st = (SignedTransaction) inStream.readObject();
-                    Certificate cert = authService.getCertificate(clientId);
-
-                    if (!cipherService.verify(st.getSignedObject(), cert)) {
-                        outStream.writeObject(Opcode.ERROR);
-                        outStream.writeObject("Server couldn't verify the signature.");
-                        break;
-                    }
-
-                    try {
-                        sell(st.getItemId(), st.getAuthorId(), st.getUnitPrice(), st.getUnitCount());
-                        blockchainService.addTransaction(st);
-                        outStream.writeObject(Opcode.OK);
-                        outStream.writeObject("Wine '" + st.getItemId() + "' successfully added to the market.");
-                    } catch (NoSuchElementException e) {
-                        outStream.writeObject(Opcode.ERROR);
-                        outStream.writeObject("Wine '" + st.getItemId() + "' does not exist.");
-                    } catch (DuplicateElementException e) {
-                        outStream.writeObject(Opcode.ERROR);
-                        outStream.writeObject("You are already selling wine '" + st.getItemId() + "'.");
-                    }
+                try {
+                    add(wineName, label);
+                    outStream.writeOpcode(Opcode.OK);
+                    outStream.writeString("Wine '" + wineName + "' successfully added.");
+                } catch (Exception e) {
+                    outStream.writeOpcode(Opcode.ERROR);
+                    outStream.writeString("Wine already exists");
+                }
+                break;
+            }
+            case SELL: {
+                SignedTransaction st = inStream.readSignedTransaction();
+                if (!admit(admission, outStream)) {
                     break;
                 }
-                case VIEW: {
-                    String wineName = (String) inStream.readObject();
-                    try {
-                        String s = view(wineName);
-                        outStream.writeObject(Opcode.OK);
-                        outStream.writeObject(s);
-                    } catch (Exception e) {
-                        outStream.writeObject(Opcode.ERROR);
-                        outStream.writeObject("Wine '" + wineName + "' does not exist.");
-                    }
+                if (!isSignedBy(st.getSignedObject(), clientId)) {
+                    outStream.writeOpcode(Opcode.ERROR);
+                    outStream.writeString("Server couldn't verify the signature.");
                     break;
                 }
-                case BUY: {
-                    String wineName = (String) inStream.readObject();
-                    String sellerId = (String) inStream.readObject();
-                    int quantity = (Integer) inStream.readObject();
-                    double price;
-                    try {
-                        price = wineCatalog.getPrice(wineName, sellerId); // cost per unit
-                    } catch (NoSuchElementException e) {
-                        outStream.writeObject(Opcode.ERROR);
-                        outStream.writeObject("Wine '" + wineName + "' does not exist.");
-                        break;
-                    } catch (IllegalArgumentException e) {
-                        outStream.writeObject(Opcode.ERROR);
-                        outStream.writeObject(e.getMessage());
-                        break;
-                    }
-                    outStream.writeObject(Opcode.OK);
-                    WineTransaction wt = new WineTransaction(wineName, sellerId, quantity, price, Transaction.Type.BUY);
-                    outStream.writeObject(wt);
-
-                    SignedTransaction st = (SignedTransaction) inStream.readObject();
-                    Certificate cert = authService.getCertificate(clientId);
 
-                    if (!cipherService.verify(st.getSignedObject(), cert)) {
-                        outStream.writeObject(Opcode.ERROR);
-                        outStream.writeObject("Server couldn't verify the signature.");
-                        break;
-                    }
-
-                    try {
-                        buy(st.getAuthorId(), st.getItemId(), sellerId, st.getUnitCount());
-                        blockchainService.addTransaction(st);
-                        outStream.writeObject(Opcode.OK);
-                        outStream.writeObject("Wine '" + st.getItemId() + "' bought successfully.");
-                    } catch (NoSuchElementException e) {
-                        String message = wineCatalog.contains(wineName)
-                                         ? "Wine '" + wineName + "' is not listed by the that seller."
-                                         : "Wine '" + wineName + "' does not exist.";
-                        outStream.writeObject(Opcode.ERROR);
-                        outStream.writeObject(message);
-                    } catch (IllegalArgumentException e) {
-                        outStream.writeObject(Opcode.ERROR);
-                        outStream.writeObject(e.getMessage()); // exception message contains more details
-                    }
+                try {
+                    sell(st.getItemId(), st.getAuthorId(), st.getUnitPrice(), st.getUnitCount());
+                    blockchainService.addTransaction(st);
+                    outStream.writeOpcode(Opcode.OK);
+                    outStream.writeString("Wine '" + st.getItemId() + "' successfully added to the market.");
+                } catch (NoSuchElementException e) {
+                    outStream.writeOpcode(Opcode.ERROR);
+                    outStream.writeString("Wine '" + st.getItemId() + "' does not exist.");
+                } catch (DuplicateElementException e) {
+                    outStream.writeOpcode(Opcode.ERROR);
+                    outStream.writeString("You are already selling wine '" + st.getItemId() + "'.");
+                }
+                break;
+            }
+            case VIEW: {
+                String wineName = inStream.readString();
+                if (!admit(admission, outStream)) {
                     break;
                 }
-                case WALLET: {
-                    double d = wallet(clientId);
-                    outStream.writeObject(Opcode.OK);
-                    outStream.writeObject("Your balance is " + d + "$.");
+                try {
+                    String s = view(wineName);
+                    outStream.writeOpcode(Opcode.OK);
+                    outStream.writeString(s);
+                } catch (Exception e) {
+                    outStream.writeOpcode(Opcode.ERROR);
+                    outStream.writeString("Wine '" + wineName + "' does not exist.");
+                }
+                break;
+            }
+            case VIEW_WINE: {
+                String wineName = inStream.readString();
+                if (!admit(admission, outStream)) {
                     break;
                 }
-                case CLASSIFY: {
-                    String wineName = (String) inStream.readObject();
-                    int stars = (Integer) inStream.readObject();
-                    try {
-                        classify(wineName, stars);
-                        outStream.writeObject(Opcode.OK);
-                        outStream.writeObject("Classification added successfully.");
-                    } catch (NoSuchElementException e) {
-                        outStream.writeObject(Opcode.ERROR);
-                        outStream.writeObject("Wine '" + wineName + "' does not exist.");
-                    } catch (Exception e) {
-                        outStream.writeObject(Opcode.ERROR);
-                        outStream.writeObject(e.getMessage());
-                    }
+                try {
+                    String s = view(wineName);
+                    String labelDigest = getLabelDigest(wineName);
+                    outStream.writeOpcode(Opcode.OK);
+                    outStream.writeString(s);
+                    outStream.writeString(labelDigest == null ? "" : labelDigest);
+                } catch (NoSuchElementException e) {
+                    outStream.writeOpcode(Opcode.ERROR);
+                    outStream.writeString("Wine '" + wineName + "' does not exist.");
+                }
+                break;
+            }
+            case GET_LABEL: {
+                String labelDigest = inStream.readString();
+                if (!admit(admission, outStream)) {
                     break;
                 }
-                case TALK: {
-                    String recipientId = (String) inStream.readObject();
-                    byte[] message = (byte[]) inStream.readObject();
-                    try {
-                        talk(recipientId, message, clientId);
-                        outStream.writeObject(Opcode.OK);
-                        outStream.writeObject("Message sent successfully.");
-                    } catch (Exception e) {
-                        outStream.writeObject(Opcode.ERROR);
-                        outStream.writeObject("User '" + recipientId + "' does not exist.");
-                    }
+                try {
+                    byte[] label = getLabel(labelDigest);
+                    outStream.writeOpcode(Opcode.OK);
+                    outStream.writeBytes(label);
+                } catch (NoSuchElementException e) {
+                    outStream.writeOpcode(Opcode.ERROR);
+                    outStream.writeString("Label '" + labelDigest + "' does not exist.");
+                } catch (DataIntegrityException e) {
+                    System.out.println("Could not serve label: " + e.getMessage());
+                    outStream.writeOpcode(Opcode.ERROR);
+                    outStream.writeString("Label '" + labelDigest + "' could not be read.");
+                }
+                break;
+            }
+            case BUY: {
+                String wineName = inStream.readString();
+                String sellerId = inStream.readString();
+                int quantity = inStream.readInt();
+                double price;
+                try {
+                    price = wineCatalog.getPrice(wineName, sellerId); // cost per unit
+                } catch (NoSuchElementException e) {
+                    outStream.writeOpcode(Opcode.ERROR);
+                    outStream.writeString("Wine '" + wineName + "' does not exist.");
+                    break;
+                } catch (IllegalArgumentException e) {
+                    outStream.writeOpcode(Opcode.ERROR);
+                    outStream.writeString(e.getMessage());
                     break;
                 }
-                case READ: {
-                    try {
-                        Message m = read(clientId);
-                        outStream.writeObject(Opcode.OK);
-                        outStream.writeObject(m);
-                    } catch (Exception e) {
-                        outStream.writeObject(Opcode.ERROR);
-                        outStream.writeObject("No messages to read.");
-                    }
+                outStream.writeOpcode(Opcode.OK);
+                WineTransaction wt = new WineTransaction(wineName, sellerId, quantity, price, Transaction.Type.BUY);
+                outStream.writeWineTransaction(wt);
+                outStream.send();
+                session.awaitSignature(correlationId, wt); // other pipelined requests are handled afterwards
+                return false;
+            }
+            case WALLET: {
+                if (!admit(admission, outStream)) {
+                    break;
+                }
+                double d = wallet(clientId);
+                outStream.writeOpcode(Opcode.OK);
+                outStream.writeString("Your balance is " + d + "$.");
+                break;
+            }
+            case CLASSIFY: {
+                String wineName = inStream.readString();
+                int stars = inStream.readInt();
+                if (!admit(admission, outStream)) {
                     break;
                 }
-                case LIST: {
-                    LinkedList<SignedTransaction> transactions = blockchainService.getTransactions();
-                    outStream.writeObject(Opcode.OK);
-                    outStream.writeObject(transactions);
+                try {
+                    classify(wineName, stars);
+                    outStream.writeOpcode(Opcode.OK);
+                    outStream.writeString("Classification added successfully.");
+                } catch (NoSuchElementException e) {
+                    outStream.writeOpcode(Opcode.ERROR);
+                    outStream.writeString("Wine '" + wineName + "' does not exist.");
+                } catch (Exception e) {
+                    outStream.writeOpcode(Opcode.ERROR);
+                    outStream.writeString(e.getMessage());
+                }
+                break;
+            }
+            case TALK: {
+                String recipientId = inStream.readString();
+                byte[] message = inStream.readBytes();
+                // clients that predate the negotiation only encrypt messages with RSA, without a header
+                byte[] header = version != Protocol.LEGACY_VERSION ? inStream.readBytes() : new byte[0];
+                if (!admit(admission, outStream)) {
+                    break;
+                }
+                try {
+                    talk(recipientId, message, header.length > 0 ? header : null, clientId);
+                    outStream.writeOpcode(Opcode.OK);
+                    outStream.writeString("Message sent successfully.");
+                } catch (Exception e) {
+                    outStream.writeOpcode(Opcode.ERROR);
+                    outStream.writeString("User '" + recipientId + "' does not exist.");
+                }
+                break;
+            }
+            case READ: {
+                if (!admit(admission, outStream)) {
+                    break;
+                }
+                try {
+                    Message m = read(clientId);
+                    outStream.writeOpcode(Opcode.OK);
+                    outStream.writeMessage(m);
+                } catch (Exception e) {
+                    outStream.writeOpcode(Opcode.ERROR);
+                    outStream.writeString("No messages to read.");
+                }
+                break;
+            }
+            case READ_MESSAGES: {
+                int maxCount = inStream.readInt();
+                int maxBytes = inStream.readInt();
+                if (!admit(admission, outStream)) {
                     break;
                 }
-                case EXIT: {
-                    isExiting = true;
+                if (maxCount <= 0 || maxBytes <= 0) {
+                    outStream.writeOpcode(Opcode.ERROR);
+                    outStream.writeString("Invalid page size.");
                     break;
                 }
-                default: {
-                    throw new IllegalArgumentException("Unexpected command: " + command);
+                List<Message> messages = read(clientId,
+                        Math.min(maxCount, config.getInt("maxReadCount")),
+                        Math.min(maxBytes, config.getInt("maxReadBytes")));
+                outStream.writeOpcode(Opcode.OK);
+                outStream.writeInt(userCatalog.getMessageCount(clientId));
+                outStream.writeInt(messages.size());
+                for (Message m : messages) {
+                    outStream.writeMessage(m);
                 }
+                break;
             }
+            case LIST: {
+                if (!admit(admission, outStream)) {
+                    break;
+                }
+                LinkedList<SignedTransaction> transactions = blockchainService.getTransactions();
+                outStream.writeOpcode(Opcode.OK);
+                outStream.writeTransactions(transactions);
+                break;
+            }
+            case SUBSCRIBE: {
+                if (!admit(admission, outStream)) {
+                    break;
+                }
+                if (subscriber == null) {
+                    outStream.writeOpcode(Opcode.ERROR);
+                    outStream.writeString("Push notifications were not negotiated.");
+                    break;
+                }
+                userCatalog.getMessageBroker().subscribe(clientId, subscriber);
+                outStream.writeOpcode(Opcode.OK);
+                outStream.writeString("Subscribed to new messages.");
+                break;
+            }
+            case ACK_MESSAGE: {
+                long messageId = inStream.readLong();
+                if (!admit(admission, outStream)) {
+                    break;
+                }
+                userCatalog.acknowledge(clientId, messageId);
+                outStream.writeOpcode(Opcode.OK);
+                break;
+            }
+            case LIST_FROM: {
+                String resumeToken = inStream.readString();
+                int maxCount = inStream.readInt();
+                if (!admit(admission, outStream)) {
+                    break;
+                }
+                if (maxCount <= 0) {
+                    outStream.writeOpcode(Opcode.ERROR);
+                    outStream.writeString("Invalid page size.");
+                    break;
+                }
+                try {
+                    TransactionPage page = list(resumeToken, Math.min(maxCount, config.getInt("maxListCount")));
+                    outStream.writeOpcode(Opcode.OK);
+                    outStream.writeTransactions(page.getTransactions());
+                    outStream.writeString(page.getResumeToken());
+                    outStream.writeInt(page.getRemaining());
+                } catch (IllegalArgumentException e) {
+                    outStream.writeOpcode(Opcode.ERROR);
+                    outStream.writeString(e.getMessage());
+                }
+                break;
+            }
+            case PING: {
+                outStream.writeOpcode(Opcode.OK);
+                break;
+            }
+            case EXIT: {
+                isExiting = true;
+                break;
+            }
+            default: {
+                throw new IllegalArgumentException("Unexpected command: " + command);
+            }
+        }
+        if (!isExiting) {
+            try {
+                outStream.send();
+            } catch (FrameTooLargeException e) {
+                // only this request fails, as nothing was sent
+                outStream.writeOpcode(Opcode.ERROR);
+                outStream.writeString(command == Opcode.LIST
+                                      ? "The transactions do not fit in a single response, list them in pages."
+                                      : e.getMessage());
+                outStream.send();
+            }
+        }
+        return isExiting;
+    }
+
+    /**
+     * Completes a purchase with the quote signed by the client, which is the current message of {@code inStream}.
+     *
+     * @param quote the quote sent to the client.
+     */
+    private void completePurchase(WineTransaction quote,
+                                  ProtocolWriter outStream,
+                                  ProtocolReader inStream,
+                                  String clientId)
+            throws IOException, InvalidKeyException, SignatureException {
+        String wineName = quote.getItemId();
+        String sellerId = quote.getAuthorId();
+        outStream.setCorrelationId(inStream.getCorrelationId());
+        try (AdmissionController.Admission admission = admissionController.newAdmission(clientId, Opcode.BUY)) {
+            SignedTransaction st = inStream.readSignedTransaction();
+            if (!admit(admission, outStream)) {
+                outStream.send();
+                return;
+            }
+            if (!isSignedBy(st.getSignedObject(), clientId)) {
+                outStream.writeOpcode(Opcode.ERROR);
+                outStream.writeString("Server couldn't verify the signature.");
+                outStream.send();
+                return;
+            }
+
+            try {
+                buy(st.getAuthorId(), st.getItemId(), sellerId, st.getUnitCount());
+                blockchainService.addTransaction(st);
+                outStream.writeOpcode(Opcode.OK);
+                outStream.writeString("Wine '" + st.getItemId() + "' bought successfully.");
+            } catch (NoSuchElementException e) {
+                String message = wineCatalog.contains(wineName)
+                                 ? "Wine '" + wineName + "' is not listed by the that seller."
+                                 : "Wine '" + wineName + "' does not exist.";
+                outStream.writeOpcode(Opcode.ERROR);
+                outStream.writeString(message);
+            } catch (IllegalArgumentException e) {
+                outStream.writeOpcode(Opcode.ERROR);
+                outStream.writeString(e.getMessage()); // exception message contains more details
+            }
+            outStream.send();
         }
     }
 
-    class ServerThread extends Thread {
+    class ServerThread implements Runnable {
 
         private final Socket socket;
 
@@ -325,44 +703,284 @@ public class TintolmarketServer {
             this.socket = inSoc;
         }
 
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
         @Override
         public void run() {
+            SessionManager.LiveSession liveSession = sessionManager.register(this::close);
+            ClientSession session = null;
+            try {
+                socket.setKeepAlive(true);
+                OutboundStream out = new QueuedOutputStream(socket.getOutputStream(),
+                        outboundWriters,
+                        config.getInt("outboundHighWaterMark"),
+                        maxOutboundBytes,
+                        TimeUnit.SECONDS.toMillis(config.getInt("outboundWriteTimeout")));
+                InputStream in = new MonitoredInputStream(socket.getInputStream(), liveSession);
+                session = new ClientSession(in, out);
+                while (session.onInput()) {
+                    // each call waits for the next message
+                }
+                out.close(); // waits for the queued responses
+                socket.shutdownOutput();
+            } catch (EOFException | SocketException e) {
+                // the client disconnected or the session was closed by the session manager
+            } catch (IOException | ClassNotFoundException | GeneralSecurityException | RuntimeException e) {
+                System.out.println("Session ended with an error: " + e);
+            } finally {
+                if (session != null) {
+                    session.close();
+                }
+                liveSession.unregister();
+                close();
+            }
+        }
+    }
+
+    /**
+     * The message a {@link ClientSession} expects next.
+     */
+    private enum State {
+        HELLO, CHALLENGE, REQUESTS, PURCHASE
+    }
+
+    /**
+     * A session driven by the messages of its client: the handshake, which is read again from its start until it has
+     * been received completely, as its objects refer to each other, and then each request, which is read again from
+     * its start until its frame has been received completely.
+     */
+    class ClientSession implements Session {
+
+        private final InputStream in;
+        private final OutboundStream out;
+        private State state = State.HELLO;
+        private ObjectOutputStream handshakeOut;
+        private ObjectInputStream handshakeIn; // null if the handshake must be read again from its start
+        private boolean isRegistered;
+        private int features;
+        private ProtocolWriter outStream;
+        private ProtocolReader inStream;
+        private ProtocolWriter pushStream;
+        private boolean isPushed; // whether the last pushed frame was queued, guarded by pushStream
+        private MessageBroker.Subscriber subscriber;
+        private String clientId;
+        private int version;
+        private int purchaseId; // the correlation id of the purchase whose quote is being signed
+        private WineTransaction quote;
+
+        ClientSession(InputStream in, OutboundStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public boolean onInput() throws IOException, ClassNotFoundException, GeneralSecurityException {
             try {
-                ObjectOutputStream outStream = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream inStream = new ObjectInputStream(socket.getInputStream());
-                String clientId;
-                Long nonce = CipherService.genNonce();
+                switch (state) {
+                    case HELLO:
+                        return onHello();
+                    case CHALLENGE:
+                        return onChallenge();
+                    case PURCHASE:
+                        return onSignedQuote();
+                    default:
+                        return onRequest();
+                }
+            } catch (IncompleteInputException e) {
+                in.reset(); // to the start of the message, or of the handshake
+                if (state == State.CHALLENGE) {
+                    handshakeIn = null;
+                }
+                return true;
+            }
+        }
 
-                clientId = (String) inStream.readObject();
+        @Override
+        public boolean isNonBlocking() {
+            // serialized requests refer to the objects of the previous ones, so they cannot be read again
+            return inStream == null || (features & Protocol.BINARY) != 0;
+        }
 
-                boolean isRegistered = authService.isRegisteredUser(clientId);
-                boolean isAuthenticated = false;
+        private boolean onHello() throws IOException, ClassNotFoundException {
+            if (handshakeOut == null) {
+                handshakeOut = new ObjectOutputStream(out);
+                in.mark(Integer.MAX_VALUE);
+            }
+            byte[] ticket = readHello();
+            Long nonce = CipherService.genNonce();
+            isRegistered = authService.isRegisteredUser(clientId);
+            // a valid ticket replaces the nonce challenge, which is signaled by sending no nonce
+            boolean isResumed = isRegistered
+                                && (features & Protocol.SESSION_TICKETS) != 0
+                                && sessionTicketService.isValid(ticket, clientId);
+
+            handshakeOut.writeObject(isResumed ? null : nonce);
+            handshakeOut.writeObject(isRegistered);
+            if (version != Protocol.LEGACY_VERSION) {
+                handshakeOut.writeObject(version);
+                handshakeOut.writeObject(features);
+            }
+            if (isResumed) {
+                return authenticate(true);
+            }
+            handshakeOut.flush();
+            state = State.CHALLENGE;
+            return true;
+        }
+
+        /**
+         * Reads the hello of the client, with the version and features it offers, and negotiates them.
+         *
+         * @return the session ticket offered by the client, or {@code null} if none was offered.
+         */
+        private byte[] readHello() throws IOException, ClassNotFoundException {
+            handshakeIn = Protocol.newObjectInputStream(in, config);
+            // clients that predate the negotiation send their id first, and expect the nonce right after it
+            Object hello = handshakeIn.readObject();
+            int offeredVersion = Protocol.LEGACY_VERSION;
+            int offeredFeatures = 0;
+            if (hello instanceof Integer && (Integer) hello == Protocol.HELLO) {
+                offeredVersion = (Integer) handshakeIn.readObject();
+                clientId = (String) handshakeIn.readObject();
+                offeredFeatures = (Integer) handshakeIn.readObject();
+            } else {
+                clientId = (String) hello;
+            }
+            byte[] ticket = (offeredFeatures & Protocol.RESUMPTION) != 0 ? (byte[]) handshakeIn.readObject() : null;
+            version = Protocol.negotiateVersion(offeredVersion);
+            features = Protocol.negotiate(offeredFeatures, Protocol.getFeatures(config), version);
+            return ticket;
+        }
 
-                outStream.writeObject(nonce);
-                outStream.writeObject(isRegistered);
+        private boolean onChallenge() throws IOException, ClassNotFoundException, GeneralSecurityException {
+            if (handshakeIn == null) {
+                readHello(); // again, as the objects that follow it may refer to its objects
+            }
+            SignedObject receivedNonce = (SignedObject) handshakeIn.readObject();
+            if (isRegistered) { // utilizador existente
+                return authenticate(isSignedBy(receivedNonce, clientId));
+            }
+            Certificate cert = (Certificate) handshakeIn.readObject(); // novo utilizador
+            authService.registerUser(clientId, cert);
+            userCatalog.add(clientId);
+            return authenticate(cipherService.verify(receivedNonce, cert));
+        }
+
+        /**
+         * Completes the handshake and creates the streams for the rest of the session.
+         */
+        private boolean authenticate(boolean isAuthenticated) throws IOException {
+            handshakeOut.writeObject(isAuthenticated);
+            if (isAuthenticated && (features & Protocol.SESSION_TICKETS) != 0) {
+                handshakeOut.writeObject(sessionTicketService.issue(clientId));
+            }
+            handshakeOut.flush();
+            if (!isAuthenticated) {
+                System.out.println("Authentication failed for user '" + clientId + "'.");
+                return false;
+            }
+            this.outStream = Protocol.newWriter(features, handshakeOut, out, config, compressionStats);
+            this.inStream = Protocol.newReader(features, handshakeIn, in, config, compressionStats);
+            // pushed frames are offered to the connection, as the sender must not wait for a slow recipient
+            this.pushStream = Protocol.newPushWriter(features, new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
 
-                SignedObject receivedNonce = (SignedObject) inStream.readObject();
-                Certificate cert = isRegistered ? authService.getCertificate(clientId) // utilizador existente
-                                                : (Certificate) inStream.readObject(); // novo utilizador
-                if (!isRegistered) {
-                    authService.registerUser(clientId, cert);
-                    userCatalog.add(clientId);
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    isPushed = out.offer(b, off, len);
                 }
+            }, config, compressionStats);
+            if (pushStream != null) {
+                this.subscriber = this::push;
+            }
+            state = State.REQUESTS;
+            return true;
+        }
 
-                if (cipherService.verify(receivedNonce, cert)) {
-                    isAuthenticated = true;
+        /**
+         * Pushes a stored message to the client, unless its outbound queue is above the high-water mark, in which case
+         * the client will only get the message when it reads it.
+         */
+        private boolean push(Message message) throws IOException {
+            synchronized (pushStream) {
+                pushStream.writeOpcode(Opcode.TALK);
+                pushStream.writeLong(message.getId());
+                pushStream.writeMessage(message);
+                try {
+                    pushStream.send();
+                } catch (FrameTooLargeException e) {
+                    return false; // the client gets the message when it reads it
                 }
+                return isPushed;
+            }
+        }
 
-                outStream.writeObject(isAuthenticated);
-                if (isAuthenticated) {
-                    interactionLoop(outStream, inStream, clientId);
-                } else {
-                    System.out.println("Authentication failed for user '" + clientId + "'.");
+        private boolean onRequest() throws IOException, GeneralSecurityException {
+            in.mark(Integer.MAX_VALUE);
+            inStream.receive();
+            return handleRequests();
+        }
+
+        /**
+         * Handles the current request, followed by the requests that were deferred, until one of them waits for the
+         * client to sign a quote.
+         */
+        private boolean handleRequests() throws IOException, GeneralSecurityException {
+            while (true) {
+                Opcode command = inStream.readOpcode();
+                if (handleCommand(command, outStream, inStream, clientId, version, subscriber, this)) {
+                    return false;
                 }
-                socket.shutdownOutput();
-                socket.close();
-            } catch (IOException | ClassNotFoundException | InvalidKeyException | SignatureException e) {
-                throw new RuntimeException(e);
+                if (quote != null) {
+                    state = State.PURCHASE;
+                    return true;
+                }
+                if (!inStream.hasDeferred()) {
+                    inStream.release(); // the session may stay idle until the next request
+                    return true;
+                }
+                inStream.receive();
+            }
+        }
+
+        /**
+         * Waits for the client to sign the quote of a purchase before handling its other requests.
+         */
+        void awaitSignature(int correlationId, WineTransaction quote) {
+            this.purchaseId = correlationId;
+            this.quote = quote;
+        }
+
+        private boolean onSignedQuote() throws IOException, GeneralSecurityException {
+            in.mark(Integer.MAX_VALUE);
+            if (!inStream.receiveOrDefer(purchaseId)) {
+                return true;
+            }
+            WineTransaction signedQuote = quote;
+            quote = null;
+            state = State.REQUESTS;
+            completePurchase(signedQuote, outStream, inStream, clientId);
+            if (!inStream.hasDeferred()) {
+                inStream.release();
+                return true;
+            }
+            inStream.receive();
+            return handleRequests();
+        }
+
+        @Override
+        public void close() {
+            if (subscriber != null) {
+                userCatalog.getMessageBroker().unsubscribe(clientId, subscriber);
             }
         }
     }
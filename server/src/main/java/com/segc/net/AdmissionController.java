@@ -0,0 +1,254 @@
+package com.segc.net;
+
+import com.segc.Configuration;
+import com.segc.Opcode;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether the requests of authenticated clients are handled or must be retried later.
+ * <p>
+ * Each client has a token bucket for all of its requests and one for each rate-limited opcode. Requests that change
+ * persistent state also need one of a fixed number of global mutation permits, which bounds the number of concurrent
+ * disk rewrites.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class AdmissionController implements AdmissionControllerMXBean {
+    private final Limit clientLimit;
+    private final Map<Opcode, Limit> opcodeLimits;
+    private final int maxInFlightMutations;
+    private final Semaphore mutations;
+    private final Map<String, ClientBuckets> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong admittedRequests = new AtomicLong();
+    private final AtomicLong rejectedMutations = new AtomicLong();
+    private final Map<Opcode, AtomicLong> rateLimitedRequests = new EnumMap<>(Opcode.class);
+
+    /**
+     * Creates an {@link AdmissionController}.
+     *
+     * @param clientLimit          the rate limit of all requests of a client, or {@code null} for none.
+     * @param opcodeLimits         the rate limit of each opcode per client.
+     * @param maxInFlightMutations the maximum number of mutations handled at the same time.
+     */
+    public AdmissionController(Limit clientLimit, Map<Opcode, Limit> opcodeLimits, int maxInFlightMutations) {
+        this.clientLimit = clientLimit;
+        this.opcodeLimits = opcodeLimits.isEmpty() ? new EnumMap<>(Opcode.class) : new EnumMap<>(opcodeLimits);
+        this.maxInFlightMutations = maxInFlightMutations;
+        this.mutations = new Semaphore(maxInFlightMutations);
+        for (Opcode opcode : Opcode.values()) {
+            rateLimitedRequests.put(opcode, new AtomicLong());
+        }
+    }
+
+    /**
+     * Creates an {@link AdmissionController} with the following properties:
+     * <ul>
+     *     <li>{@code clientRateLimit} and {@code clientRateBurst}: the requests per second of a client and the size
+     *     of its bursts;</li>
+     *     <li>{@code rateLimit.<OPCODE>} and {@code rateBurst.<OPCODE>}: the same, for a single opcode;</li>
+     *     <li>{@code maxInFlightMutations}: the maximum number of mutations handled at the same time.</li>
+     * </ul>
+     * A missing or zero rate disables the corresponding limit.
+     *
+     * @param config the configuration to read.
+     * @return a new {@link AdmissionController}.
+     */
+    public static AdmissionController fromConfig(Configuration config) {
+        Map<Opcode, Limit> opcodeLimits = new EnumMap<>(Opcode.class);
+        for (Opcode opcode : Opcode.values()) {
+            Limit limit = Limit.fromConfig(config, "rateLimit." + opcode, "rateBurst." + opcode);
+            if (limit != null) {
+                opcodeLimits.put(opcode, limit);
+            }
+        }
+        return new AdmissionController(Limit.fromConfig(config, "clientRateLimit", "clientRateBurst"),
+                opcodeLimits,
+                config.getInt("maxInFlightMutations"));
+    }
+
+    /**
+     * Returns whether requests with the given opcode change persistent state.
+     */
+    public static boolean isMutation(Opcode opcode) {
+        switch (opcode) {
+            case ADD:
+            case SELL:
+            case BUY:
+            case CLASSIFY:
+            case TALK:
+            case READ:
+            case READ_MESSAGES:
+            case ACK_MESSAGE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Starts the admission of a request. It must be closed once the request has been handled.
+     *
+     * @param clientId the id of the client.
+     * @param opcode   the opcode of the request.
+     * @return the admission of the request.
+     */
+    public Admission newAdmission(String clientId, Opcode opcode) {
+        return new Admission(clientId, opcode);
+    }
+
+    private long tryAcquireRate(String clientId, Opcode opcode) {
+        ClientBuckets clientBuckets = buckets.computeIfAbsent(clientId, id -> new ClientBuckets());
+        long wait = 0;
+        if (clientBuckets.all != null) {
+            wait = clientBuckets.all.tryAcquire();
+        }
+        Limit opcodeLimit = opcodeLimits.get(opcode);
+        if (wait == 0 && opcodeLimit != null) {
+            wait = clientBuckets.byOpcode.computeIfAbsent(opcode, o -> opcodeLimit.newBucket()).tryAcquire();
+        }
+        return wait;
+    }
+
+    @Override
+    public long getAdmittedRequests() {
+        return admittedRequests.get();
+    }
+
+    @Override
+    public long getRateLimitedRequests() {
+        return rateLimitedRequests.values().stream().mapToLong(AtomicLong::get).sum();
+    }
+
+    @Override
+    public Map<String, Long> getRateLimitedRequestsByOpcode() {
+        Map<String, Long> counts = new TreeMap<>();
+        rateLimitedRequests.forEach((opcode, count) -> {
+            if (count.get() > 0) {
+                counts.put(opcode.name(), count.get());
+            }
+        });
+        return counts;
+    }
+
+    @Override
+    public long getRejectedMutations() {
+        return rejectedMutations.get();
+    }
+
+    @Override
+    public int getInFlightMutations() {
+        return maxInFlightMutations - mutations.availablePermits();
+    }
+
+    @Override
+    public int getMaxInFlightMutations() {
+        return maxInFlightMutations;
+    }
+
+    @Override
+    public int getTrackedClients() {
+        return buckets.size();
+    }
+
+    /**
+     * A rate limit, in requests per second, with bursts of up to {@code burst} requests.
+     */
+    public static class Limit {
+        private final double rate;
+        private final double burst;
+
+        public Limit(double rate, double burst) {
+            this.rate = rate;
+            this.burst = Math.max(burst, 1);
+        }
+
+        private static Limit fromConfig(Configuration config, String rateKey, String burstKey) {
+            String rate = config.getValue(rateKey);
+            if (rate == null || Double.parseDouble(rate) <= 0) {
+                return null;
+            }
+            String burst = config.getValue(burstKey);
+            return new Limit(Double.parseDouble(rate), burst == null ? 1 : Double.parseDouble(burst));
+        }
+
+        private TokenBucket newBucket() {
+            return new TokenBucket(rate, burst);
+        }
+    }
+
+    private class ClientBuckets {
+        final TokenBucket all = clientLimit == null ? null : clientLimit.newBucket();
+        final Map<Opcode, TokenBucket> byOpcode = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * The admission of a single request.
+     */
+    public class Admission implements AutoCloseable {
+        private final String clientId;
+        private final Opcode opcode;
+        private boolean isMutationStarted;
+        private long retryAfterMillis;
+        private String reason;
+
+        private Admission(String clientId, Opcode opcode) {
+            this.clientId = clientId;
+            this.opcode = opcode;
+        }
+
+        /**
+         * Admits the request if it is within its client's rate limits and, for a mutation, if a mutation permit is
+         * available.
+         *
+         * @return {@code true} if the request was admitted, {@code false} if it must be retried later.
+         */
+        public boolean tryAdmit() {
+            long wait = tryAcquireRate(clientId, opcode);
+            if (wait > 0) {
+                rateLimitedRequests.get(opcode).incrementAndGet();
+                retryAfterMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait));
+                reason = "Too many requests, please retry in " + retryAfterMillis + " ms.";
+                return false;
+            }
+            if (isMutation(opcode)) {
+                if (!mutations.tryAcquire()) {
+                    rejectedMutations.incrementAndGet();
+                    retryAfterMillis = 100;
+                    reason = "The server is busy, please retry later.";
+                    return false;
+                }
+                isMutationStarted = true;
+            }
+            admittedRequests.incrementAndGet();
+            return true;
+        }
+
+        public long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * Releases the mutation permit of the request, if it was admitted.
+         */
+        @Override
+        public void close() {
+            if (isMutationStarted) {
+                isMutationStarted = false;
+                mutations.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.segc.net;
+
+import java.util.Map;
+
+/**
+ * The management interface of an {@link AdmissionController}.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public interface AdmissionControllerMXBean {
+
+    long getAdmittedRequests();
+
+    long getRateLimitedRequests();
+
+    /**
+     * Returns the number of rate-limited requests of each opcode.
+     */
+    Map<String, Long> getRateLimitedRequestsByOpcode();
+
+    long getRejectedMutations();
+
+    int getInFlightMutations();
+
+    int getMaxInFlightMutations();
+
+    int getTrackedClients();
+}
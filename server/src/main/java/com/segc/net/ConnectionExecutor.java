@@ -0,0 +1,233 @@
+package com.segc.net;
+
+import com.segc.Configuration;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs client sessions with a bounded number of concurrent connections.
+ * <p>
+ * Sessions are run on a virtual thread each (when the runtime supports it) or on a bounded pool of platform threads.
+ * Sessions accepted while the connection limit is reached wait in a bounded queue of pending connections and are
+ * started as soon as a running session ends.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class ConnectionExecutor {
+    public static final String VIRTUAL = "virtual";
+    public static final String POOL = "pool";
+
+    private final ExecutorService executor;
+    private final int maxConnections;
+    private final Semaphore permits;
+    private final BlockingQueue<Runnable> pending;
+    private volatile boolean isShutdown;
+
+    private ConnectionExecutor(ExecutorService executor, int maxConnections, int pendingConnections) {
+        if (maxConnections <= 0 || pendingConnections < 0) {
+            throw new IllegalArgumentException("Connection limits must be positive integers.");
+        }
+        this.executor = executor;
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections);
+        this.pending = pendingConnections == 0 ? new SynchronousQueue<>()
+                                               : new ArrayBlockingQueue<>(pendingConnections);
+    }
+
+    /**
+     * Creates a {@link ConnectionExecutor} that runs each session on a new virtual thread.
+     *
+     * @param maxConnections     the maximum number of concurrent sessions.
+     * @param pendingConnections the maximum number of sessions waiting for a free slot.
+     * @return a new {@link ConnectionExecutor}.
+     * @throws UnsupportedOperationException if virtual threads are not available in this runtime.
+     */
+    public static ConnectionExecutor newVirtualThreadExecutor(int maxConnections, int pendingConnections)
+            throws UnsupportedOperationException {
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        if (executor == null) {
+            throw new UnsupportedOperationException("Virtual threads are not available in this runtime.");
+        }
+        return new ConnectionExecutor(executor, maxConnections, pendingConnections);
+    }
+
+    /**
+     * Creates a {@link ConnectionExecutor} that runs sessions on a bounded pool of platform threads.
+     * The number of concurrent sessions is the lowest of {@code poolSize} and {@code maxConnections}.
+     *
+     * @param poolSize           the maximum number of platform threads.
+     * @param maxConnections     the maximum number of concurrent sessions.
+     * @param pendingConnections the maximum number of sessions waiting for a free slot.
+     * @return a new {@link ConnectionExecutor}.
+     */
+    public static ConnectionExecutor newPlatformThreadExecutor(int poolSize,
+                                                               int maxConnections,
+                                                               int pendingConnections) {
+        int threads = Math.min(poolSize, maxConnections);
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "connection-" + threadCount.incrementAndGet()));
+        executor.allowCoreThreadTimeOut(true);
+        return new ConnectionExecutor(executor, threads, pendingConnections);
+    }
+
+    /**
+     * Creates a {@link ConnectionExecutor} as specified by the given {@link Configuration}.
+     * Falls back to a platform thread pool if virtual threads are not available.
+     *
+     * @param config the configuration to read the connection properties from.
+     * @return a new {@link ConnectionExecutor}.
+     */
+    public static ConnectionExecutor fromConfig(Configuration config) {
+        int maxConnections = config.getInt("maxConnections");
+        int pendingConnections = config.getInt("pendingConnections");
+        int poolSize = config.getInt("connectionPoolSize");
+        String type = config.getValue("connectionExecutor");
+        if (VIRTUAL.equalsIgnoreCase(type)) {
+            try {
+                return newVirtualThreadExecutor(maxConnections, pendingConnections);
+            } catch (UnsupportedOperationException e) {
+                System.out.println(e.getMessage() + " Using a platform thread pool instead.");
+                return newPlatformThreadExecutor(poolSize, maxConnections, pendingConnections);
+            }
+        } else if (POOL.equalsIgnoreCase(type)) {
+            return newPlatformThreadExecutor(poolSize, maxConnections, pendingConnections);
+        }
+        throw new IllegalArgumentException("Unknown connection executor: " + type);
+    }
+
+    /**
+     * Creates the executor of the tasks that flush the outbound queues of connections, which block for as long as a
+     * client reads slowly. Each task is run on a new virtual thread if the {@code connectionExecutor} property is
+     * {@code virtual} and the runtime supports it, or on a pool of at most {@code outboundWriterThreads} daemon
+     * platform threads otherwise.
+     *
+     * @param config the configuration to read the executor properties from.
+     * @return a new {@link ExecutorService}.
+     */
+    public static ExecutorService newWriterExecutor(Configuration config) {
+        if (VIRTUAL.equalsIgnoreCase(config.getValue("connectionExecutor"))) {
+            ExecutorService executor = newVirtualThreadPerTaskExecutor();
+            if (executor != null) {
+                return executor;
+            }
+        }
+        int threads = config.getInt("outboundWriterThreads");
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> {
+                    Thread t = new Thread(r, "writer-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            return null; // not supported (or a preview feature) in this runtime
+        }
+    }
+
+    /**
+     * Runs the given session as soon as there is a free connection slot.
+     *
+     * @param session the session to run.
+     * @return {@code true} if the session was started or queued, {@code false} if it was rejected.
+     */
+    public boolean execute(Runnable session) {
+        if (isShutdown) {
+            return false;
+        }
+        if (permits.tryAcquire()) {
+            start(session);
+            return true;
+        }
+        if (pending.offer(session)) {
+            startPending(); // a slot may have been freed in the meantime
+            return true;
+        }
+        return false;
+    }
+
+    private void start(Runnable session) {
+        try {
+            executor.execute(() -> {
+                try {
+                    session.run();
+                } finally {
+                    permits.release();
+                    startPending();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void startPending() {
+        while (!isShutdown && !pending.isEmpty() && permits.tryAcquire()) {
+            Runnable session = pending.poll();
+            if (session == null) {
+                permits.release();
+                return;
+            }
+            start(session);
+        }
+    }
+
+    /**
+     * Stops accepting sessions. Running sessions are allowed to finish.
+     *
+     * @return the pending sessions that were never started.
+     */
+    public List<Runnable> shutdown() {
+        isShutdown = true;
+        executor.shutdown();
+        List<Runnable> notStarted = new LinkedList<>();
+        pending.drainTo(notStarted);
+        return notStarted;
+    }
+
+    /**
+     * Waits for running sessions to finish after a {@link #shutdown()}.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit    the time unit of the timeout argument.
+     * @return {@code true} if all sessions finished, {@code false} if the timeout elapsed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    public boolean isShutdown() {
+        return isShutdown;
+    }
+
+    public int getActiveConnections() {
+        return maxConnections - permits.availablePermits();
+    }
+
+    public int getPendingConnections() {
+        return pending.size();
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+}
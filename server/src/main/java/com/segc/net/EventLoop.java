@@ -0,0 +1,150 @@
+package com.segc.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single-threaded selector loop that performs all socket and TLS I/O for the connections registered with it.
+ * <p>
+ * The network and application buffers are shared by every connection of the loop, so an idle connection only keeps
+ * the TLS bytes that could not be processed or written yet.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean isRunning = true;
+    ByteBuffer netIn;
+    ByteBuffer netOut;
+    ByteBuffer appIn;
+
+    EventLoop(String name, int packetBufferSize, int applicationBufferSize) throws IOException {
+        this.selector = Selector.open();
+        this.netIn = ByteBuffer.allocateDirect(packetBufferSize * 2);
+        this.netOut = ByteBuffer.allocateDirect(packetBufferSize);
+        this.appIn = ByteBuffer.allocate(applicationBufferSize);
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Runs the given task on this loop's thread.
+     *
+     * @param task the task to run.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Registers the given connection with this loop.
+     *
+     * @param connection the connection to register.
+     */
+    void register(NioConnection connection) {
+        execute(() -> {
+            try {
+                SelectionKey key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.onRegistered(key);
+            } catch (IOException e) {
+                connection.abort(e);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (isRunning) {
+                selector.select();
+                runTasks();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException e) {
+                        connection.abort(e);
+                    } catch (CancelledKeyException e) {
+                        // connection closed by another task in this iteration
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (isRunning) {
+                e.printStackTrace();
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).abort(null);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Returns a network input buffer large enough for at least {@code size} bytes, preserving its contents.
+     */
+    ByteBuffer growNetIn(int size) {
+        netIn = grow(netIn, size);
+        return netIn;
+    }
+
+    ByteBuffer growNetOut(int size) {
+        netOut = grow(netOut, size);
+        return netOut;
+    }
+
+    ByteBuffer growAppIn(int size) {
+        appIn = grow(appIn, size);
+        return appIn;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int size) {
+        if (buffer.capacity() >= size) {
+            return buffer;
+        }
+        ByteBuffer grown = buffer.isDirect() ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        buffer.flip();
+        return grown.put(buffer);
+    }
+
+    void shutdown() {
+        isRunning = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,20 @@
+package com.segc.net;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a stream that does not block when a read needs more data than has been received. The read consumes
+ * nothing, and the session resets the stream to the start of the message, to read it again once the rest of it
+ * arrives.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class IncompleteInputException extends IOException {
+    private static final long serialVersionUID = -2370183146514127493L;
+
+    public IncompleteInputException(int missingBytes) {
+        super("Waiting for " + missingBytes + " more bytes.");
+    }
+}
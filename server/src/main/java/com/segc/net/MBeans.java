@@ -0,0 +1,38 @@
+package com.segc.net;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Registers the management beans of the server with the platform MBean server.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public final class MBeans {
+    public static final String DOMAIN = "com.segc";
+
+    private MBeans() {
+    }
+
+    /**
+     * Registers the given bean as {@code com.segc:type=<type>}, replacing any bean previously registered with that
+     * name.
+     *
+     * @param mbean the bean to register.
+     * @param type  the type key of the bean's name.
+     */
+    public static void register(Object mbean, String type) {
+        try {
+            ObjectName name = new ObjectName(DOMAIN, "type", type);
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+}
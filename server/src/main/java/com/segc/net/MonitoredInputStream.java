@@ -0,0 +1,39 @@
+package com.segc.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An {@link InputStream} that records each successful read as activity of a {@link SessionManager.LiveSession}.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class MonitoredInputStream extends FilterInputStream {
+    private final SessionManager.LiveSession session;
+
+    public MonitoredInputStream(InputStream in, SessionManager.LiveSession session) {
+        super(in);
+        this.session = session;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            session.touch();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            session.touch();
+        }
+        return n;
+    }
+}
@@ -0,0 +1,628 @@
+package com.segc.net;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A non-blocking TLS connection driven by an {@link EventLoop}.
+ * <p>
+ * All socket and {@link SSLEngine} operations run on the event loop. Decrypted data is buffered until a worker thread
+ * runs the {@link Session}, whose reads never wait for the client: a read past the data received throws
+ * {@link IncompleteInputException}, and the session is only scheduled again once the bytes that read was missing have
+ * arrived, such as the rest of a length-prefixed frame. A worker is only scheduled while there is data to process, so
+ * an idle or stalled connection holds no thread. A session that can only read its messages by waiting for them, as
+ * they are not framed, is run on a thread of its own instead.
+ * <p>
+ * Responses are queued and written by the event loop with gathering {@link SSLEngine#wrap(ByteBuffer[], ByteBuffer)}
+ * calls, so the session never waits for the client to read them. While more than the transport's high water mark is
+ * queued, no further requests are read from the connection; once the outbound byte budget is exceeded, the connection
+ * is aborted.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+class NioConnection {
+    private static final ByteBuffer[] EMPTY = {ByteBuffer.allocate(0)};
+    private static final byte[] NO_DATA = new byte[0];
+    final SocketChannel channel;
+    private final NioTransport transport;
+    private final SSLEngine engine;
+    private final EventLoop loop;
+    private final InputStream in = new ConnectionInputStream();
+    private final OutboundStream out = new ConnectionOutputStream();
+
+    // confined to the event loop
+    private SelectionKey key;
+    private SessionManager.LiveSession liveSession;
+    private ByteBuffer netInRemainder;
+    private ByteBuffer netOutRemainder;
+    private boolean isRunningTasks;
+    private boolean isEndOfStream;
+    private boolean isHandshakeFinished;
+    private boolean isChannelClosed;
+
+    // guarded by this
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+    private long outboundBytes;
+    private boolean isBackpressured;
+    private byte[] appIn = NO_DATA; // received data, kept from the mark if it is set, or else from the read position
+    private int appInPosition;
+    private int appInLimit;
+    private int appInMark = -1;
+    private int missingBytes; // received data the session is waiting for, before it can read its next message
+    private boolean isBlockingInput;
+    private boolean isScheduled;
+    private boolean isFlushPending;
+    private boolean isInputClosed;
+    private boolean isClosed;
+
+    // written by the worker running the session, closed by the event loop
+    private volatile Session session;
+
+    NioConnection(NioTransport transport, SocketChannel channel, SSLEngine engine, EventLoop loop) {
+        this.transport = transport;
+        this.channel = channel;
+        this.engine = engine;
+        this.loop = loop;
+    }
+
+    void onRegistered(SelectionKey key) {
+        this.key = key;
+        this.liveSession = transport.sessionManager.register(() -> abort(null));
+        try {
+            engine.beginHandshake();
+        } catch (SSLException e) {
+            abort(e);
+        }
+    }
+
+    void onReadable() throws IOException {
+        ByteBuffer netIn = loop.netIn;
+        netIn.clear();
+        if (netInRemainder != null) {
+            netIn = loop.growNetIn(netInRemainder.remaining() + engine.getSession().getPacketBufferSize());
+            netIn.put(netInRemainder);
+            netInRemainder = null;
+        }
+        int n = channel.read(netIn);
+        if (n < 0) {
+            isEndOfStream = true;
+        } else if (n > 0) {
+            liveSession.touch();
+        }
+        netIn.flip();
+        unwrap(netIn);
+        if (netIn.hasRemaining()) {
+            netInRemainder = ByteBuffer.allocate(netIn.remaining()).put(netIn).flip();
+        }
+        if (isEndOfStream) {
+            try {
+                engine.closeInbound();
+            } catch (SSLException e) {
+                // peer did not send close_notify
+            }
+            onInputClosed();
+        }
+        flush();
+    }
+
+    private void unwrap(ByteBuffer netIn) throws IOException {
+        while (netIn.hasRemaining() && !isRunningTasks) {
+            ByteBuffer app = loop.appIn;
+            app.clear();
+            SSLEngineResult result = engine.unwrap(netIn, app);
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    loop.growAppIn(engine.getSession().getApplicationBufferSize());
+                    continue;
+                case BUFFER_UNDERFLOW:
+                    return; // incomplete record, wait for more data
+                case CLOSED:
+                    onInputClosed();
+                    return;
+                default:
+                    break;
+            }
+            app.flip();
+            if (app.hasRemaining()) {
+                deliver(app);
+            }
+            if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+                onHandshakeFinished();
+            } else if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            } else if (result.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Encrypts and writes as much outbound data as the socket accepts without blocking.
+     */
+    void flush() throws IOException {
+        if (isChannelClosed) {
+            return;
+        }
+        if (netOutRemainder != null) {
+            channel.write(netOutRemainder);
+            if (netOutRemainder.hasRemaining()) {
+                updateInterestOps();
+                return;
+            }
+            netOutRemainder = null;
+        }
+        while (!isRunningTasks) {
+            ByteBuffer[] srcs;
+            synchronized (this) {
+                isFlushPending = false;
+                srcs = outbound.isEmpty() ? EMPTY : outbound.toArray(new ByteBuffer[0]);
+            }
+            if (srcs == EMPTY && engine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP) {
+                break;
+            }
+            ByteBuffer netOut = loop.netOut;
+            netOut.clear();
+            SSLEngineResult result = engine.wrap(srcs, netOut);
+            boolean isResumed = false;
+            synchronized (this) {
+                while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                    outbound.poll();
+                }
+                outboundBytes -= result.bytesConsumed();
+                if (isBackpressured && outboundBytes <= transport.highWaterMark / 2) {
+                    isBackpressured = false;
+                    isResumed = true;
+                }
+            }
+            if (isResumed) {
+                onBackpressureReleased();
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                loop.growNetOut(engine.getSession().getPacketBufferSize());
+                continue;
+            }
+            netOut.flip();
+            channel.write(netOut);
+            if (netOut.hasRemaining()) {
+                netOutRemainder = ByteBuffer.allocate(netOut.remaining()).put(netOut).flip();
+                updateInterestOps();
+                return;
+            }
+            if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+                onHandshakeFinished();
+            } else if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                return;
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED
+                    || result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                break;
+            }
+        }
+        updateInterestOps();
+        finishClose();
+    }
+
+    private void onHandshakeFinished() {
+        if (!isHandshakeFinished) {
+            isHandshakeFinished = true;
+            schedule(); // the session speaks first
+        }
+    }
+
+    private void runDelegatedTasks() {
+        List<Runnable> tasks = new LinkedList<>();
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            tasks.add(task);
+        }
+        isRunningTasks = true;
+        updateInterestOps();
+        try {
+            transport.workers.execute(() -> {
+                tasks.forEach(Runnable::run);
+                loop.execute(this::resume);
+            });
+        } catch (RejectedExecutionException e) {
+            abort(null);
+        }
+    }
+
+    private void resume() {
+        isRunningTasks = false;
+        try {
+            if (netInRemainder != null) {
+                ByteBuffer netIn = netInRemainder;
+                netInRemainder = null;
+                unwrap(netIn);
+                if (netIn.hasRemaining()) {
+                    netInRemainder = netIn.compact().flip();
+                }
+            }
+            flush();
+        } catch (IOException e) {
+            abort(e);
+        }
+    }
+
+    private void updateInterestOps() {
+        if (isChannelClosed || !key.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if (!isRunningTasks && !isEndOfStream && !isBackpressured()) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (netOutRemainder != null) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    private synchronized void deliver(ByteBuffer data) {
+        int length = data.remaining();
+        if (appIn.length - appInLimit < length) {
+            int start = appInMark >= 0 ? appInMark : appInPosition;
+            int size = appInLimit - start;
+            byte[] buffer = appIn.length - size >= length ? appIn : new byte[Math.max(size + length, 2 * size)];
+            System.arraycopy(appIn, start, buffer, 0, size);
+            appIn = buffer;
+            appInPosition -= start;
+            appInMark = appInMark >= 0 ? 0 : -1;
+            appInLimit = size;
+        }
+        data.get(appIn, appInLimit, length);
+        appInLimit += length;
+        missingBytes = Math.max(0, missingBytes - length);
+        notifyAll();
+        if (missingBytes == 0) {
+            schedule();
+        }
+    }
+
+    /**
+     * Releases the buffer of received data once it has all been read, so an idle connection keeps no buffer.
+     */
+    private void releaseInput() {
+        if (appInPosition == appInLimit && (appInMark < 0 || appInMark == appInPosition)) {
+            appIn = NO_DATA;
+            appInPosition = 0;
+            appInLimit = 0;
+            appInMark = appInMark >= 0 ? 0 : -1;
+        }
+    }
+
+    private synchronized void onBackpressureReleased() {
+        notifyAll();
+        if (isReady()) {
+            schedule();
+        }
+    }
+
+    private synchronized void onInputClosed() {
+        isInputClosed = true;
+        notifyAll();
+        if (!isScheduled) {
+            close();
+        }
+    }
+
+    private synchronized boolean hasInput() {
+        return appInPosition < appInLimit;
+    }
+
+    /**
+     * Returns whether the session can make progress with the data received.
+     */
+    private synchronized boolean isReady() {
+        return hasInput() && missingBytes == 0;
+    }
+
+    private synchronized boolean isBackpressured() {
+        return isBackpressured;
+    }
+
+    private synchronized void schedule() {
+        if (isScheduled || isClosed) {
+            return;
+        }
+        isScheduled = true;
+        try {
+            transport.workers.execute(this::process);
+        } catch (RejectedExecutionException e) {
+            isScheduled = false;
+            close();
+        }
+    }
+
+    /**
+     * Runs the session on a worker thread for as long as it can make progress with the buffered input.
+     */
+    private void process() {
+        boolean isHandedOver = false;
+        try {
+            if (session == null) {
+                session = transport.newSession(in, out);
+            }
+            do {
+                if (!session.onInput()) {
+                    close();
+                    return;
+                }
+                if (!session.isNonBlocking()) {
+                    isHandedOver = handOver();
+                    return;
+                }
+            } while (isReady() && !isBackpressured());
+        } catch (EOFException e) {
+            close();
+        } catch (IOException | ClassNotFoundException | GeneralSecurityException | RuntimeException e) {
+            e.printStackTrace();
+            close();
+        } finally {
+            if (!isHandedOver) {
+                synchronized (this) {
+                    isScheduled = false;
+                    if (isReady() && !isBackpressured) {
+                        schedule();
+                    } else if (isInputClosed) {
+                        close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the session on a thread of its own, with reads that wait for data, as the workers must not wait for the
+     * client. The connection stays scheduled, so no worker runs the session again.
+     *
+     * @return {@code true} if the session was handed over, {@code false} if the connection is closing.
+     */
+    private boolean handOver() {
+        synchronized (this) {
+            isBlockingInput = true;
+            missingBytes = 0;
+        }
+        try {
+            transport.blockingSessions.execute(() -> {
+                try {
+                    while (session.onInput()) {
+                        // each call waits for the next request
+                    }
+                } catch (EOFException e) {
+                    // the client disconnected
+                } catch (IOException | ClassNotFoundException | GeneralSecurityException | RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    close();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            close();
+            return false;
+        }
+    }
+
+    private void enqueue(ByteBuffer data) throws IOException {
+        synchronized (this) {
+            if (isClosed) {
+                throw new IOException("Connection is closed.");
+            }
+            outbound.add(data);
+            outboundBytes += data.remaining();
+            if (outboundBytes > transport.maxOutboundBytes) {
+                IOException e = new IOException("Outbound byte budget exceeded.");
+                abort(e);
+                throw e;
+            }
+            if (outboundBytes > transport.highWaterMark) {
+                isBackpressured = true;
+            }
+            if (isFlushPending) {
+                return;
+            }
+            isFlushPending = true;
+        }
+        loop.execute(() -> {
+            try {
+                flush();
+            } catch (IOException e) {
+                abort(e);
+            }
+        });
+    }
+
+    /**
+     * Closes this connection once all outbound data has been written.
+     */
+    void close() {
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            notifyAll();
+        }
+        loop.execute(() -> {
+            try {
+                flush();
+            } catch (IOException e) {
+                abort(e);
+            }
+        });
+    }
+
+    private void finishClose() throws IOException {
+        synchronized (this) {
+            if (!isClosed || !outbound.isEmpty()) {
+                return;
+            }
+        }
+        if (netOutRemainder != null) {
+            return;
+        }
+        if (!engine.isOutboundDone()) {
+            engine.closeOutbound(); // flush again to send close_notify
+            flush();
+            return;
+        }
+        closeChannel();
+    }
+
+    /**
+     * Closes this connection immediately, discarding any outbound data.
+     *
+     * @param cause the error that caused the connection to be aborted, if any.
+     */
+    void abort(Exception cause) {
+        if (cause != null && !(cause instanceof EOFException)) {
+            System.out.println("Connection aborted: " + cause.getMessage());
+        }
+        synchronized (this) {
+            isClosed = true;
+            outbound.clear();
+            outboundBytes = 0;
+            notifyAll();
+        }
+        if (loop.inEventLoop()) {
+            closeChannel();
+        } else {
+            loop.execute(this::closeChannel);
+        }
+    }
+
+    private void closeChannel() {
+        if (isChannelClosed) {
+            return;
+        }
+        isChannelClosed = true;
+        if (key != null) {
+            key.cancel();
+            liveSession.unregister();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Session s = session;
+        if (s != null) {
+            s.close();
+        }
+        transport.onClosed(this);
+    }
+
+    private class ConnectionInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        /**
+         * Reads all the given bytes, unless the input is closed, or else consumes nothing and throws
+         * {@link IncompleteInputException}, so no worker waits for the client. Once the session is handed over, reads
+         * wait for data, while the connection is not backpressured, and may return fewer bytes.
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            synchronized (NioConnection.this) {
+                while (isBlockingInput && (!hasInput() || isBackpressured) && !isInputClosed && !isClosed) {
+                    try {
+                        NioConnection.this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                int available = appInLimit - appInPosition;
+                if (available < len && !isBlockingInput && !isInputClosed && !isClosed) {
+                    missingBytes = len - available;
+                    throw new IncompleteInputException(missingBytes);
+                }
+                if (available == 0) {
+                    return -1;
+                }
+                int n = Math.min(len, available);
+                System.arraycopy(appIn, appInPosition, b, off, n);
+                appInPosition += n;
+                releaseInput();
+                return n;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (NioConnection.this) {
+                return appInLimit - appInPosition;
+            }
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        /**
+         * Keeps the data received from the current position on, whatever the read limit, until the mark is moved.
+         */
+        @Override
+        public void mark(int readLimit) {
+            synchronized (NioConnection.this) {
+                appInMark = appInPosition;
+                releaseInput();
+            }
+        }
+
+        @Override
+        public void reset() throws IOException {
+            synchronized (NioConnection.this) {
+                if (appInMark < 0) {
+                    throw new IOException("Stream not marked.");
+                }
+                appInPosition = appInMark;
+            }
+        }
+    }
+
+    private class ConnectionOutputStream extends OutboundStream {
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                enqueue(ByteBuffer.allocate(len).put(b, off, len).flip());
+            }
+        }
+
+        @Override
+        public boolean offer(byte[] b, int off, int len) throws IOException {
+            synchronized (NioConnection.this) {
+                if (isBackpressured || outboundBytes + len > transport.maxOutboundBytes) {
+                    return false;
+                }
+                write(b, off, len);
+                return true;
+            }
+        }
+    }
+}
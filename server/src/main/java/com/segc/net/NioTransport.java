@@ -0,0 +1,168 @@
+package com.segc.net;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A non-blocking TLS server transport built on a {@link java.nio.channels.Selector} and {@link SSLEngine}.
+ * <p>
+ * A small number of {@link EventLoop}s perform all network I/O, while a separate pool of worker threads runs the
+ * request handlers of each {@link Session} once their messages have been received. Idle connections, and connections
+ * whose client is slow to send a message, are not bound to any thread, except for sessions whose messages are not
+ * framed, which wait for them on a thread of their own.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class NioTransport {
+    public static final String NIO = "nio";
+
+    private final int port;
+    private final SSLContext sslContext;
+    private final SessionFactory sessionFactory;
+    private final EventLoop[] loops;
+    private final int maxConnections;
+    final int highWaterMark;
+    final int maxOutboundBytes;
+    final SessionManager sessionManager;
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    final ExecutorService workers;
+    final ExecutorService blockingSessions;
+    private volatile ServerSocketChannel serverChannel;
+    private volatile boolean isRunning = true;
+
+    /**
+     * Creates a {@link NioTransport}.
+     *
+     * @param port             the port to listen on.
+     * @param sslContext       the context used to create the {@link SSLEngine} of each connection.
+     * @param sessionFactory   the factory of the session run on each connection.
+     * @param eventLoops       the number of event loop threads.
+     * @param workerThreads    the number of worker threads that run request handlers.
+     * @param maxConnections   the maximum number of concurrent connections.
+     * @param highWaterMark    the number of queued outbound bytes above which a connection stops reading requests.
+     * @param maxOutboundBytes the number of queued outbound bytes above which a connection is aborted.
+     * @param sessionManager   the manager that tracks the sessions of this transport.
+     * @throws IOException if a selector cannot be opened.
+     */
+    public NioTransport(int port,
+                        SSLContext sslContext,
+                        SessionFactory sessionFactory,
+                        int eventLoops,
+                        int workerThreads,
+                        int maxConnections,
+                        int highWaterMark,
+                        int maxOutboundBytes,
+                        SessionManager sessionManager) throws IOException {
+        this.port = port;
+        this.sslContext = sslContext;
+        this.sessionFactory = sessionFactory;
+        this.maxConnections = maxConnections;
+        this.highWaterMark = highWaterMark;
+        this.maxOutboundBytes = maxOutboundBytes;
+        this.sessionManager = sessionManager;
+        SSLSession defaultSession = sslContext.createSSLEngine().getSession();
+        this.loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new EventLoop("event-loop-" + (i + 1),
+                    defaultSession.getPacketBufferSize(),
+                    defaultSession.getApplicationBufferSize());
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerThreads,
+                r -> new Thread(r, "nio-worker-" + threadCount.incrementAndGet()));
+        AtomicInteger sessionCount = new AtomicInteger();
+        this.blockingSessions = Executors.newCachedThreadPool(
+                r -> new Thread(r, "nio-session-" + sessionCount.incrementAndGet()));
+    }
+
+    /**
+     * Accepts connections until {@link #stop(long, TimeUnit)} is called.
+     *
+     * @throws IOException if the server socket cannot be opened.
+     */
+    public void start() throws IOException {
+        try (ServerSocketChannel ssc = ServerSocketChannel.open()) {
+            ssc.bind(new InetSocketAddress(port));
+            serverChannel = ssc;
+            for (EventLoop loop : loops) {
+                loop.start();
+            }
+            int nextLoop = 0;
+            while (isRunning) {
+                SocketChannel channel;
+                try {
+                    channel = ssc.accept();
+                } catch (ClosedChannelException e) {
+                    break;
+                }
+                if (activeConnections.incrementAndGet() > maxConnections) {
+                    activeConnections.decrementAndGet();
+                    System.out.println("Connection limit reached, rejecting " + channel.getRemoteAddress());
+                    channel.close();
+                    continue;
+                }
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                SSLEngine engine = sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                EventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                loop.register(new NioConnection(this, channel, engine, loop));
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes the event loops once the running handlers finish.
+     *
+     * @param timeout the maximum time to wait for running handlers.
+     * @param unit    the time unit of the timeout argument.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void stop(long timeout, TimeUnit unit) throws InterruptedException {
+        isRunning = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        workers.shutdown();
+        blockingSessions.shutdown();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!workers.awaitTermination(timeout, unit)
+            || !blockingSessions.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            System.out.println("Timed out waiting for active sessions to end.");
+        }
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    Session newSession(InputStream in, OutboundStream out) {
+        return sessionFactory.newSession(in, out);
+    }
+
+    void onClosed(NioConnection connection) {
+        activeConnections.decrementAndGet();
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+}
@@ -0,0 +1,34 @@
+package com.segc.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The stream of data sent to a client, which is queued by the transport before it is written to the connection.
+ * <p>
+ * Besides the writes of a session, which may block while the client reads slowly, data may be
+ * {@link #offer offered} from other threads, which must never wait for the client.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public abstract class OutboundStream extends OutputStream {
+
+    /**
+     * Queues the given data as a single write, without blocking, unless the client is not reading its data fast
+     * enough.
+     *
+     * @param b   the data.
+     * @param off the start offset in the data.
+     * @param len the number of bytes to queue.
+     * @return {@code true} if the data was queued, {@code false} if more data than the high-water mark is queued.
+     * @throws IOException if the stream is closed.
+     */
+    public abstract boolean offer(byte[] b, int off, int len) throws IOException;
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+}
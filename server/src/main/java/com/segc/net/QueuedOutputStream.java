@@ -0,0 +1,242 @@
+package com.segc.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link OutboundStream} that places written data on a bounded queue, which is flushed to the underlying stream by a
+ * writer task, so a session is not blocked by a client that reads its responses slowly.
+ * <p>
+ * Writes block while more than {@code highWaterMark} bytes are queued, and fail once more than
+ * {@code maxQueuedBytes} bytes are queued or once they have blocked for longer than the write timeout, after which
+ * the connection should be closed, so a client that stops reading does not hold the session's thread. The writer task writes a
+ * single batch of data at a time and then resubmits itself, so a slow client does not keep a thread of a bounded
+ * executor from the other connections for longer than a single write. Data {@link #offer offered} is only queued
+ * while at most {@code highWaterMark} bytes are queued.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class QueuedOutputStream extends OutboundStream {
+    private static final int MAX_GATHER_SIZE = 16 * 1024;
+
+    private final OutputStream out;
+    private final Executor writers;
+    private final int highWaterMark;
+    private final int maxQueuedBytes;
+    private final long writeTimeoutNanos;
+
+    // guarded by this
+    private final Queue<byte[]> queue = new ArrayDeque<>();
+    private long queuedBytes;
+    private boolean isWriting;
+    private boolean isClosed;
+    private IOException failure;
+
+    /**
+     * Creates a {@link QueuedOutputStream}.
+     *
+     * @param out            the stream to flush the queued data to.
+     * @param writers        the executor that runs the writer task.
+     * @param highWaterMark  the number of queued bytes above which writes block.
+     * @param maxQueuedBytes the number of queued bytes above which writes fail.
+     * @param writeTimeout   the time, in milliseconds, after which a blocked write fails, or {@code 0} to block
+     *                       writes indefinitely.
+     */
+    public QueuedOutputStream(OutputStream out,
+                              Executor writers,
+                              int highWaterMark,
+                              int maxQueuedBytes,
+                              long writeTimeout) {
+        this.out = out;
+        this.writers = writers;
+        this.highWaterMark = highWaterMark;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeout);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        if (len == 0) {
+            return;
+        }
+        if (queuedBytes + len > maxQueuedBytes) {
+            failure = new IOException("Outbound byte budget exceeded.");
+            queue.clear();
+            notifyAll();
+            throw failure;
+        }
+        enqueue(b, off, len);
+        long deadline = System.nanoTime() + writeTimeoutNanos;
+        while (queuedBytes > highWaterMark && failure == null) {
+            if (writeTimeoutNanos == 0) {
+                await();
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                failure = new IOException("Client is not reading its responses.");
+                queue.clear();
+                notifyAll();
+                break;
+            }
+            await(remaining);
+        }
+        checkOpen();
+    }
+
+    @Override
+    public synchronized boolean offer(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        if (queuedBytes > highWaterMark || queuedBytes + len > maxQueuedBytes) {
+            return false;
+        }
+        if (len > 0) {
+            enqueue(b, off, len);
+        }
+        return true;
+    }
+
+    private void enqueue(byte[] b, int off, int len) throws IOException {
+        byte[] data = new byte[len];
+        System.arraycopy(b, off, data, 0, len);
+        queue.add(data);
+        queuedBytes += len;
+        if (!isWriting) {
+            isWriting = true;
+            try {
+                writers.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                isWriting = false;
+                throw new IOException("Connection is closing.", e);
+            }
+        }
+    }
+
+    /**
+     * Does not wait for the queued data, which the writer task flushes as soon as possible.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        checkOpen();
+    }
+
+    /**
+     * Waits until all queued data has been written. The underlying stream is left open.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        while (isWriting && failure == null) {
+            await();
+        }
+        isClosed = true;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (isClosed) {
+            throw new IOException("Stream closed.");
+        }
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void await(long nanos) throws InterruptedIOException {
+        try {
+            TimeUnit.NANOSECONDS.timedWait(this, nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Writes the oldest queued data, coalescing small chunks into a single write, and resubmits itself if more data
+     * is queued.
+     */
+    private void drain() {
+        try {
+            byte[] chunk;
+            synchronized (this) {
+                if (queue.isEmpty() || failure != null) {
+                    isWriting = false;
+                    notifyAll();
+                    return;
+                }
+                chunk = poll();
+            }
+            out.write(chunk);
+            out.flush();
+            synchronized (this) {
+                queuedBytes -= chunk.length;
+                notifyAll();
+                if (queue.isEmpty()) {
+                    isWriting = false;
+                    return;
+                }
+            }
+            writers.execute(this::drain);
+        } catch (IOException | RejectedExecutionException e) {
+            synchronized (this) {
+                failure = e instanceof IOException ? (IOException) e : new IOException("Connection is closing.", e);
+                queue.clear();
+                isWriting = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest chunk from the queue, along with the chunks after it that fit in a single write of at most
+     * {@link #MAX_GATHER_SIZE} bytes.
+     */
+    private byte[] poll() {
+        int size = 0;
+        int count = 0;
+        for (byte[] next : queue) {
+            if (count > 0 && size + next.length > MAX_GATHER_SIZE) {
+                break;
+            }
+            size += next.length;
+            count++;
+        }
+        if (count == 1) {
+            return queue.poll();
+        }
+        byte[] gathered = new byte[size];
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            byte[] next = queue.poll();
+            System.arraycopy(next, 0, gathered, offset, next.length);
+            offset += next.length;
+        }
+        return gathered;
+    }
+}
@@ -0,0 +1,41 @@
+package com.segc.net;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * A client session running on top of a transport's input and output streams.
+ * <p>
+ * The session is driven by the data it receives: each call to {@link #onInput} handles the next message, starting with
+ * the authentication handshake. A transport that does not block lets reads throw {@link IncompleteInputException} once
+ * they pass the data received so far, and the session then resets the stream to the {@link java.io.InputStream#mark
+ * mark} it set at the start of the message, so the transport calls it again once the rest of the message arrives.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public interface Session {
+
+    /**
+     * Handles the next message from the client, along with any pipelined requests that were deferred while it was
+     * being handled, or leaves it in the stream if it has not been received completely.
+     *
+     * @return {@code true} if the session continues, {@code false} if the client has ended it or failed to
+     * authenticate.
+     */
+    boolean onInput() throws IOException, ClassNotFoundException, GeneralSecurityException;
+
+    /**
+     * Returns whether the messages of this session can be read from a stream that does not block, which is only the
+     * case if a message can be read again from its start. Otherwise, the transport must run the session with reads
+     * that wait for data.
+     */
+    boolean isNonBlocking();
+
+    /**
+     * Releases the resources held by this session once its connection is closed.
+     */
+    default void close() {
+    }
+}
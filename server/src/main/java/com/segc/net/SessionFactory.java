@@ -0,0 +1,23 @@
+package com.segc.net;
+
+import java.io.InputStream;
+
+/**
+ * Creates a {@link Session} for each connection accepted by a transport.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+@FunctionalInterface
+public interface SessionFactory {
+
+    /**
+     * Creates a session that reads from and writes to the given (decrypted) streams.
+     *
+     * @param in  the stream of data received from the client.
+     * @param out the stream of data to send to the client.
+     * @return a new session.
+     */
+    Session newSession(InputStream in, OutboundStream out);
+}
@@ -0,0 +1,156 @@
+package com.segc.net;
+
+import com.segc.Configuration;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the live sessions of a transport and closes those that are idle or have been open for too long.
+ * <p>
+ * A session is idle when nothing has been read from its connection for longer than the idle timeout. Clients that
+ * have nothing to send keep their sessions alive with {@link com.segc.Opcode#PING} requests. A timeout of {@code 0}
+ * disables the corresponding check.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class SessionManager implements SessionManagerMXBean {
+    private final long idleTimeout;
+    private final long maxSessionDuration;
+    private final Map<LiveSession, Boolean> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong openedSessions = new AtomicLong();
+    private final AtomicLong closedSessions = new AtomicLong();
+    private final AtomicLong idleTimeouts = new AtomicLong();
+    private final AtomicLong expiredSessions = new AtomicLong();
+    private final ScheduledExecutorService reaper;
+
+    /**
+     * Creates a {@link SessionManager}.
+     *
+     * @param idleTimeout        the time after which an idle session is closed.
+     * @param maxSessionDuration the time after which any session is closed.
+     * @param checkInterval      the interval between checks.
+     * @param unit               the time unit of the other arguments.
+     */
+    public SessionManager(long idleTimeout, long maxSessionDuration, long checkInterval, TimeUnit unit) {
+        this.idleTimeout = unit.toNanos(idleTimeout);
+        this.maxSessionDuration = unit.toNanos(maxSessionDuration);
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        if (idleTimeout > 0 || maxSessionDuration > 0) {
+            reaper.scheduleWithFixedDelay(this::closeInactiveSessions, checkInterval, checkInterval, unit);
+        }
+    }
+
+    /**
+     * Creates a {@link SessionManager} with the {@code idleTimeout}, {@code maxSessionDuration} and
+     * {@code sessionCheckInterval} properties, in seconds.
+     *
+     * @param config the configuration to read.
+     * @return a new {@link SessionManager}.
+     */
+    public static SessionManager fromConfig(Configuration config) {
+        return new SessionManager(config.getInt("idleTimeout"),
+                config.getInt("maxSessionDuration"),
+                config.getInt("sessionCheckInterval"),
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Starts tracking a session.
+     *
+     * @param closer closes the connection of the session when it is idle or expired.
+     * @return the tracked session, which must be unregistered when its connection is closed.
+     */
+    public LiveSession register(Runnable closer) {
+        LiveSession session = new LiveSession(closer);
+        sessions.put(session, Boolean.TRUE);
+        openedSessions.incrementAndGet();
+        return session;
+    }
+
+    private void closeInactiveSessions() {
+        long now = System.nanoTime();
+        for (LiveSession session : sessions.keySet()) {
+            if (maxSessionDuration > 0 && now - session.openedAt > maxSessionDuration) {
+                expiredSessions.incrementAndGet();
+                session.close();
+            } else if (idleTimeout > 0 && now - session.lastActivity > idleTimeout) {
+                idleTimeouts.incrementAndGet();
+                session.close();
+            }
+        }
+    }
+
+    public void shutdown() {
+        reaper.shutdownNow();
+    }
+
+    @Override
+    public int getLiveSessions() {
+        return sessions.size();
+    }
+
+    @Override
+    public long getOpenedSessions() {
+        return openedSessions.get();
+    }
+
+    @Override
+    public long getClosedSessions() {
+        return closedSessions.get();
+    }
+
+    @Override
+    public long getIdleTimeouts() {
+        return idleTimeouts.get();
+    }
+
+    @Override
+    public long getExpiredSessions() {
+        return expiredSessions.get();
+    }
+
+    /**
+     * A session tracked by a {@link SessionManager}.
+     */
+    public class LiveSession {
+        private final long openedAt = System.nanoTime();
+        private final Runnable closer;
+        private volatile long lastActivity = openedAt;
+
+        private LiveSession(Runnable closer) {
+            this.closer = closer;
+        }
+
+        /**
+         * Records that data was read from the connection of this session.
+         */
+        public void touch() {
+            lastActivity = System.nanoTime();
+        }
+
+        /**
+         * Stops tracking this session.
+         */
+        public void unregister() {
+            if (sessions.remove(this) != null) {
+                closedSessions.incrementAndGet();
+            }
+        }
+
+        private void close() {
+            unregister();
+            closer.run();
+        }
+    }
+}
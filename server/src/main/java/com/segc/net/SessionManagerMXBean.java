@@ -0,0 +1,21 @@
+package com.segc.net;
+
+/**
+ * The management interface of a {@link SessionManager}.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public interface SessionManagerMXBean {
+
+    int getLiveSessions();
+
+    long getOpenedSessions();
+
+    long getClosedSessions();
+
+    long getIdleTimeouts();
+
+    long getExpiredSessions();
+}
@@ -1,6 +1,7 @@
 package com.segc.services;
 
 import com.segc.Configuration;
+import com.segc.exception.DataIntegrityException;
 import com.segc.exception.DuplicateElementException;
 
 import javax.crypto.SecretKey;
@@ -8,18 +9,30 @@ import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.PBEParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A class that handles authentication.
+ * <p>
+ * User credentials are stored in a {@link CredentialLog}, which is replayed once, when the service is created, and
+ * kept in memory. Each registration is written through as a single record appended to the log. Parsed certificates
+ * are kept in a {@link CertificateCache}.
  *
  * @author fc54685 Francisco Correia
  * @author fc55955 Alexandre Fonseca
@@ -32,6 +45,10 @@ public class AuthenticationService {
     private final char[] password;
     private final String userCredentialsAlgorithm;
     private final String baseCertificatesPath;
+    private final Map<String, String> credentials = new ConcurrentHashMap<>();
+    private final Set<String> pendingRegistrations = ConcurrentHashMap.newKeySet();
+    private final CredentialLog credentialLog;
+    private final CertificateCache certificateCache;
     private PBEParameterSpec pbeParameterSpec;
 
     public AuthenticationService(char[] password, CipherService cipherService) {
@@ -40,11 +57,14 @@ public class AuthenticationService {
         this.baseCertificatesPath = config.getValue("userCertificatesDir");
         this.userCredentials = new File(config.getValue("userCredentials"));
         this.userCredentialsAlgorithm = config.getValue("userCredentialsPBEAlgorithm");
+        this.certificateCache = new CertificateCache(config.getInt("certificateCacheSize"));
         try {
             initUserCredentials();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        this.credentialLog = new CredentialLog(Path.of(config.getValue("userCredentialsLog")), getLogKey());
+        loadUserCredentials();
     }
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
@@ -52,7 +72,7 @@ public class AuthenticationService {
         File userCertificatesDir = new File(baseCertificatesPath);
         userCertificatesDir.mkdirs();
         File userCredentialsParameters = new File(config.getValue("userCredentialsParameters"));
-        boolean fileExists = userCredentials.isFile();
+        boolean fileExists = userCredentialsParameters.isFile();
         if (fileExists) {
             try (BufferedReader br = new BufferedReader(new FileReader(userCredentialsParameters))) {
                 int iterationCount = Integer.parseInt(br.readLine());
@@ -65,8 +85,7 @@ public class AuthenticationService {
                 pbeParameterSpec = new PBEParameterSpec(salt, iterationCount, ivParameterSpec);
             }
         } else {
-            userCredentials.getParentFile().mkdirs();
-            userCredentials.createNewFile();
+            userCredentialsParameters.getParentFile().mkdirs();
             userCredentialsParameters.createNewFile();
             int iterationCount = config.getInt("userCredentialsIterationCount");
             pbeParameterSpec = CipherService.genPBEParameterSpec(iterationCount);
@@ -82,66 +101,76 @@ public class AuthenticationService {
         }
     }
 
-    private String getUserCredentials(String clientId) throws NoSuchElementException {
-        String pattern = clientId + ":";
-        synchronized (userCredentials) {
-            File decryptedUserCredentials = decrypt();
-            try (BufferedReader usersReader = new BufferedReader(new FileReader(decryptedUserCredentials))) {
-                return usersReader.lines()
-                                  .dropWhile(line -> !line.startsWith(pattern))
-                                  .findFirst()
-                                  .orElseThrow();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+    /**
+     * Replays the credential log into memory, compacting it if it has records that were replaced.
+     * <p>
+     * If there is no log yet, the credentials are migrated from the file encrypted as a whole, which is then deleted.
+     */
+    private void loadUserCredentials() {
+        boolean isMigration = !credentialLog.exists() && userCredentials.isFile();
+        credentials.putAll(credentialLog.replay());
+        if (isMigration) {
+            credentials.putAll(loadLegacyUserCredentials());
+            credentialLog.compact(credentials);
+            if (!userCredentials.delete()) {
+                System.out.println("Could not delete '" + userCredentials + "' after migrating it.");
             }
+            System.out.println("Migrated " + credentials.size() + " user credentials to the credential log.");
+        } else if (credentialLog.getRecordCount() > credentials.size()) {
+            credentialLog.compact(credentials);
         }
     }
 
-    public void registerUser(String clientId, Certificate cert) throws DuplicateElementException {
-        // TODO: store cert instead of writing password
+    /**
+     * Decrypts the credentials stored in the file encrypted as a whole, used before the credential log.
+     */
+    private Map<String, String> loadLegacyUserCredentials() {
+        Map<String, String> legacyCredentials = new LinkedHashMap<>();
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
         try {
-            getUserCredentials(clientId);
-            throw new DuplicateElementException();
-        } catch (NoSuchElementException e) {
-            synchronized (userCredentials) {
-                String certPath = Path.of(baseCertificatesPath, clientId + ".cer").toString();
-                try (FileOutputStream fos = new FileOutputStream(certPath)) {
-                    byte[] data = cert.getEncoded();
-                    fos.write(data);
-                } catch (IOException | CertificateEncodingException ioException) {
-                    throw new RuntimeException(ioException);
-                }
-                File decryptedUserCredentials = decrypt();
-                try (FileWriter fw = new FileWriter(decryptedUserCredentials, true);
-                     BufferedWriter bw = new BufferedWriter(fw)) {
-                    bw.write(clientId + ":" + certPath + "\n");
-                } catch (IOException ioException) {
-                    throw new RuntimeException(ioException);
-                }
-                encrypt(decryptedUserCredentials);
+            cipherService.decrypt(new FileInputStream(userCredentials), decrypted, getKeyFromPassword(),
+                    pbeParameterSpec);
+        } catch (FileNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+        String[] lines = decrypted.toString(StandardCharsets.UTF_8).split("\n");
+        for (String line : lines) {
+            String[] fields = line.split(":", 2);
+            if (fields.length == 2) {
+                legacyCredentials.put(fields[0], fields[1]);
             }
         }
+        return legacyCredentials;
     }
 
-    private File decrypt() {
-        try {
-            File decrypted = new File(config.getValue("userDecryptedCredential"));
-            SecretKey key = getKeyFromPassword();
-            cipherService.decrypt(new FileInputStream(userCredentials),
-                    new FileOutputStream(decrypted), key, pbeParameterSpec);
-            return decrypted;
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
+    private String getUserCredentials(String clientId) throws NoSuchElementException {
+        String certPath = credentials.get(clientId);
+        if (certPath == null) {
+            throw new NoSuchElementException();
         }
+        return certPath;
     }
 
-    private void encrypt(File decryptedUserCredentials) {
+    public void registerUser(String clientId, Certificate cert) throws DuplicateElementException {
+        if (!pendingRegistrations.add(clientId)) {
+            throw new DuplicateElementException();
+        }
         try {
-            SecretKey key = getKeyFromPassword();
-            cipherService.encrypt(new FileInputStream(decryptedUserCredentials),
-                    new FileOutputStream(userCredentials), key, pbeParameterSpec);
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
+            if (credentials.containsKey(clientId)) {
+                throw new DuplicateElementException();
+            }
+            String certPath = Path.of(baseCertificatesPath, clientId + ".cer").toString();
+            try (FileOutputStream fos = new FileOutputStream(certPath)) {
+                byte[] data = cert.getEncoded();
+                fos.write(data);
+            } catch (IOException | CertificateEncodingException ioException) {
+                throw new RuntimeException(ioException);
+            }
+            credentialLog.append(clientId, certPath);
+            certificateCache.put(clientId, cert);
+            credentials.put(clientId, certPath);
+        } finally {
+            pendingRegistrations.remove(clientId);
         }
     }
 
@@ -154,6 +183,25 @@ public class AuthenticationService {
         }
     }
 
+    /**
+     * Derives the AES key of the credential log from the password, with the salt and iteration count of the
+     * credential parameters.
+     */
+    private SecretKey getLogKey() {
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(config.getValue("userCredentialsKeyAlgorithm"));
+            PBEKeySpec keySpec = new PBEKeySpec(password,
+                    pbeParameterSpec.getSalt(),
+                    pbeParameterSpec.getIterationCount(),
+                    config.getInt("userCredentialsKeySize"));
+            byte[] encoded = factory.generateSecret(keySpec).getEncoded();
+            keySpec.clearPassword();
+            return new SecretKeySpec(encoded, "AES");
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public boolean isRegisteredUser(String clientId) {
         try {
             getUserCredentials(clientId);
@@ -163,15 +211,41 @@ public class AuthenticationService {
         return true;
     }
 
-    public Certificate getCertificate(String clientId) {
-        String certPath = this.getUserCredentials(clientId).split(":", 2)[1];
+    /**
+     * @throws NoSuchElementException if the user is not registered.
+     * @throws DataIntegrityException if the certificate of the user cannot be read or parsed.
+     */
+    public Certificate getCertificate(String clientId) throws NoSuchElementException, DataIntegrityException {
+        Certificate cert = certificateCache.getCertificate(clientId);
+        return cert != null ? cert : loadCertificate(clientId);
+    }
+
+    /**
+     * @throws NoSuchElementException if the user is not registered.
+     * @throws DataIntegrityException if the certificate of the user cannot be read or parsed.
+     */
+    public PublicKey getPublicKey(String clientId) throws NoSuchElementException, DataIntegrityException {
+        PublicKey key = certificateCache.getPublicKey(clientId);
+        return key != null ? key : loadCertificate(clientId).getPublicKey();
+    }
+
+    public CertificateCache getCertificateCache() {
+        return certificateCache;
+    }
+
+    /**
+     * Reads and parses the certificate of a user, and caches it.
+     */
+    private Certificate loadCertificate(String clientId) throws NoSuchElementException, DataIntegrityException {
+        String certPath = getUserCredentials(clientId);
         try (FileInputStream fis = new FileInputStream(certPath)){
-            // Certificate cert = (Certificate) ois.readObject();
             CertificateFactory factory = CertificateFactory.getInstance("X.509");
-            return factory.generateCertificate(fis);
-        } catch (Exception e) {
-            e.printStackTrace();
+            Certificate cert = factory.generateCertificate(fis);
+            certificateCache.put(clientId, cert);
+            return cert;
+        } catch (IOException | CertificateException e) {
+            throw new DataIntegrityException("Could not load the certificate of user '" + clientId
+                                             + "' from '" + certPath + "': " + e.getMessage());
         }
-        return null;
     }
 }
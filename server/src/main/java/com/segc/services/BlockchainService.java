@@ -1,7 +1,9 @@
 package com.segc.services;
 
+import com.segc.Configuration;
 import com.segc.exception.DataIntegrityException;
 import com.segc.transaction.SignedTransaction;
+import com.segc.transaction.TransactionPage;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -13,6 +15,10 @@ import java.security.SignatureException;
 import java.security.SignedObject;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 
 /**
  * @author fc54685 Francisco Correia
@@ -27,6 +33,7 @@ public class BlockchainService {
     public static final String PREFIX = "block_";
     public static final String EXTENSION = ".blk";
     public static final String PART_EXTENSION = ".part";
+    public static final String CHECKPOINT_FILENAME = "checkpoint.chk";
 
     /**
      * Left-pads the block ID in the block filename.
@@ -34,10 +41,14 @@ public class BlockchainService {
     public static final DecimalFormat SUFFIX_FORMATTER = new DecimalFormat("0000000000");
 
     public static final long MAX_TRANSACTIONS_PER_BLOCK = 5;
+    private static final Configuration config = Configuration.getInstance();
     private final CipherService cipherService;
     private final DataPersistenceService dps;
     private final String blockchainDir;
     private List<SignedObject> signedBlocks;
+    private final List<List<SignedTransaction>> sealedTransactions = new ArrayList<>(); // decoded once per block
+    private final List<Long> sealedOffsets = new ArrayList<>(); // number of transactions before each signed block
+    private long sealedTransactionCount;
     private Block block;
 
     public BlockchainService(String blockchainDir,
@@ -53,27 +64,20 @@ public class BlockchainService {
         }
     }
 
-    private void initBlockchain() throws
-            DataIntegrityException,
-            SignatureException,
-            InvalidKeyException,
-            IOException,
-            ClassNotFoundException {
+    private void initBlockchain() throws DataIntegrityException {
         try {
-            signedBlocks = dps.getObjects(SignedObject.class, blockchainDir, f -> f.getName().endsWith(EXTENSION));
+            signedBlocks = new ArrayList<>(dps.getObjects(SignedObject.class,
+                    blockchainDir,
+                    f -> f.getName().endsWith(EXTENSION)));
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
         }
-        byte[] previousDigest;
-        long expectedBlockId;
-        if (signedBlocks.isEmpty()) {
-            previousDigest = new byte[32];
-            expectedBlockId = 1;
-        } else {
-            SignedObject lastSignedBlock = signedBlocks.get(signedBlocks.size() - 1);
-            Block lastBlock = (Block) lastSignedBlock.getObject();
-            previousDigest = dps.getDigest(signedBlocks.get(signedBlocks.size() - 1));
-            expectedBlockId = lastBlock.blockId + 1;
+        Checkpoint checkpoint = Boolean.parseBoolean(config.getValue("blockchainFullAudit")) ? null : readCheckpoint();
+        List<Block> blocks = verifyBlockchain(checkpoint);
+        byte[] previousDigest = blocks.isEmpty() ? new byte[32] : dps.getDigest(signedBlocks.get(blocks.size() - 1));
+        long expectedBlockId = blocks.size() + 1;
+        if (!blocks.isEmpty() && (checkpoint == null || checkpoint.blockId < blocks.size())) {
+            writeCheckpoint(new Checkpoint(blocks.size(), previousDigest));
         }
 
         String suffix = SUFFIX_FORMATTER.format(expectedBlockId); // bloco parcial tem o id n+1
@@ -87,63 +91,212 @@ public class BlockchainService {
         } catch (IndexOutOfBoundsException | FileNotFoundException e) {
             this.block = new Block(previousDigest, expectedBlockId, new LinkedList<>());
         }
-        verifyBlockchain();
+        // verificamos se o bloco parcial aponta para o último bloco assinado
+        verifyLink(previousDigest, expectedBlockId - 1, this.block);
+        for (Block signedBlock : blocks) {
+            addSealedTransactions(signedBlock.transactions);
+        }
         dps.putObject(this.block, filePath);
     }
 
-    private void verifyBlockchain() throws
-            DataIntegrityException,
-            SignatureException,
-            InvalidKeyException,
-            IOException,
-            ClassNotFoundException {
-        if (signedBlocks.size() == 0) {
-            return;
+    private void addSealedTransactions(List<SignedTransaction> transactions) {
+        sealedTransactions.add(Collections.unmodifiableList(transactions));
+        sealedOffsets.add(sealedTransactionCount);
+        sealedTransactionCount += transactions.size();
+    }
+
+    /**
+     * Reads the latest checkpoint, if it exists and is signed by the server.
+     *
+     * @return the checkpoint, or {@code null} if there is no valid checkpoint.
+     */
+    private Checkpoint readCheckpoint() {
+        try {
+            Path filePath = Path.of(blockchainDir, CHECKPOINT_FILENAME);
+            SignedObject signedCheckpoint = dps.getObject(SignedObject.class, filePath);
+            if (cipherService.verify(signedCheckpoint)) {
+                return (Checkpoint) signedCheckpoint.getObject();
+            }
+            System.out.println("The blockchain checkpoint has an invalid signature and will be ignored.");
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (RuntimeException | IOException | ClassNotFoundException | SignatureException | InvalidKeyException e) {
+            System.out.println("The blockchain checkpoint could not be read and will be ignored: " + e);
+        }
+        return null;
+    }
+
+    /**
+     * Signs and stores a checkpoint, replacing the previous one.
+     */
+    private void writeCheckpoint(Checkpoint checkpoint) {
+        Path tempPath = Path.of(blockchainDir, CHECKPOINT_FILENAME + PART_EXTENSION);
+        if (!dps.putObject(cipherService.sign(checkpoint), tempPath, Path.of(blockchainDir, CHECKPOINT_FILENAME))) {
+            System.out.println("Could not store the blockchain checkpoint of block " + checkpoint.blockId + ".");
         }
+    }
 
-        Iterator<SignedObject> iter = signedBlocks.iterator();
-        SignedObject prev = iter.next();
-        if (!cipherService.verify(prev)) {
-            throw new DataIntegrityException("The integrity of block " + block.blockId + " is compromised.");
+    /**
+     * Verifies the signed blocks and orders them by block id.
+     * <p>
+     * Each block is decoded and, unless it is covered by the checkpoint, its signature is verified and it is digested,
+     * in parallel on a {@link ForkJoinPool} of {@code blockchainVerificationParallelism} threads, or one per processor
+     * if it is {@code 0}. The links between blocks are then checked in order, which only compares digests. Progress is
+     * reported every {@code blockchainVerificationProgressInterval} blocks, if it is positive.
+     * <p>
+     * The blocks up to the checkpoint were verified when it was signed, so only the digest of its last block is
+     * checked against it, before any link, and the block after it is then linked to the digest of the checkpoint. If
+     * that digest does not match, the whole blockchain is verified.
+     *
+     * @param checkpoint the latest checkpoint, or {@code null} to verify every block.
+     * @return the decoded blocks, in order.
+     */
+    private List<Block> verifyBlockchain(Checkpoint checkpoint) throws DataIntegrityException {
+        int blockCount = signedBlocks.size();
+        Block[] blocks = new Block[blockCount];
+        byte[][] digests = new byte[blockCount][];
+        if (blockCount == 0) {
+            return List.of();
+        }
+        if (checkpoint != null && checkpoint.blockId > blockCount) {
+            System.out.printf("The blockchain checkpoint of block %d is past the last block; verifying every block.%n",
+                    checkpoint.blockId);
+            checkpoint = null;
         }
+        long trustedBlockId = checkpoint != null ? checkpoint.blockId : 0;
 
-        SignedObject next;
-        Block nextBlock;
-        long expectedBlockId = 1L;
-        do {
-            if (iter.hasNext()) {
-                next = iter.next();
-                if (!cipherService.verify(next)) {
-                    throw new DataIntegrityException("The integrity of block " + block.blockId + " is compromised.");
+        int parallelism = config.getInt("blockchainVerificationParallelism");
+        int progressInterval = config.getInt("blockchainVerificationProgressInterval");
+        AtomicInteger verifiedCount = new AtomicInteger();
+        long start = System.nanoTime();
+        if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new VerifyBlocksTask(0, blockCount, trustedBlockId, blocks, digests, i -> {
+                int count = verifiedCount.incrementAndGet();
+                if (progressInterval > 0 && blockCount >= progressInterval
+                    && (count % progressInterval == 0 || count == blockCount)) {
+                    System.out.printf("Verified %d of %d blocks.%n", count, blockCount);
                 }
-                nextBlock = (Block) next.getObject();
-            } else {
-                next = null;
-                nextBlock = this.block; // verificamos se o bloco parcial aponta para o último bloco assinado
-            }
+            }));
+        } finally {
+            pool.shutdown();
+        }
 
-            byte[] actualDigest = dps.getDigest(prev);
-            Block prevBlock = (Block) Objects.requireNonNull(prev).getObject();
-            if (prevBlock.blockId != expectedBlockId) {
-                String message = String.format("Expected block id %d, got %d.", expectedBlockId, prevBlock.blockId);
+        // the files of signed blocks are not listed in any particular order
+        Integer[] order = new Integer[blockCount];
+        Arrays.setAll(order, i -> i);
+        Arrays.sort(order, Comparator.comparingLong(i -> blocks[i].blockId));
+        if (checkpoint != null) {
+            int i = order[(int) trustedBlockId - 1];
+            if (blocks[i].blockId != trustedBlockId
+                || !Arrays.equals(dps.getDigest(signedBlocks.get(i)), checkpoint.digest)) {
+                System.out.printf("Block %d does not match the blockchain checkpoint; verifying every block.%n",
+                        trustedBlockId);
+                return verifyBlockchain(null);
+            }
+        }
+        List<SignedObject> orderedSignedBlocks = new ArrayList<>(blockCount);
+        List<Block> orderedBlocks = new ArrayList<>(blockCount);
+        byte[] previousDigest = null;
+        for (int k = 0; k < blockCount; k++) {
+            int i = order[k];
+            Block nextBlock = blocks[i];
+            if (nextBlock.blockId != k + 1) {
+                String message = String.format("Expected block id %d, got %d.", k + 1, nextBlock.blockId);
                 throw new DataIntegrityException(message);
             }
+            if (previousDigest != null) {
+                verifyLink(previousDigest, k, nextBlock);
+            }
+            // the blocks up to the checkpoint are not digested, so the next block is linked to the checkpoint instead
+            previousDigest = k + 1 == trustedBlockId ? checkpoint.digest : digests[i];
+            orderedSignedBlocks.add(signedBlocks.get(i));
+            orderedBlocks.add(nextBlock);
+        }
+        signedBlocks = orderedSignedBlocks;
+        if (progressInterval > 0 && blockCount >= progressInterval) {
+            System.out.printf("Verified the blockchain in %d ms.%n", (System.nanoTime() - start) / 1_000_000);
+        }
+        return orderedBlocks;
+    }
 
-            byte[] expectedDigest = nextBlock.previousDigest;
-            if (!Arrays.equals(actualDigest, expectedDigest)) {
-                String message = String.format("At block %d: expected digest %s for previous block %d, got %s.",
-                        nextBlock.blockId,
-                        digestToHex(expectedDigest),
-                        prevBlock.blockId,
-                        digestToHex(actualDigest));
-                throw new DataIntegrityException(message);
+    /**
+     * Checks that a block points to the digest of the block before it.
+     */
+    private static void verifyLink(byte[] previousDigest, long previousBlockId, Block block)
+            throws DataIntegrityException {
+        byte[] expectedDigest = block.previousDigest;
+        if (!Arrays.equals(previousDigest, expectedDigest)) {
+            String message = String.format("At block %d: expected digest %s for previous block %d, got %s.",
+                    block.blockId,
+                    digestToHex(expectedDigest),
+                    previousBlockId,
+                    digestToHex(previousDigest));
+            throw new DataIntegrityException(message);
+        }
+    }
+
+    /**
+     * Decodes a range of signed blocks, and verifies the signatures of and digests those past the trusted block id,
+     * splitting the range in halves while it is large.
+     */
+    private class VerifyBlocksTask extends RecursiveAction {
+        private static final long serialVersionUID = 2871402918412063617L;
+        private static final int THRESHOLD = 16;
+        private final int from;
+        private final int to;
+        private final long trustedBlockId;
+        private final transient Block[] blocks;
+        private final transient byte[][] digests;
+        private final transient IntConsumer onVerified;
+
+        private VerifyBlocksTask(int from,
+                                 int to,
+                                 long trustedBlockId,
+                                 Block[] blocks,
+                                 byte[][] digests,
+                                 IntConsumer onVerified) {
+            this.from = from;
+            this.to = to;
+            this.trustedBlockId = trustedBlockId;
+            this.blocks = blocks;
+            this.digests = digests;
+            this.onVerified = onVerified;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new VerifyBlocksTask(from, middle, trustedBlockId, blocks, digests, onVerified),
+                        new VerifyBlocksTask(middle, to, trustedBlockId, blocks, digests, onVerified));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                SignedObject signedBlock = signedBlocks.get(i);
+                try {
+                    blocks[i] = (Block) signedBlock.getObject();
+                    if (blocks[i].blockId <= trustedBlockId) {
+                        onVerified.accept(i);
+                        continue;
+                    }
+                    if (!cipherService.verify(signedBlock)) {
+                        String message = "The integrity of block " + blocks[i].blockId + " is compromised.";
+                        throw new DataIntegrityException(message);
+                    }
+                } catch (IOException | ClassNotFoundException | SignatureException | InvalidKeyException e) {
+                    throw new RuntimeException(e);
+                }
+                digests[i] = dps.getDigest(signedBlock);
+                onVerified.accept(i);
             }
-            prev = next;
-            expectedBlockId++;
-        } while (next != null);
+        }
     }
 
-    public void addTransaction(SignedTransaction t) {
+    public synchronized void addTransaction(SignedTransaction t) {
         if (block.transactions.size() < MAX_TRANSACTIONS_PER_BLOCK) {
             block.addTransaction(t);
         } else {
@@ -158,7 +311,12 @@ public class BlockchainService {
                 throw new DataIntegrityException("Could not rename partial block file");
             }
             signedBlocks.add(signedBlock);
-            block = new Block(dps.getDigest(signedBlock), block.blockId + 1, new LinkedList<>());
+            addSealedTransactions(block.transactions);
+            byte[] digest = dps.getDigest(signedBlock);
+            if (block.blockId % config.getInt("blockchainCheckpointInterval") == 0) {
+                writeCheckpoint(new Checkpoint(block.blockId, digest));
+            }
+            block = new Block(digest, block.blockId + 1, new LinkedList<>());
             block.addTransaction(t);
         }
         String suffix = SUFFIX_FORMATTER.format(block.blockId);
@@ -166,18 +324,66 @@ public class BlockchainService {
         dps.putObject(block, filePath);
     }
 
-    public LinkedList<SignedTransaction> getTransactions() {
+    public synchronized LinkedList<SignedTransaction> getTransactions() {
         LinkedList<SignedTransaction> transactions = new LinkedList<>();
-        for (SignedObject signedBlock : signedBlocks) {
+        sealedTransactions.forEach(transactions::addAll);
+        transactions.addAll(block.transactions);
+        return transactions;
+    }
+
+    /**
+     * Returns up to {@code maxCount} transactions, starting at the position given by a resume token.
+     * <p>
+     * A resume token has the form {@code <blockId>:<index>}, the position of a transaction within its block.
+     * Blocks are only ever appended to, so a token remains valid as the blockchain grows.
+     *
+     * @param resumeToken the token of a previous page, or {@code null} or an empty string to start from the first
+     *                    transaction.
+     * @param maxCount    the maximum number of transactions to return.
+     * @return a page of transactions, with the token to resume from after it.
+     * @throws IllegalArgumentException if the resume token is malformed or points past the end of the blockchain.
+     */
+    public synchronized TransactionPage getTransactions(String resumeToken, int maxCount)
+            throws IllegalArgumentException {
+        long blockId = 1;
+        int index = 0;
+        if (resumeToken != null && !resumeToken.isEmpty()) {
+            String[] position = resumeToken.split(":");
             try {
-                Block block = (Block) signedBlock.getObject();
-                transactions.addAll(block.transactions);
-            } catch (IOException | ClassNotFoundException e) {
-                throw new RuntimeException(e);
+                if (position.length != 2) {
+                    throw new NumberFormatException();
+                }
+                blockId = Long.parseLong(position[0]);
+                index = Integer.parseInt(position[1]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid resume token.");
+            }
+            if (blockId < 1 || blockId > block.blockId || index < 0 || index > getBlockTransactions(blockId).size()) {
+                throw new IllegalArgumentException("Invalid resume token.");
             }
         }
-        transactions.addAll(block.transactions);
-        return transactions;
+        List<SignedTransaction> transactions = new ArrayList<>();
+        while (true) {
+            List<SignedTransaction> blockTransactions = getBlockTransactions(blockId);
+            int end = (int) Math.min(blockTransactions.size(), (long) index + maxCount - transactions.size());
+            if (index < end) {
+                transactions.addAll(blockTransactions.subList(index, end));
+                index = end;
+            }
+            if (index < blockTransactions.size() || blockId == block.blockId) {
+                break; // the page is full or the last transaction was reached
+            }
+            blockId++;
+            index = 0;
+        }
+        long position = (blockId == block.blockId ? sealedTransactionCount : sealedOffsets.get((int) blockId - 1))
+                        + index;
+        int remaining = (int) (sealedTransactionCount + block.transactions.size() - position);
+        return new TransactionPage(transactions, blockId + ":" + index, remaining);
+    }
+
+    private List<SignedTransaction> getBlockTransactions(long blockId) {
+        return blockId == block.blockId ? block.transactions : sealedTransactions.get((int) blockId - 1);
     }
 
     @Override
@@ -205,6 +411,20 @@ public class BlockchainService {
         return String.format("%0" + (digest.length << 1) + "X", bi);
     }
 
+    /**
+     * The id and digest of the last block of a verified prefix of the blockchain.
+     */
+    private static class Checkpoint implements Serializable {
+        private static final long serialVersionUID = 5203384361072569240L;
+        private final long blockId;
+        private final byte[] digest;
+
+        public Checkpoint(long blockId, byte[] digest) {
+            this.blockId = blockId;
+            this.digest = digest;
+        }
+    }
+
     private static class Block implements Serializable {
         private static final long serialVersionUID = 8425212697641963447L;
         private final byte[] previousDigest;
@@ -0,0 +1,124 @@
+package com.segc.services;
+
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of the parsed certificates of users, with their public keys, that evicts the least recently used
+ * certificate once full.
+ * <p>
+ * Lookups only hold the lock of the cache while the entry is found and moved to the end of the access order, so
+ * certificates are read and parsed outside of it.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class CertificateCache implements CertificateCacheMXBean {
+    private final int maxSize;
+    private final Map<String, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxSize the largest number of certificates kept.
+     */
+    public CertificateCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > CertificateCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached certificate of a user.
+     *
+     * @param clientId the id of the user.
+     * @return the certificate, or {@code null} if it is not cached.
+     */
+    public Certificate getCertificate(String clientId) {
+        Entry entry = get(clientId);
+        return entry == null ? null : entry.certificate;
+    }
+
+    /**
+     * Returns the public key of the cached certificate of a user.
+     *
+     * @param clientId the id of the user.
+     * @return the public key, or {@code null} if the certificate is not cached.
+     */
+    public PublicKey getPublicKey(String clientId) {
+        Entry entry = get(clientId);
+        return entry == null ? null : entry.publicKey;
+    }
+
+    /**
+     * Caches the certificate of a user, replacing any cached certificate of the same user.
+     *
+     * @param clientId    the id of the user.
+     * @param certificate the parsed certificate.
+     */
+    public void put(String clientId, Certificate certificate) {
+        Entry entry = new Entry(certificate);
+        synchronized (entries) {
+            entries.put(clientId, entry);
+        }
+    }
+
+    private Entry get(String clientId) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(clientId);
+        }
+        (entry == null ? misses : hits).incrementAndGet();
+        return entry;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    private static final class Entry {
+        private final Certificate certificate;
+        private final PublicKey publicKey;
+
+        private Entry(Certificate certificate) {
+            this.certificate = certificate;
+            this.publicKey = certificate.getPublicKey();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.segc.services;
+
+/**
+ * The management interface of a {@link CertificateCache}.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public interface CertificateCacheMXBean {
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    int getSize();
+
+    int getMaxSize();
+}
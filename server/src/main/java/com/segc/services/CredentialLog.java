@@ -0,0 +1,274 @@
+package com.segc.services;
+
+import com.segc.exception.DataIntegrityException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An append-only log of user credentials, in which each record is encrypted and authenticated on its own.
+ * <p>
+ * The log starts with a header holding a random log id. Each record holds the credentials of one user, encrypted with
+ * AES-GCM under a random nonce, with the log id and the index of the record as associated data, so records cannot be
+ * reordered, dropped from the middle of the log, or moved between logs without failing authentication. Registering a
+ * user appends a single record, whatever the size of the log.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class CredentialLog implements AutoCloseable {
+    private static final int MAGIC = 0x544D434C; // "TMCL"
+    private static final int LOG_ID_SIZE = 16;
+    private static final int HEADER_SIZE = 4 + LOG_ID_SIZE;
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_SIZE = 16;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final SecureRandom sr = new SecureRandom();
+    private final Path path;
+    private final SecretKey key;
+    private byte[] logId;
+    private long recordCount;
+    private FileChannel channel;
+
+    /**
+     * @param path the path of the log.
+     * @param key  the AES key of the records.
+     */
+    public CredentialLog(Path path, SecretKey key) {
+        this.path = path;
+        this.key = key;
+    }
+
+    /**
+     * @return {@code true} if the log has been created, {@code false} otherwise.
+     */
+    public boolean exists() {
+        return Files.isRegularFile(path);
+    }
+
+    /**
+     * Reads every record of the log and opens it for appending, creating it if it does not exist.
+     * <p>
+     * A record cut short by a crash during an append is discarded, as its registration never completed.
+     *
+     * @return the certificate path of each user, by client id, with later records replacing earlier ones.
+     * @throws DataIntegrityException if a record or the header fails authentication.
+     */
+    public synchronized Map<String, String> replay() throws DataIntegrityException {
+        Map<String, String> credentials = new LinkedHashMap<>();
+        try {
+            if (!exists()) {
+                create(credentials);
+                return credentials;
+            }
+            long validSize;
+            try (InputStream in = Files.newInputStream(path);
+                 DataInputStream dis = new DataInputStream(new BufferedInputStream(in))) {
+                if (dis.readInt() != MAGIC) {
+                    throw new DataIntegrityException("Invalid credential log header in '" + path + "'");
+                }
+                logId = dis.readNBytes(LOG_ID_SIZE);
+                if (logId.length != LOG_ID_SIZE) {
+                    throw new DataIntegrityException("Invalid credential log header in '" + path + "'");
+                }
+                validSize = HEADER_SIZE;
+                recordCount = 0;
+                while (true) {
+                    byte[] record;
+                    try {
+                        int length = dis.readInt();
+                        if (length < NONCE_SIZE + TAG_SIZE || length > MAX_RECORD_SIZE) {
+                            throw new DataIntegrityException("Invalid credential record " + recordCount);
+                        }
+                        record = new byte[length];
+                        dis.readFully(record);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    String[] fields = decrypt(record, recordCount).split(":", 2);
+                    if (fields.length != 2) {
+                        throw new DataIntegrityException("Invalid credential record " + recordCount);
+                    }
+                    credentials.put(fields[0], fields[1]);
+                    recordCount++;
+                    validSize += 4 + record.length;
+                }
+            }
+            channel = FileChannel.open(path, StandardOpenOption.WRITE);
+            if (channel.size() > validSize) {
+                System.out.println("Discarding incomplete credential record in '" + path + "'.");
+                channel.truncate(validSize);
+                channel.force(false);
+            }
+            channel.position(validSize);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return credentials;
+    }
+
+    /**
+     * Appends the credentials of a user to the log and forces them to the storage device.
+     * <p>
+     * If the record cannot be written, the log is truncated back to its previous size, so the next record does not
+     * follow a partial one. If even that fails, the log is closed and rejects further records.
+     *
+     * @param clientId the id of the user.
+     * @param certPath the path of the certificate of the user.
+     */
+    public void append(String clientId, String certPath) {
+        byte[] plaintext = (clientId + ":" + certPath).getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            ByteBuffer record = encrypt(plaintext, recordCount);
+            long size = -1;
+            try {
+                size = channel.size();
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                if (size >= 0) {
+                    discardFrom(size, e);
+                }
+                throw new RuntimeException(e);
+            }
+            recordCount++;
+        }
+    }
+
+    /**
+     * Rewrites the log with a single record per user, replacing the old log atomically.
+     *
+     * @param credentials the certificate path of each user, by client id.
+     */
+    public synchronized void compact(Map<String, String> credentials) {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            create(credentials);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the number of records in the log.
+     */
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Truncates the log to the given size, closing it if that fails.
+     */
+    private void discardFrom(long size, IOException failure) {
+        try {
+            channel.truncate(size);
+            channel.position(size);
+            channel.force(false);
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+            try {
+                channel.close();
+            } catch (IOException ce) {
+                failure.addSuppressed(ce);
+            }
+        }
+    }
+
+    /**
+     * Writes a new log with the given credentials to a temporary file and moves it over the current log.
+     */
+    private void create(Map<String, String> credentials) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tempPath = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        logId = new byte[LOG_ID_SIZE];
+        sr.nextBytes(logId);
+        recordCount = 0;
+        try (FileChannel tempChannel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).put(logId).flip();
+            while (header.hasRemaining()) {
+                tempChannel.write(header);
+            }
+            for (Map.Entry<String, String> entry : credentials.entrySet()) {
+                byte[] plaintext = (entry.getKey() + ":" + entry.getValue()).getBytes(StandardCharsets.UTF_8);
+                ByteBuffer record = encrypt(plaintext, recordCount++);
+                while (record.hasRemaining()) {
+                    tempChannel.write(record);
+                }
+            }
+            tempChannel.force(false);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * @return the record, prefixed by its length.
+     */
+    private ByteBuffer encrypt(byte[] plaintext, long index) {
+        byte[] nonce = new byte[NONCE_SIZE];
+        sr.nextBytes(nonce);
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+            cipher.updateAAD(associatedData(index));
+            byte[] ciphertext = cipher.doFinal(plaintext);
+            return ByteBuffer.allocate(4 + NONCE_SIZE + ciphertext.length)
+                             .putInt(NONCE_SIZE + ciphertext.length)
+                             .put(nonce)
+                             .put(ciphertext)
+                             .flip();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String decrypt(byte[] record, long index) throws DataIntegrityException {
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, record, 0, NONCE_SIZE));
+            cipher.updateAAD(associatedData(index));
+            byte[] plaintext = cipher.doFinal(record, NONCE_SIZE, record.length - NONCE_SIZE);
+            return new String(plaintext, StandardCharsets.UTF_8);
+        } catch (AEADBadTagException e) {
+            throw new DataIntegrityException("Credential record " + index + " failed authentication");
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private byte[] associatedData(long index) {
+        return ByteBuffer.allocate(LOG_ID_SIZE + Long.BYTES).put(logId).putLong(index).array();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
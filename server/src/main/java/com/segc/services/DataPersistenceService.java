@@ -4,42 +4,79 @@ import com.segc.Configuration;
 import com.segc.exception.DataIntegrityException;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.LinkedList;
 import java.util.List;
 import java.nio.file.Path;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Predicate;
 
 /**
+ * Reads and writes the objects of the server, each with an optional digest file.
+ * <p>
+ * Files are locked by entity, with a file and its digest file forming a single entity, so I/O on unrelated entities
+ * runs in parallel. Entities are mapped by their path onto a fixed number of fair locks, so accesses to the same
+ * entity happen in the order they ask for its lock.
+ * <p>
+ * An object and its digest are written to temporary files in a single serialization pass, and then renamed over the
+ * old files, data file first. If the server stops between both renames, the next {@link #getObjectsAndVerify} of
+ * the directory completes the write, so a data file is never left with the digest of another write.
+ *
  * @author fc54685 Francisco Correia
  * @author fc55955 Alexandre Fonseca
  * @author fc56272 Filipe Egipto
  */
-public final class DataPersistenceService {
+public final class DataPersistenceService implements DataPersistenceServiceMXBean {
+    private static final String TEMP_EXTENSION = ".tmp";
     public final String digestAlgorithm;
+    private final FsyncPolicy fsyncPolicy;
+    private final ReentrantLock[] locks;
+    private final AtomicLong lockAcquisitions = new AtomicLong();
+    private final AtomicLong contendedAcquisitions = new AtomicLong();
+    private final AtomicLong lockWaitTimeNanos = new AtomicLong();
+    private final AtomicLong maxLockWaitNanos = new AtomicLong();
 
     public DataPersistenceService() {
-        this(Configuration.getInstance().getValue("digestAlgorithm"));
+        this(Configuration.getInstance().getValue("digestAlgorithm"),
+                Configuration.getInstance().getInt("persistenceLockStripes"),
+                FsyncPolicy.fromString(Configuration.getInstance().getValue("persistenceFsyncPolicy")));
     }
 
-    public DataPersistenceService(String digestAlgorithm) {
+    /**
+     * @param digestAlgorithm the algorithm of digest files.
+     * @param lockStripes     the number of locks that entities are mapped onto.
+     * @param fsyncPolicy     what is forced to the storage device when an object and its digest are written.
+     */
+    public DataPersistenceService(String digestAlgorithm, int lockStripes, FsyncPolicy fsyncPolicy) {
         this.digestAlgorithm = digestAlgorithm;
+        this.fsyncPolicy = fsyncPolicy;
+        this.locks = new ReentrantLock[lockStripes];
+        for (int i = 0; i < lockStripes; i++) {
+            locks[i] = new ReentrantLock(true);
+        }
     }
 
     @SuppressWarnings({"unchecked", "unused"})
     public <T extends Serializable> T getObject(Class<T> clazz, String fileName) throws FileNotFoundException {
-        synchronized (this) {
-            try (FileInputStream fin = new FileInputStream(fileName);
-                 ObjectInputStream in = new ObjectInputStream(fin)) {
-                return (T) in.readObject();
-            } catch (FileNotFoundException e) {
-                throw e;
-            } catch (IOException | ClassNotFoundException e) {
-                throw new RuntimeException(e);
-            }
+        ReentrantLock lock = lock(Path.of(fileName));
+        try (FileInputStream fin = new FileInputStream(fileName);
+             ObjectInputStream in = new ObjectInputStream(fin)) {
+            return (T) in.readObject();
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException | ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -48,7 +85,8 @@ public final class DataPersistenceService {
     }
 
     public <T extends Serializable> void putObject(T obj, String fileName) {
-        synchronized (this) {
+        ReentrantLock lock = lock(Path.of(fileName));
+        try {
             File dir = new File(fileName).getParentFile();
             if (dir.mkdirs()) {
                 System.out.println("Created directory: " + dir.getAbsolutePath());
@@ -59,6 +97,8 @@ public final class DataPersistenceService {
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -67,27 +107,114 @@ public final class DataPersistenceService {
     }
 
     public <T extends Serializable> boolean putObject(T obj, Path filePath, Path newFilePath) {
-        putObject(obj, filePath.toString());
-        return filePath.toFile().renameTo(newFilePath.toFile());
+        // both locks are always taken in the same order, so renames in opposite directions cannot deadlock
+        int i = getLockIndex(filePath);
+        int j = getLockIndex(newFilePath);
+        ReentrantLock first = lock(Math.min(i, j));
+        ReentrantLock second = i != j ? lock(Math.max(i, j)) : null;
+        try {
+            putObject(obj, filePath.toString());
+            return filePath.toFile().renameTo(newFilePath.toFile());
+        } finally {
+            if (second != null) {
+                second.unlock();
+            }
+            first.unlock();
+        }
     }
 
+    /**
+     * Writes an object and the digest of its serialized form, replacing both files atomically.
+     */
     public <T extends Serializable> void putObjectAndDigest(T obj, String fileName) {
-        byte[] digest = getDigest(obj);
-        File digestFile = getDigestFilePath(Path.of(fileName)).toFile();
-        synchronized (this) {
-            try (FileOutputStream fout = new FileOutputStream(digestFile)) {
-                putObject(obj, fileName);
-                fout.write(digest);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
+        putAndDigest(Path.of(fileName), out -> {
+            ObjectOutputStream oos = new ObjectOutputStream(out);
+            oos.writeObject(obj);
+            oos.flush();
+        });
     }
 
     public <T extends Serializable> void putObjectAndDigest(T obj, Path filePath) {
         putObjectAndDigest(obj, filePath.toString());
     }
 
+    /**
+     * Writes an object serialized by {@link #serialize} and its digest, replacing both files atomically, so an object
+     * can be copied while it is locked and written after it is released.
+     */
+    public void putBytesAndDigest(byte[] bytes, Path filePath) {
+        putAndDigest(filePath, out -> out.write(bytes));
+    }
+
+    private void putAndDigest(Path filePath, DataWriter writer) {
+        Path tempFilePath = getTempFilePath(filePath);
+        Path tempDigestFilePath = getTempDigestFilePath(filePath);
+        ReentrantLock lock = lock(filePath);
+        try {
+            File dir = filePath.toFile().getParentFile();
+            if (dir.mkdirs()) {
+                System.out.println("Created directory: " + dir.getAbsolutePath());
+            }
+            MessageDigest md = MessageDigest.getInstance(digestAlgorithm);
+            try (FileOutputStream fout = new FileOutputStream(tempFilePath.toFile());
+                 OutputStream out = new DigestOutputStream(new BufferedOutputStream(fout), md)) {
+                writer.write(out);
+                out.flush();
+                sync(fout);
+            }
+            try (FileOutputStream fout = new FileOutputStream(tempDigestFilePath.toFile())) {
+                fout.write(md.digest());
+                sync(fout);
+            }
+            Files.move(tempFilePath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tempDigestFilePath, getDigestFilePath(filePath),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(dir);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes raw bytes to a file, creating its directory if needed. The bytes are written to a temporary file, which
+     * is then renamed over the old file, so readers never see a partial write.
+     */
+    public void putBytes(byte[] bytes, Path filePath) {
+        Path tempFilePath = getTempFilePath(filePath);
+        ReentrantLock lock = lock(filePath);
+        try {
+            File dir = filePath.toFile().getParentFile();
+            if (dir.mkdirs()) {
+                System.out.println("Created directory: " + dir.getAbsolutePath());
+            }
+            try (FileOutputStream fout = new FileOutputStream(tempFilePath.toFile())) {
+                fout.write(bytes);
+                sync(fout);
+            }
+            Files.move(tempFilePath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(dir);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public byte[] getBytes(Path filePath) throws FileNotFoundException {
+        ReentrantLock lock = lock(filePath);
+        try (FileInputStream fin = new FileInputStream(filePath.toFile())) {
+            return fin.readAllBytes();
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public <T extends Serializable> List<T> getObjects(Class<T> clazz,
                                                        String directoryName,
                                                        Predicate<File> pred) throws FileNotFoundException {
@@ -113,22 +240,97 @@ public final class DataPersistenceService {
         if (dir.mkdirs()) {
             System.out.println("Created directory: " + dir.getAbsolutePath());
         }
+        recoverWrites(dir);
         for (File file : Objects.requireNonNull(dir.listFiles())) {
             Path filePath = file.toPath();
             if (isDigestFilePath(filePath)) {
                 continue;
             }
-            T obj = getObject(clazz, filePath);
-            if (!isMatchingDigests(obj, filePath)) {
+            // the file is digested as written, so objects stored by an older version of their class still verify
+            byte[] bytes;
+            boolean isMatchingDigests;
+            ReentrantLock lock = lock(filePath); // so the file and its digest are read from the same write
+            try {
+                bytes = getBytes(filePath);
+                isMatchingDigests = isMatchingDigests(bytes, filePath);
+            } finally {
+                lock.unlock();
+            }
+            if (!isMatchingDigests) {
                 String fileName = filePath.getFileName().toString();
                 String message = String.format("%s digests do not match for file '%s'", digestAlgorithm, fileName);
                 throw new DataIntegrityException(message);
             }
-            list.add(obj);
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                list.add(clazz.cast(in.readObject()));
+            } catch (IOException | ClassNotFoundException e) {
+                throw new RuntimeException(e);
+            }
         }
         return list;
     }
 
+    /**
+     * Completes or discards the writes of {@link #putObjectAndDigest} that were interrupted in the given directory.
+     * A digest left in a temporary file is only moved into place if its data file was already renamed, that is, if
+     * it matches the current data file.
+     */
+    private void recoverWrites(File dir) throws FileNotFoundException {
+        for (File file : Objects.requireNonNull(dir.listFiles())) {
+            String fileName = file.getName();
+            if (!fileName.endsWith(TEMP_EXTENSION)) {
+                continue;
+            }
+            Path tempFilePath = file.toPath();
+            Path filePath = tempFilePath.resolveSibling(
+                    fileName.substring(0, fileName.length() - TEMP_EXTENSION.length()));
+            try {
+                if (isDigestFilePath(filePath)) {
+                    String dataFileName = filePath.getFileName().toString();
+                    Path dataFilePath = filePath.resolveSibling(
+                            dataFileName.substring(0, dataFileName.length() - digestAlgorithm.length() - 1));
+                    if (Files.isRegularFile(dataFilePath) && MessageDigest.isEqual(
+                            digest(getBytes(dataFilePath)), Files.readAllBytes(tempFilePath))) {
+                        System.out.println("Completing interrupted write of '" + dataFilePath + "'.");
+                        Files.move(tempFilePath, getDigestFilePath(dataFilePath),
+                                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        continue;
+                    }
+                }
+                System.out.println("Discarding interrupted write '" + tempFilePath + "'.");
+                Files.delete(tempFilePath);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private Path getTempFilePath(Path filePath) {
+        return filePath.resolveSibling(filePath.getFileName() + TEMP_EXTENSION);
+    }
+
+    /**
+     * Returns the temporary path of the digest of the given file, which keeps the case of its name so the data file
+     * can be found from it.
+     */
+    private Path getTempDigestFilePath(Path filePath) {
+        return filePath.resolveSibling(filePath.getFileName() + "." + digestAlgorithm + TEMP_EXTENSION);
+    }
+
+    private void sync(FileOutputStream fout) throws IOException {
+        if (fsyncPolicy != FsyncPolicy.NONE) {
+            fout.getFD().sync();
+        }
+    }
+
+    private void syncDirectory(File dir) throws IOException {
+        if (fsyncPolicy == FsyncPolicy.DIRECTORY) {
+            try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+            }
+        }
+    }
+
     private Path getDigestFilePath(Path filePath) {
         String fileName = filePath.getFileName().toString();
         String directoryName = filePath.getParent().toString();
@@ -137,25 +339,44 @@ public final class DataPersistenceService {
 
     public byte[] getDigest(Path filePath) {
         Path digestFilePath = getDigestFilePath(filePath);
-        synchronized (this) {
-            try (FileInputStream fin = new FileInputStream(digestFilePath.toString())) {
-                return fin.readAllBytes();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+        ReentrantLock lock = lock(filePath);
+        try (FileInputStream fin = new FileInputStream(digestFilePath.toString())) {
+            return fin.readAllBytes();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
         }
     }
 
     public <T extends Serializable> byte[] getDigest(T obj) {
-        synchronized (this) {
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                 ObjectOutputStream out = new ObjectOutputStream(baos)) {
-                out.writeObject(obj);
-                byte[] bytes = baos.toByteArray();
-                return MessageDigest.getInstance(digestAlgorithm).digest(bytes);
-            } catch (IOException | NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
-            }
+        return digest(serialize(obj));
+    }
+
+    /**
+     * Returns the serialized form of an object, as it is written by {@link #putObjectAndDigest}.
+     */
+    public <T extends Serializable> byte[] serialize(T obj) {
+        // only touches local streams, so objects may be serialized concurrently
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             ObjectOutputStream out = new ObjectOutputStream(baos)) {
+            out.writeObject(obj);
+            out.flush();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the digest of raw bytes, as opposed to {@link #getDigest(Serializable)}, which digests the serialized
+     * form of an object.
+     */
+    public byte[] digest(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance(digestAlgorithm).digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
         }
     }
 
@@ -163,9 +384,107 @@ public final class DataPersistenceService {
         return filePath.getFileName().toString().endsWith("." + digestAlgorithm);
     }
 
-    private <T extends Serializable> boolean isMatchingDigests(T obj, Path filePath) {
-        byte[] actualDigest = getDigest(obj);
+    private boolean isMatchingDigests(byte[] bytes, Path filePath) {
+        byte[] actualDigest = digest(bytes);
         byte[] expectedDigest = getDigest(filePath);
         return MessageDigest.isEqual(actualDigest, expectedDigest);
     }
+
+    /**
+     * Returns the index of the lock of the entity stored at the given path. Paths that only differ in case share a
+     * digest file, so they share a lock as well.
+     */
+    private int getLockIndex(Path filePath) {
+        String key = filePath.toAbsolutePath().normalize().toString().toLowerCase();
+        return Math.floorMod(key.hashCode(), locks.length);
+    }
+
+    private ReentrantLock lock(Path filePath) {
+        return lock(getLockIndex(filePath));
+    }
+
+    /**
+     * Takes the lock with the given index, recording how long it waited if the lock was held.
+     */
+    private ReentrantLock lock(int index) {
+        ReentrantLock lock = locks[index];
+        lockAcquisitions.incrementAndGet();
+        if (!lock.tryLock()) {
+            long start = System.nanoTime();
+            lock.lock();
+            long waitNanos = System.nanoTime() - start;
+            contendedAcquisitions.incrementAndGet();
+            lockWaitTimeNanos.addAndGet(waitNanos);
+            maxLockWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        }
+        return lock;
+    }
+
+    /**
+     * Writes the contents of a file to the stream it is digested through.
+     */
+    @FunctionalInterface
+    private interface DataWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * What {@link #putObjectAndDigest} forces to the storage device before returning.
+     */
+    public enum FsyncPolicy {
+        /**
+         * Nothing, so the files are consistent after the server stops, but not after the system does.
+         */
+        NONE,
+        /**
+         * The temporary files, before they are renamed, so the files are consistent after the system stops, although
+         * the last write may be lost.
+         */
+        FILE,
+        /**
+         * The temporary files and then the directory, so the write is durable once it returns.
+         */
+        DIRECTORY;
+
+        public static FsyncPolicy fromString(String policy) {
+            for (FsyncPolicy value : values()) {
+                if (value.name().equalsIgnoreCase(policy)) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Unknown fsync policy: " + policy);
+        }
+    }
+
+    /**
+     * @return what is forced to the storage device when an object and its digest are written.
+     */
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    @Override
+    public long getLockAcquisitions() {
+        return lockAcquisitions.get();
+    }
+
+    @Override
+    public long getContendedLockAcquisitions() {
+        return contendedAcquisitions.get();
+    }
+
+    @Override
+    public long getLockWaitTimeNanos() {
+        return lockWaitTimeNanos.get();
+    }
+
+    @Override
+    public long getMaxLockWaitNanos() {
+        return maxLockWaitNanos.get();
+    }
+
+    @Override
+    public int getLockStripes() {
+        return locks.length;
+    }
 }
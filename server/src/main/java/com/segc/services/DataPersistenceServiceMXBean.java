@@ -0,0 +1,24 @@
+package com.segc.services;
+
+/**
+ * The management interface of a {@link DataPersistenceService}.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public interface DataPersistenceServiceMXBean {
+
+    long getLockAcquisitions();
+
+    /**
+     * Returns the number of lock acquisitions that had to wait for the lock to be released.
+     */
+    long getContendedLockAcquisitions();
+
+    long getLockWaitTimeNanos();
+
+    long getMaxLockWaitNanos();
+
+    int getLockStripes();
+}
@@ -0,0 +1,168 @@
+package com.segc.services;
+
+import com.segc.Configuration;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issues and checks session tickets, which let an authenticated user skip the nonce challenge when reconnecting.
+ * <p>
+ * A ticket holds the id of the key that issued it and its expiry time, followed by an HMAC of both and the id of the
+ * user it was issued to. Tickets are only kept by clients. The keys are generated when the server starts and
+ * replaced every key rotation interval. Tickets issued with the previous key remain valid until they expire, as long
+ * as the lifetime of a ticket is not longer than the rotation interval.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class SessionTicketService {
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES;
+    private final String macAlgorithm;
+    private final long lifetimeMillis;
+    private final long rotationIntervalMillis;
+    private final int macLength;
+    private final KeyGenerator keyGenerator;
+    private TicketKey currentKey;
+    private TicketKey previousKey;
+
+    /**
+     * @param macAlgorithm     the HMAC algorithm of tickets.
+     * @param lifetime         how long a ticket is valid for.
+     * @param rotationInterval how long a key issues tickets for.
+     * @param unit             the unit of {@code lifetime} and {@code rotationInterval}.
+     */
+    public SessionTicketService(String macAlgorithm, long lifetime, long rotationInterval, TimeUnit unit) {
+        this.macAlgorithm = macAlgorithm;
+        this.lifetimeMillis = unit.toMillis(lifetime);
+        this.rotationIntervalMillis = unit.toMillis(rotationInterval);
+        try {
+            this.keyGenerator = KeyGenerator.getInstance(macAlgorithm);
+            this.macLength = Mac.getInstance(macAlgorithm).getMacLength();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        this.currentKey = new TicketKey(0, keyGenerator.generateKey(), System.currentTimeMillis());
+    }
+
+    /**
+     * Creates a {@link SessionTicketService} with the {@code sessionTicketMacAlgorithm},
+     * {@code sessionTicketLifetime} and {@code sessionTicketKeyRotationInterval} properties, in seconds.
+     *
+     * @param config the configuration to read.
+     * @return a new {@link SessionTicketService}.
+     */
+    public static SessionTicketService fromConfig(Configuration config) {
+        return new SessionTicketService(config.getValue("sessionTicketMacAlgorithm"),
+                config.getInt("sessionTicketLifetime"),
+                config.getInt("sessionTicketKeyRotationInterval"),
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Issues a ticket to an authenticated user.
+     *
+     * @param clientId the id of the user.
+     * @return the ticket.
+     */
+    public byte[] issue(String clientId) {
+        TicketKey key = getCurrentKey();
+        long expiresAt = System.currentTimeMillis() + lifetimeMillis;
+        ByteBuffer ticket = ByteBuffer.allocate(HEADER_SIZE + macLength);
+        ticket.putInt(key.id).putLong(expiresAt).put(mac(key, key.id, expiresAt, clientId));
+        return ticket.array();
+    }
+
+    /**
+     * Checks that a ticket was issued to the given user and has not expired.
+     *
+     * @param ticket   the ticket presented by the user.
+     * @param clientId the id of the user.
+     * @return {@code true} if the ticket is valid, {@code false} otherwise.
+     */
+    public boolean isValid(byte[] ticket, String clientId) {
+        if (ticket == null || ticket.length != HEADER_SIZE + macLength) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(ticket);
+        int keyId = buffer.getInt();
+        long expiresAt = buffer.getLong();
+        if (expiresAt < System.currentTimeMillis()) {
+            return false;
+        }
+        TicketKey key = getKey(keyId);
+        if (key == null) {
+            return false;
+        }
+        byte[] mac = new byte[ticket.length - HEADER_SIZE];
+        buffer.get(mac);
+        return MessageDigest.isEqual(mac, mac(key, keyId, expiresAt, clientId));
+    }
+
+    private synchronized TicketKey getCurrentKey() {
+        rotateKeys();
+        return currentKey;
+    }
+
+    /**
+     * @return the current or previous key with the given id, or {@code null} if there is none.
+     */
+    private synchronized TicketKey getKey(int keyId) {
+        rotateKeys();
+        if (keyId == currentKey.id) {
+            return currentKey;
+        }
+        return previousKey != null && keyId == previousKey.id ? previousKey : null;
+    }
+
+    /**
+     * Replaces the current key once it has issued tickets for the rotation interval, keeping it to check the tickets
+     * it issued until the next rotation.
+     */
+    private void rotateKeys() {
+        long now = System.currentTimeMillis();
+        if (now - currentKey.createdAt >= rotationIntervalMillis) {
+            previousKey = currentKey;
+            currentKey = new TicketKey(currentKey.id + 1, keyGenerator.generateKey(), now);
+        }
+    }
+
+    private Mac newMac() {
+        try {
+            return Mac.getInstance(macAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private byte[] mac(TicketKey key, int keyId, long expiresAt, String clientId) {
+        Mac mac = newMac();
+        try {
+            mac.init(key.key);
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException(e);
+        }
+        mac.update(ByteBuffer.allocate(HEADER_SIZE).putInt(keyId).putLong(expiresAt).array());
+        return mac.doFinal(clientId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static final class TicketKey {
+        private final int id;
+        private final SecretKey key;
+        private final long createdAt;
+
+        private TicketKey(int id, SecretKey key, long createdAt) {
+            this.id = id;
+            this.key = key;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package com.segc.services;
+
+import com.segc.exception.DataIntegrityException;
+import com.segc.services.DataPersistenceService.FsyncPolicy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log of the mutations of a catalog, whose entity files only serve as checkpoints of the log.
+ * <p>
+ * Each record is numbered by its sequence number, which keeps growing across checkpoints, as the log starts with the
+ * sequence number of its first record. A record is {@link #append appended} to a buffer in memory, in the order the
+ * mutations were applied, and {@link #commit committed} before the mutation is acknowledged. A single thread at a
+ * time writes and syncs every record buffered so far, so the records appended while it syncs are committed together
+ * by the next thread, with a single sync for the whole group.
+ * <p>
+ * A checkpoint {@link #beginCheckpoint begins} while the catalog is locked, so it covers exactly the mutations
+ * applied so far, and {@link #completeCheckpoint completes} after the lock is released: the entity files are written
+ * and only the records they cover are discarded, so mutations may be appended meanwhile.
+ * <p>
+ * If a group cannot be written, the log fails: no record is committed after it, and
+ * {@link #ensureWritable} rejects further mutations until the server is restarted.
+ *
+ * @param <R> the type of the records.
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class WriteAheadLog<R extends Serializable> implements WriteAheadLogMXBean, AutoCloseable {
+    private static final int MAGIC = 0x544D574C; // "TMWL"
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES;
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+    private final Path path;
+    private final Class<R> recordClass;
+    private final FsyncPolicy fsyncPolicy;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final AtomicLong appendedRecords = new AtomicLong();
+    private final AtomicLong commitGroups = new AtomicLong();
+    private final AtomicLong committedRecords = new AtomicLong();
+    private final AtomicLong syncTimeNanos = new AtomicLong();
+    private FileChannel channel;
+    private long firstSequence;
+    private long lastSequence; // the last record appended
+    private long durableSequence; // the last record written, and synced unless the fsync policy is none
+    private long size; // of the log, including the records not written yet
+    private boolean isCommitting;
+    private boolean isCheckpointing;
+    private long checkpointSequence; // the last record covered by the checkpoint in progress
+    private long checkpointOffset; // the offset of the first record not covered by it
+    private IOException failure;
+
+    /**
+     * @param path        the path of the log.
+     * @param recordClass the class of the records.
+     * @param fsyncPolicy whether each group of records is synced.
+     */
+    public WriteAheadLog(Path path, Class<R> recordClass, FsyncPolicy fsyncPolicy) {
+        this.path = path;
+        this.recordClass = recordClass;
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    /**
+     * Passes every record of the log to the given consumer, in order, and opens the log for appending, creating it
+     * if it does not exist.
+     * <p>
+     * An incomplete or corrupted last record is discarded, as it belongs to a group that was being written when the
+     * server stopped, so it was not acknowledged. A corrupted record followed by others was committed, so the log
+     * cannot be replayed.
+     *
+     * @param consumer the consumer of the sequence number and the record.
+     * @throws DataIntegrityException if a record before the last one is corrupted.
+     */
+    public synchronized void replay(BiConsumer<Long, R> consumer) throws DataIntegrityException {
+        try {
+            if (!Files.isRegularFile(path)) {
+                replace(1, HEADER_SIZE, HEADER_SIZE);
+                return;
+            }
+            long validSize;
+            long fileSize = Files.size(path);
+            try (InputStream in = Files.newInputStream(path);
+                 DataInputStream dis = new DataInputStream(new BufferedInputStream(in))) {
+                if (dis.readInt() != MAGIC) {
+                    throw new IOException("Invalid write-ahead log header in '" + path + "'");
+                }
+                firstSequence = dis.readLong();
+                lastSequence = firstSequence - 1;
+                validSize = HEADER_SIZE;
+                CRC32 crc = new CRC32();
+                while (true) {
+                    byte[] payload;
+                    try {
+                        int length = dis.readInt();
+                        int checksum = dis.readInt();
+                        boolean isLast = validSize + RECORD_HEADER_SIZE + length >= fileSize;
+                        if (length <= 0 || length > MAX_RECORD_SIZE) {
+                            if (isLast) {
+                                break;
+                            }
+                            throw new DataIntegrityException("Invalid length of write-ahead log record "
+                                    + (lastSequence + 1) + " in '" + path + "'");
+                        }
+                        payload = new byte[length];
+                        dis.readFully(payload);
+                        crc.reset();
+                        crc.update(payload);
+                        if ((int) crc.getValue() != checksum) {
+                            if (isLast) {
+                                break;
+                            }
+                            throw new DataIntegrityException("Write-ahead log record " + (lastSequence + 1)
+                                    + " in '" + path + "' failed its checksum");
+                        }
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    consumer.accept(lastSequence + 1, deserialize(payload));
+                    lastSequence++;
+                    validSize += RECORD_HEADER_SIZE + payload.length;
+                }
+            }
+            durableSequence = lastSequence;
+            size = validSize;
+            channel = FileChannel.open(path, StandardOpenOption.WRITE);
+            if (channel.size() > validSize) {
+                System.out.println("Discarding incomplete write-ahead log records in '" + path + "'.");
+                channel.truncate(validSize);
+                channel.force(false);
+            }
+            channel.position(validSize);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Appends a record to the log, without waiting for it to be written. Records must be appended in the order their
+     * mutations were applied.
+     *
+     * @param record the record to append.
+     * @return the sequence number of the record, to {@link #commit} it with.
+     */
+    public long append(R record) {
+        byte[] payload = serialize(record);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE).putInt(payload.length).putInt((int) crc.getValue());
+        synchronized (this) {
+            pending.write(header.array(), 0, RECORD_HEADER_SIZE);
+            pending.write(payload, 0, payload.length);
+            size += RECORD_HEADER_SIZE + payload.length;
+            appendedRecords.incrementAndGet();
+            return ++lastSequence;
+        }
+    }
+
+    /**
+     * Waits until the record with the given sequence number, and every record before it, has been written. The
+     * calling thread writes and syncs every buffered record itself if no other thread is doing so.
+     *
+     * @param sequence the sequence number of the record.
+     */
+    public void commit(long sequence) {
+        byte[] group;
+        long groupLastSequence;
+        synchronized (this) {
+            while (durableSequence < sequence && isCommitting && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+            if (failure != null) {
+                throw new IllegalStateException("The write-ahead log '" + path + "' has failed.", failure);
+            }
+            if (durableSequence >= sequence) {
+                return;
+            }
+            isCommitting = true;
+            group = pending.toByteArray();
+            pending.reset();
+            groupLastSequence = lastSequence;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(group);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (fsyncPolicy != FsyncPolicy.NONE) {
+                long start = System.nanoTime();
+                channel.force(false);
+                syncTimeNanos.addAndGet(System.nanoTime() - start);
+            }
+        } catch (IOException e) {
+            // the group may be partly written, so no later group can be written after it
+            synchronized (this) {
+                failure = e;
+                isCommitting = false;
+                notifyAll();
+            }
+            throw new RuntimeException(e);
+        }
+        synchronized (this) {
+            commitGroups.incrementAndGet();
+            committedRecords.addAndGet(groupLastSequence - durableSequence);
+            durableSequence = groupLastSequence;
+            isCommitting = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Rejects a mutation if the log has failed, as its record could never be committed. Must be called before the
+     * mutation is applied.
+     *
+     * @throws IllegalStateException if a group of records could not be written.
+     */
+    public synchronized void ensureWritable() throws IllegalStateException {
+        if (failure != null) {
+            throw new IllegalStateException("The write-ahead log '" + path + "' has failed.", failure);
+        }
+    }
+
+    /**
+     * Begins a checkpoint of the records appended so far. Must be called while holding the lock that records are
+     * appended under, along with copying the entities to write, so the copies have exactly the covered mutations.
+     *
+     * @return {@code false} if another checkpoint is in progress, in which case no checkpoint was begun.
+     */
+    public synchronized boolean beginCheckpoint() {
+        if (isCheckpointing) {
+            return false;
+        }
+        isCheckpointing = true;
+        checkpointSequence = lastSequence;
+        checkpointOffset = size;
+        return true;
+    }
+
+    /**
+     * Commits the records covered by the checkpoint, writes the entity files, and then discards those records,
+     * keeping those appended since the checkpoint began. If the entity files cannot be written, no record is
+     * discarded, so the next checkpoint covers them again.
+     *
+     * @param writeEntities writes the copies of the entities mutated before the checkpoint began.
+     */
+    public void completeCheckpoint(Runnable writeEntities) {
+        try {
+            commit(checkpointSequence);
+            writeEntities.run();
+            synchronized (this) {
+                while (isCommitting && failure == null) {
+                    wait();
+                }
+                ensureWritable();
+                try {
+                    // every record covered by the checkpoint was committed, so the file holds them all
+                    replace(checkpointSequence + 1, checkpointOffset, size - pending.size());
+                } catch (IOException e) {
+                    failure = e; // the log may have been closed, so no group can be written to it
+                    throw new RuntimeException(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            synchronized (this) {
+                isCheckpointing = false;
+            }
+        }
+    }
+
+    /**
+     * Replaces the log atomically with a log whose first record has the given sequence number, followed by the
+     * records between the given offsets of the current log.
+     */
+    private void replace(long firstSequence, long fromOffset, long toOffset) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tempPath = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try (FileChannel tempChannel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putLong(firstSequence).flip();
+            while (header.hasRemaining()) {
+                tempChannel.write(header);
+            }
+            if (fromOffset < toOffset) {
+                try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+                    for (long position = fromOffset; position < toOffset; ) {
+                        position += in.transferTo(position, toOffset - position, tempChannel);
+                    }
+                }
+            }
+            tempChannel.force(false);
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.firstSequence = firstSequence;
+        this.size = HEADER_SIZE + (toOffset - fromOffset) + pending.size();
+    }
+
+    private byte[] serialize(R record) {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             ObjectOutputStream out = new ObjectOutputStream(baos)) {
+            out.writeObject(record);
+            out.flush();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private R deserialize(byte[] payload) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            return recordClass.cast(in.readObject());
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Invalid write-ahead log record in '" + path + "'", e);
+        }
+    }
+
+    @Override
+    public synchronized long getRecordCount() {
+        return lastSequence - firstSequence + 1;
+    }
+
+    @Override
+    public long getAppendedRecords() {
+        return appendedRecords.get();
+    }
+
+    @Override
+    public long getCommitGroups() {
+        return commitGroups.get();
+    }
+
+    @Override
+    public double getAverageGroupSize() {
+        long groups = commitGroups.get();
+        return groups == 0 ? 0 : (double) committedRecords.get() / groups;
+    }
+
+    @Override
+    public long getSyncTimeNanos() {
+        return syncTimeNanos.get();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.segc.services;
+
+/**
+ * The management interface of a {@link WriteAheadLog}.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public interface WriteAheadLogMXBean {
+
+    /**
+     * Returns the number of records in the log, which is emptied at every checkpoint.
+     */
+    long getRecordCount();
+
+    long getAppendedRecords();
+
+    /**
+     * Returns the number of groups of records written, each with a single sync.
+     */
+    long getCommitGroups();
+
+    double getAverageGroupSize();
+
+    long getSyncTimeNanos();
+}
@@ -0,0 +1,87 @@
+package com.segc.users;
+
+import com.segc.Message;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Delivers messages to the sessions of their recipients as soon as they are stored, so subscribed clients do not have
+ * to poll for them.
+ * <p>
+ * A user may be subscribed from several sessions, each of which receives every message sent to the user. Delivery is
+ * only an attempt, which never blocks the sender: a message stays stored until the recipient reads it or a client
+ * acknowledges it.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class MessageBroker {
+    private final Map<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+
+    /**
+     * Delivers the messages sent to the given user to the given subscriber, until it is unsubscribed.
+     *
+     * @param clientId   the id of the user.
+     * @param subscriber the subscriber of a session of the user.
+     */
+    public void subscribe(String clientId, Subscriber subscriber) {
+        subscribers.compute(clientId, (id, clientSubscribers) -> {
+            if (clientSubscribers == null) {
+                clientSubscribers = ConcurrentHashMap.newKeySet();
+            }
+            clientSubscribers.add(subscriber);
+            return clientSubscribers;
+        });
+    }
+
+    public void unsubscribe(String clientId, Subscriber subscriber) {
+        subscribers.computeIfPresent(clientId, (id, clientSubscribers) -> {
+            clientSubscribers.remove(subscriber);
+            return clientSubscribers.isEmpty() ? null : clientSubscribers;
+        });
+    }
+
+    /**
+     * Delivers a stored message to every subscriber of its recipient. A subscriber that fails to deliver it is
+     * unsubscribed.
+     *
+     * @param recipientId the id of the recipient.
+     * @param message     the message to deliver, with its id.
+     * @return {@code true} if at least one subscriber delivered the message, {@code false} otherwise.
+     */
+    public boolean publish(String recipientId, Message message) {
+        Set<Subscriber> clientSubscribers = subscribers.get(recipientId);
+        if (clientSubscribers == null) {
+            return false;
+        }
+        boolean isDelivered = false;
+        for (Subscriber subscriber : clientSubscribers) {
+            try {
+                isDelivered |= subscriber.deliver(message);
+            } catch (IOException e) {
+                unsubscribe(recipientId, subscriber);
+            }
+        }
+        return isDelivered;
+    }
+
+    /**
+     * Pushes messages to a client session.
+     */
+    @FunctionalInterface
+    public interface Subscriber {
+
+        /**
+         * Sends a message to the client, without blocking.
+         *
+         * @param message the message to send.
+         * @return {@code true} if the message was sent, {@code false} if the client is not reading fast enough.
+         * @throws IOException if the message could not be sent.
+         */
+        boolean deliver(Message message) throws IOException;
+    }
+}
@@ -4,7 +4,9 @@
 package com.segc.users;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Queue;
 
@@ -20,6 +22,8 @@ public class User implements Serializable {
     private final String clientId;
     private final Queue<Message> messages;
     private double balance;
+    private long logSequence; // the last record of the write-ahead log applied, 0 in files stored before it
+    private long lastMessageId; // 0 in files stored before messages had ids
 
     /**
      * @param clientId The client's id.
@@ -82,10 +86,15 @@ public class User implements Serializable {
     }
 
     /**
+     * Adds a message to this client's messages, with the next message id of this client.
+     *
      * @param message The {@link Message} to add to this client's messages.
+     * @return The message added, with its id.
      */
-    public void addMessage(Message message) {
-        messages.add(message);
+    public Message addMessage(Message message) {
+        Message stored = message.withId(++lastMessageId);
+        messages.add(stored);
+        return stored;
     }
 
     /**
@@ -93,7 +102,25 @@ public class User implements Serializable {
      * @param message  The content of the message to add to this client's messages.
      */
     public void addMessage(String senderId, byte[] message) {
-        messages.add(new Message(senderId, message));
+        addMessage(new Message(senderId, message));
+    }
+
+    /**
+     * Removes the message with the given id from the message queue, if it is still there.
+     *
+     * @param messageId The id of the message.
+     * @return {@code true} if the message was removed, {@code false} if there is no message with the given id.
+     */
+    public boolean removeMessage(long messageId) {
+        return messages.removeIf(message -> message.getId() == messageId);
+    }
+
+    /**
+     * @param messageId The id of a message.
+     * @return {@code true} if the message is in the message queue, {@code false} otherwise.
+     */
+    public boolean hasMessage(long messageId) {
+        return messages.stream().anyMatch(message -> message.getId() == messageId);
     }
 
     /**
@@ -107,4 +134,45 @@ public class User implements Serializable {
         return messages.remove();
     }
 
+    /**
+     * Returns up to {@code maxCount} messages from the message queue in FIFO order, stopping before the total size of
+     * their contents exceeds {@code maxBytes}. The first message is always returned, whatever its size.
+     * The messages are discarded after calling this method.
+     *
+     * @param maxCount the maximum number of messages to return.
+     * @param maxBytes the maximum total size of the contents of the messages.
+     * @return the oldest messages in the message queue, which may be empty.
+     */
+    public List<Message> readMessages(int maxCount, int maxBytes) {
+        List<Message> read = new ArrayList<>(Math.min(maxCount, messages.size()));
+        long bytes = 0;
+        while (read.size() < maxCount && !messages.isEmpty()) {
+            bytes += messages.element().getContent().length;
+            if (bytes > maxBytes && !read.isEmpty()) {
+                break;
+            }
+            read.add(messages.remove());
+        }
+        return read;
+    }
+
+    /**
+     * @return The number of unread messages of this User.
+     */
+    public int getMessageCount() {
+        return messages.size();
+    }
+
+    long getLastMessageId() {
+        return lastMessageId;
+    }
+
+    long getLogSequence() {
+        return logSequence;
+    }
+
+    void setLogSequence(long logSequence) {
+        this.logSequence = logSequence;
+    }
+
 }
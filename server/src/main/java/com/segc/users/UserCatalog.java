@@ -4,15 +4,27 @@ import com.segc.Configuration;
 import com.segc.Message;
 import com.segc.exception.DuplicateElementException;
 import com.segc.services.DataPersistenceService;
+import com.segc.services.WriteAheadLog;
 
 import java.io.FileNotFoundException;
 import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * The users of the server.
+ * <p>
+ * Every mutation is applied in memory and appended to a {@link WriteAheadLog}, which is committed before the method
+ * returns. The files of the mutated users are only rewritten at checkpoints, every {@code logCheckpointInterval}
+ * records, and the records logged since the last checkpoint are replayed at startup. If the log fails, every later
+ * mutation is rejected with an {@link IllegalStateException}.
+ *
  * @author fc54685 Francisco Correia
  * @author fc55955 Alexandre Fonseca
  * @author fc56272 Filipe Egipto
@@ -21,25 +33,51 @@ public class UserCatalog {
     public final String userDataDir;
     private final Map<String, User> users;
     private final DataPersistenceService dps;
+    private final MessageBroker messageBroker;
+    private final WriteAheadLog<UserRecord> log;
+    private final int checkpointInterval;
+    private final Set<String> dirtyUsers = new HashSet<>();
 
     public UserCatalog(DataPersistenceService dps) {
-        this.users = new HashMap<>();
+        this(dps, new MessageBroker());
+    }
+
+    public UserCatalog(DataPersistenceService dps, MessageBroker messageBroker) {
+        Configuration config = Configuration.getInstance();
+        this.users = new ConcurrentHashMap<>();
         this.dps = dps;
-        this.userDataDir = Configuration.getInstance().getValue("userDataDir");
+        this.messageBroker = messageBroker;
+        this.userDataDir = config.getValue("userDataDir");
+        this.log = new WriteAheadLog<>(Path.of(config.getValue("userLogFile")), UserRecord.class,
+                dps.getFsyncPolicy());
+        this.checkpointInterval = config.getInt("logCheckpointInterval");
         try {
             dps.getObjectsAndVerify(User.class, userDataDir).forEach(user -> users.put(user.getId(), user));
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
         }
+        synchronized (this) {
+            log.replay((sequence, record) -> {
+                User user = users.get(record.getClientId());
+                if (user == null || user.getLogSequence() < sequence) { // otherwise its file already has the record
+                    logged(record.apply(users), sequence);
+                }
+            });
+        }
+        if (log.getRecordCount() > 0) {
+            checkpoint();
+        }
     }
 
     public void add(String clientId) throws DuplicateElementException {
-        if (users.containsKey(clientId)) {
-            throw new DuplicateElementException();
+        long sequence;
+        synchronized (this) {
+            if (users.containsKey(clientId)) {
+                throw new DuplicateElementException();
+            }
+            sequence = apply(new UserRecord.Add(clientId));
         }
-        User user = new User(clientId);
-        users.put(clientId, user);
-        dps.putObjectAndDigest(user, Path.of(userDataDir, clientId));
+        commit(sequence);
     }
 
     public double getBalance(String clientId) throws NoSuchElementException {
@@ -47,46 +85,187 @@ public class UserCatalog {
     }
 
     public void addBalance(String clientId, double balance) throws NoSuchElementException, IllegalArgumentException {
-        User user = Optional.ofNullable(users.get(clientId)).orElseThrow();
-        user.addBalance(balance);
-        dps.putObjectAndDigest(user, Path.of(userDataDir, user.getId()));
+        long sequence;
+        synchronized (this) {
+            Optional.ofNullable(users.get(clientId)).orElseThrow();
+            sequence = apply(new UserRecord.AddBalance(clientId, balance));
+        }
+        commit(sequence);
     }
 
     public void removeBalance(String clientId, double balance)
             throws NoSuchElementException, IllegalArgumentException {
-        User user = Optional.ofNullable(users.get(clientId)).orElseThrow();
-        user.removeBalance(balance);
-        dps.putObjectAndDigest(user, Path.of(userDataDir, clientId));
+        long sequence;
+        synchronized (this) {
+            Optional.ofNullable(users.get(clientId)).orElseThrow();
+            sequence = apply(new UserRecord.RemoveBalance(clientId, balance));
+        }
+        commit(sequence);
     }
 
     public void transferBalance(String senderId, String recipientId, double amount)
             throws NoSuchElementException, IllegalArgumentException {
-        // BOTH conditions must be true before we transfer the balance
-        if (users.containsKey(senderId) && users.containsKey(recipientId)) {
-            removeBalance(senderId, amount);
-            addBalance(recipientId, amount);
-        } else {
-            throw new NoSuchElementException();
+        long sequence;
+        synchronized (this) {
+            // BOTH conditions must be true before we transfer the balance
+            if (users.containsKey(senderId) && users.containsKey(recipientId)) {
+                apply(new UserRecord.RemoveBalance(senderId, amount));
+                sequence = apply(new UserRecord.AddBalance(recipientId, amount));
+            } else {
+                throw new NoSuchElementException();
+            }
         }
+        commit(sequence);
+    }
+
+    public MessageBroker getMessageBroker() {
+        return messageBroker;
+    }
 
+    /**
+     * @return the write-ahead log of the mutations of users.
+     */
+    public WriteAheadLog<?> getLog() {
+        return log;
     }
 
-    public void talk(String senderId, String recipientId, byte[] message) throws NoSuchElementException {
+    /**
+     * Sends a message to a user. The message is stored for {@link #read(String)} and, once committed, pushed to the
+     * sessions subscribed by the recipient, if any, until a client {@link #acknowledge acknowledges} it.
+     */
+    public void talk(String senderId, String recipientId, byte[] message, byte[] header)
+            throws NoSuchElementException {
         User recipient = Optional.ofNullable(users.get(recipientId)).orElseThrow();
-        recipient.addMessage(senderId, message);
-        dps.putObjectAndDigest(recipient, Path.of(userDataDir, recipientId));
+        Message m = new Message(senderId, message, header);
+        long sequence;
+        long messageId;
+        synchronized (this) {
+            sequence = apply(new UserRecord.AddMessage(recipientId, m));
+            messageId = recipient.getLastMessageId();
+        }
+        commit(sequence);
+        messageBroker.publish(recipientId, m.withId(messageId));
+    }
+
+    /**
+     * Removes a message pushed to a user once a client of the user has acknowledged it, unless it has already been
+     * read.
+     *
+     * @param clientId  the id of the user.
+     * @param messageId the id of the message.
+     */
+    public void acknowledge(String clientId, long messageId) throws NoSuchElementException {
+        User recipient = Optional.ofNullable(users.get(clientId)).orElseThrow();
+        long sequence;
+        synchronized (this) {
+            if (messageId <= 0 || !recipient.hasMessage(messageId)) { // messages stored before ids were used have 0
+                return;
+            }
+            sequence = apply(new UserRecord.RemoveMessage(clientId, messageId));
+        }
+        commit(sequence);
     }
 
     public Message read(String clientId) throws NoSuchElementException, IllegalArgumentException {
         User recipient = Optional.ofNullable(users.get(clientId)).orElseThrow();
-        try {
-            Message message = recipient.readMessage();
-            dps.putObjectAndDigest(recipient, Path.of(userDataDir, clientId));
-            return message;
-        } catch (NoSuchElementException e) {
-            String msg = String.format("User '%s' has no unread messages.", clientId);
-            throw new IllegalArgumentException(msg);
+        Message message;
+        long sequence;
+        synchronized (this) {
+            log.ensureWritable();
+            try {
+                message = recipient.readMessage();
+            } catch (NoSuchElementException e) {
+                String msg = String.format("User '%s' has no unread messages.", clientId);
+                throw new IllegalArgumentException(msg);
+            }
+            sequence = logged(recipient, log.append(new UserRecord.RemoveMessages(clientId, 1)));
+        }
+        commit(sequence);
+        return message;
+    }
+
+    /**
+     * Reads a page of the oldest unread messages of a user, which are removed with a single log record.
+     *
+     * @see User#readMessages(int, int)
+     */
+    public List<Message> read(String clientId, int maxCount, int maxBytes) throws NoSuchElementException {
+        User recipient = Optional.ofNullable(users.get(clientId)).orElseThrow();
+        List<Message> messages;
+        long sequence;
+        synchronized (this) {
+            log.ensureWritable();
+            messages = recipient.readMessages(maxCount, maxBytes);
+            if (messages.isEmpty()) {
+                return messages;
+            }
+            sequence = logged(recipient, log.append(new UserRecord.RemoveMessages(clientId, messages.size())));
+        }
+        commit(sequence);
+        return messages;
+    }
+
+    public int getMessageCount(String clientId) throws NoSuchElementException {
+        return Optional.ofNullable(users.get(clientId)).orElseThrow().getMessageCount();
+    }
+
+    /**
+     * Applies a mutation and appends it to the log, which must be done while holding the lock of this catalog, so
+     * records are logged in the order they were applied.
+     *
+     * @return the sequence number of the record.
+     */
+    private long apply(UserRecord record) {
+        log.ensureWritable();
+        return logged(record.apply(users), log.append(record));
+    }
+
+    /**
+     * Marks a user as mutated by the record with the given sequence number.
+     *
+     * @return the sequence number.
+     */
+    private long logged(User user, long sequence) {
+        user.setLogSequence(sequence);
+        dirtyUsers.add(user.getId());
+        return sequence;
+    }
+
+    /**
+     * Waits for a record to be committed, and writes a checkpoint if enough records have been logged since the last
+     * one.
+     */
+    private void commit(long sequence) {
+        log.commit(sequence);
+        if (log.getRecordCount() >= checkpointInterval) {
+            checkpoint();
         }
+    }
 
+    /**
+     * Writes the file of every user mutated since the last checkpoint, and discards the records they cover from the
+     * log, unless another thread is already doing so. The users are copied while holding the lock of this catalog,
+     * and written after releasing it.
+     */
+    private void checkpoint() {
+        Map<String, byte[]> snapshot = new HashMap<>();
+        synchronized (this) {
+            if (!log.beginCheckpoint()) {
+                return;
+            }
+            for (String clientId : dirtyUsers) {
+                snapshot.put(clientId, dps.serialize(users.get(clientId)));
+            }
+            dirtyUsers.clear();
+        }
+        try {
+            log.completeCheckpoint(() -> snapshot.forEach((clientId, bytes) ->
+                    dps.putBytesAndDigest(bytes, Path.of(userDataDir, clientId))));
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                dirtyUsers.addAll(snapshot.keySet()); // their records are still in the log
+            }
+            throw e;
+        }
     }
 }
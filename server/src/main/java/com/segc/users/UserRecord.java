@@ -0,0 +1,140 @@
+package com.segc.users;
+
+import com.segc.Message;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * A mutation of a single {@link User}, as kept in the write-ahead log of the {@link UserCatalog}.
+ * <p>
+ * A record is only logged once it has been applied without errors, so applying it again on replay cannot fail.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+abstract class UserRecord implements Serializable {
+    private static final long serialVersionUID = 4216071520934480672L;
+    protected final String clientId;
+
+    UserRecord(String clientId) {
+        this.clientId = clientId;
+    }
+
+    String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * Applies this mutation to its user, among the given users.
+     *
+     * @param users the users, by client id.
+     * @return the user that was mutated.
+     */
+    abstract User apply(Map<String, User> users);
+
+    static final class Add extends UserRecord {
+        private static final long serialVersionUID = -1948322385633720153L;
+
+        Add(String clientId) {
+            super(clientId);
+        }
+
+        @Override
+        User apply(Map<String, User> users) {
+            return users.computeIfAbsent(clientId, User::new);
+        }
+    }
+
+    static final class AddBalance extends UserRecord {
+        private static final long serialVersionUID = 7033497516263904577L;
+        private final double amount;
+
+        AddBalance(String clientId, double amount) {
+            super(clientId);
+            this.amount = amount;
+        }
+
+        @Override
+        User apply(Map<String, User> users) {
+            User user = users.get(clientId);
+            user.addBalance(amount);
+            return user;
+        }
+    }
+
+    static final class RemoveBalance extends UserRecord {
+        private static final long serialVersionUID = 3550209542870416227L;
+        private final double amount;
+
+        RemoveBalance(String clientId, double amount) {
+            super(clientId);
+            this.amount = amount;
+        }
+
+        @Override
+        User apply(Map<String, User> users) {
+            User user = users.get(clientId);
+            user.removeBalance(amount);
+            return user;
+        }
+    }
+
+    static final class AddMessage extends UserRecord {
+        private static final long serialVersionUID = -6011716380815416903L;
+        private final Message message;
+
+        AddMessage(String clientId, Message message) {
+            super(clientId);
+            this.message = message;
+        }
+
+        @Override
+        User apply(Map<String, User> users) {
+            User user = users.get(clientId);
+            user.addMessage(message);
+            return user;
+        }
+    }
+
+    /**
+     * Removes a message pushed to a user, which the client has acknowledged.
+     */
+    static final class RemoveMessage extends UserRecord {
+        private static final long serialVersionUID = 5837201486310459262L;
+        private final long messageId;
+
+        RemoveMessage(String clientId, long messageId) {
+            super(clientId);
+            this.messageId = messageId;
+        }
+
+        @Override
+        User apply(Map<String, User> users) {
+            User user = users.get(clientId);
+            user.removeMessage(messageId);
+            return user;
+        }
+    }
+
+    /**
+     * Removes the oldest messages of a user, which have been read.
+     */
+    static final class RemoveMessages extends UserRecord {
+        private static final long serialVersionUID = 1409386212257725580L;
+        private final int count;
+
+        RemoveMessages(String clientId, int count) {
+            super(clientId);
+            this.count = count;
+        }
+
+        @Override
+        User apply(Map<String, User> users) {
+            User user = users.get(clientId);
+            user.readMessages(count, Integer.MAX_VALUE);
+            return user;
+        }
+    }
+}
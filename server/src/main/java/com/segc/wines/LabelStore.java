@@ -0,0 +1,125 @@
+package com.segc.wines;
+
+import com.segc.exception.DataIntegrityException;
+import com.segc.services.BlockchainService;
+import com.segc.services.DataPersistenceService;
+
+import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.NoSuchElementException;
+import java.util.regex.Pattern;
+
+/**
+ * A content-addressed store of wine labels.
+ * <p>
+ * Each label is stored once as a PNG image, in a file named after the hex-formatted digest of its contents, so
+ * wines with identical labels share the same file.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public class LabelStore {
+    private static final Pattern DIGEST_PATTERN = Pattern.compile("[0-9A-F]+");
+    private final String labelDataDir;
+    private final DataPersistenceService dps;
+
+    public LabelStore(String labelDataDir, DataPersistenceService dps) {
+        this.labelDataDir = labelDataDir;
+        this.dps = dps;
+    }
+
+    /**
+     * Stores a label, unless an identical label is already stored. A stored file that does not match its digest, such
+     * as one left corrupted, is replaced.
+     *
+     * @param label the label to store.
+     * @return the digest of the label, or {@code null} if the label has no image.
+     */
+    public String put(ImageIcon label) {
+        byte[] bytes = toPng(label);
+        if (bytes == null) {
+            return null;
+        }
+        String digest = BlockchainService.digestToHex(dps.digest(bytes));
+        Path filePath = Path.of(labelDataDir, digest);
+        synchronized (this) {
+            if (!isStored(filePath, digest)) {
+                dps.putBytes(bytes, filePath);
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * Returns whether the file at the given path holds a label with the given digest.
+     */
+    private boolean isStored(Path filePath, String digest) {
+        if (!Files.exists(filePath)) {
+            return false;
+        }
+        try {
+            return BlockchainService.digestToHex(dps.digest(dps.getBytes(filePath))).equals(digest);
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the contents of a stored label.
+     *
+     * @param digest the digest of the label.
+     * @return the label as a PNG image.
+     * @throws NoSuchElementException if there is no label with the given digest.
+     * @throws DataIntegrityException if the stored label does not match its digest.
+     */
+    public byte[] get(String digest) throws NoSuchElementException, DataIntegrityException {
+        if (digest == null || !DIGEST_PATTERN.matcher(digest).matches()) {
+            throw new NoSuchElementException();
+        }
+        byte[] bytes;
+        try {
+            bytes = dps.getBytes(Path.of(labelDataDir, digest));
+        } catch (FileNotFoundException e) {
+            throw new NoSuchElementException();
+        }
+        if (!BlockchainService.digestToHex(dps.digest(bytes)).equals(digest)) {
+            String message = String.format("%s digests do not match for label '%s'", dps.digestAlgorithm, digest);
+            throw new DataIntegrityException(message);
+        }
+        return bytes;
+    }
+
+    /**
+     * Encodes the image of a label as PNG, so equal images have equal encodings regardless of how they were loaded.
+     *
+     * @return the encoded image, or {@code null} if the label has no image.
+     */
+    private static byte[] toPng(ImageIcon label) {
+        if (label == null || label.getIconWidth() <= 0 || label.getIconHeight() <= 0) {
+            return null;
+        }
+        BufferedImage image = new BufferedImage(label.getIconWidth(),
+                label.getIconHeight(),
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.drawImage(label.getImage(), 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            ImageIO.write(image, "png", out);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -3,11 +3,10 @@
  */
 package com.segc.wines;
 
-import javax.swing.*;
+import javax.swing.ImageIcon;
 
 import com.segc.users.User;
 
-import java.awt.*;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -22,65 +21,71 @@ import java.util.Optional;
 public class Wine implements Serializable {
     private static final long serialVersionUID = 102672917111219812L;
     private final String name;
-    private final ImageIcon label;
+    private ImageIcon label; // only set in wines stored before labels were moved to the LabelStore
+    private String labelDigest;
     private final LinkedList<Integer> ratings;
     private final HashMap<String, WineListing> wineListings;
+    private long logSequence; // the last record of the write-ahead log applied, 0 in files stored before it
 
     /**
      * Creates a {@link Wine} with the given name and label.
      *
-     * @param name  the name for this wine.
-     * @param label an image of this wine's label.
+     * @param name        the name for this wine.
+     * @param labelDigest the digest of this wine's label in the {@link LabelStore}, or {@code null} if it has none.
      */
-    public Wine(String name, ImageIcon label) {
-        this(name, label, new LinkedList<>());
+    public Wine(String name, String labelDigest) {
+        this(name, labelDigest, new LinkedList<>());
     }
 
     /**
      * Creates a {@link Wine} with the given name, label and list of ratings.
      *
-     * @param name    The name for this wine.
-     * @param label   an image of this wine's label.
-     * @param ratings A list of ratings (between 1 and 5, inclusive).
+     * @param name        The name for this wine.
+     * @param labelDigest the digest of this wine's label in the {@link LabelStore}, or {@code null} if it has none.
+     * @param ratings     A list of ratings (between 1 and 5, inclusive).
      */
-    public Wine(String name, ImageIcon label, LinkedList<Integer> ratings) {
-        this(name, label, ratings, new HashMap<>());
+    public Wine(String name, String labelDigest, LinkedList<Integer> ratings) {
+        this(name, labelDigest, ratings, new HashMap<>());
     }
 
     /**
      * Creates a {@link Wine} with the given name, label, list of ratings and collection of wine listings.
      *
      * @param name         The name for this wine.
-     * @param label        an image of this wine's label.
+     * @param labelDigest  the digest of this wine's label in the {@link LabelStore}, or {@code null} if it has none.
      * @param ratings      A list of ratings (between 1 and 5, inclusive).
      * @param wineListings A collection of {@link WineListing} listed by a seller ({@link User}) with the given id.
      */
-    public Wine(String name, ImageIcon label, LinkedList<Integer> ratings, HashMap<String, WineListing> wineListings) {
+    public Wine(String name,
+                String labelDigest,
+                LinkedList<Integer> ratings,
+                HashMap<String, WineListing> wineListings) {
         this.name = name;
-        this.label = label;
+        this.labelDigest = labelDigest;
         this.ratings = ratings;
         this.wineListings = wineListings;
     }
 
     /**
-     * @return an image of this wine's label.
+     * @return the digest of this wine's label in the {@link LabelStore}, or {@code null} if it has none.
      */
-    public ImageIcon getLabel() {
-        return label;
+    public String getLabelDigest() {
+        return labelDigest;
     }
 
     /**
-     * Draws this wine's label.
+     * Moves the label of a wine stored with its label inline to the given store.
+     *
+     * @param labelStore the store to move the label to.
+     * @return {@code true} if this wine had an inline label, {@code false} otherwise.
      */
-    public void drawLabel() {
-        JFrame jFrame = new JFrame(this.name);
-        jFrame.setLayout(new BorderLayout());
-        JLabel jLabel = new JLabel(this.label);
-        jFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-        jFrame.add(jLabel);
-        jFrame.setLocationRelativeTo(null);
-        jFrame.pack();
-        jFrame.setVisible(true);
+    boolean migrateLabel(LabelStore labelStore) {
+        if (label == null) {
+            return false;
+        }
+        labelDigest = labelStore.put(label);
+        label = null;
+        return true;
     }
 
     /**
@@ -133,4 +138,12 @@ public class Wine implements Serializable {
     public void removeListing(String sellerId) {
         this.wineListings.remove(sellerId);
     }
+
+    long getLogSequence() {
+        return logSequence;
+    }
+
+    void setLogSequence(long logSequence) {
+        this.logSequence = logSequence;
+    }
 }
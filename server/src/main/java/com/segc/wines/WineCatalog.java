@@ -1,15 +1,21 @@
 package com.segc.wines;
 
 import com.segc.Configuration;
+import com.segc.exception.DataIntegrityException;
 import com.segc.exception.DuplicateElementException;
 import com.segc.services.DataPersistenceService;
+import com.segc.services.WriteAheadLog;
 
 import javax.swing.*;
 import java.io.FileNotFoundException;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * The wines of the server, whose mutations are kept in a {@link WriteAheadLog} like those of the
+ * {@link com.segc.users.UserCatalog}.
+ *
  * @author fc54685 Francisco Correia
  * @author fc55955 Alexandre Fonseca
  * @author fc56272 Filipe Egipto
@@ -18,53 +24,97 @@ public class WineCatalog {
     public final String wineDataDir;
     private final Map<String, Wine> wines;
     private final DataPersistenceService dps;
+    private final LabelStore labelStore;
+    private final WriteAheadLog<WineRecord> log;
+    private final int checkpointInterval;
+    private final Set<String> dirtyWines = new HashSet<>();
 
     public WineCatalog(DataPersistenceService dps) {
         Configuration config = Configuration.getInstance();
-        this.wines = new HashMap<>();
+        this.wines = new ConcurrentHashMap<>();
         this.dps = dps;
         this.wineDataDir = config.getValue("wineDataDir");
+        this.labelStore = new LabelStore(config.getValue("labelDataDir"), dps);
+        this.log = new WriteAheadLog<>(Path.of(config.getValue("wineLogFile")), WineRecord.class,
+                dps.getFsyncPolicy());
+        this.checkpointInterval = config.getInt("logCheckpointInterval");
         try {
-            dps.getObjectsAndVerify(Wine.class, wineDataDir).forEach(wine -> wines.put(wine.getName(), wine));
+            dps.getObjectsAndVerify(Wine.class, wineDataDir).forEach(wine -> {
+                if (wine.migrateLabel(labelStore)) {
+                    dps.putObjectAndDigest(wine, Path.of(wineDataDir, wine.getName()));
+                }
+                wines.put(wine.getName(), wine);
+            });
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
         }
+        synchronized (this) {
+            log.replay((sequence, record) -> {
+                Wine wine = wines.get(record.getWineName());
+                if (wine == null || wine.getLogSequence() < sequence) { // otherwise its file already has the record
+                    logged(record.apply(wines), sequence);
+                }
+            });
+        }
+        if (log.getRecordCount() > 0) {
+            checkpoint();
+        }
     }
 
     public void add(String wineName, ImageIcon label) throws DuplicateElementException {
         if (wines.containsKey(wineName)) {
             throw new DuplicateElementException();
         }
-        Wine wine = new Wine(wineName, label);
-        wines.put(wineName, wine);
-        dps.putObjectAndDigest(wine, Path.of(wineDataDir, wineName));
+        String labelDigest = labelStore.put(label);
+        long sequence;
+        synchronized (this) {
+            if (wines.containsKey(wineName)) {
+                throw new DuplicateElementException();
+            }
+            sequence = apply(new WineRecord.Add(wineName, labelDigest));
+        }
+        commit(sequence);
     }
 
     public void sell(String wineName, String sellerId, double costPerUnit, int quantity)
             throws DuplicateElementException, NoSuchElementException, IllegalArgumentException {
-        Wine wine = Optional.ofNullable(wines.get(wineName)).orElseThrow();
-        WineListing wl = new WineListing(sellerId, costPerUnit, quantity);
-        if (wine.getListings().putIfAbsent(sellerId, wl) == null) {
-            dps.putObjectAndDigest(wine, Path.of(wineDataDir, wine.getName()));
-        } else {
-            throw new DuplicateElementException();
+        long sequence;
+        synchronized (this) {
+            Wine wine = Optional.ofNullable(wines.get(wineName)).orElseThrow();
+            if (wine.getListings().containsKey(sellerId)) {
+                throw new DuplicateElementException();
+            }
+            sequence = apply(new WineRecord.Sell(wineName, sellerId, costPerUnit, quantity));
         }
+        commit(sequence);
     }
 
     public String view(String wineName) throws NoSuchElementException {
         return Optional.ofNullable(wines.get(wineName)).orElseThrow().toString();
     }
 
+    public String getLabelDigest(String wineName) throws NoSuchElementException {
+        return Optional.ofNullable(wines.get(wineName)).orElseThrow().getLabelDigest();
+    }
+
+    /**
+     * @see LabelStore#get(String)
+     */
+    public byte[] getLabel(String labelDigest) throws NoSuchElementException, DataIntegrityException {
+        return labelStore.get(labelDigest);
+    }
+
     public double buy(String wineName, String sellerId, int quantity)
             throws NoSuchElementException, IllegalArgumentException {
-        Wine wine = Optional.ofNullable(wines.get(wineName)).orElseThrow();
-        WineListing wl = Optional.ofNullable(wine.getListings().get(sellerId)).orElseThrow();
-        wl.removeQuantity(quantity);
-        if (wl.getQuantity() == 0) {
-            wine.removeListing(sellerId);
+        double costPerUnit;
+        long sequence;
+        synchronized (this) {
+            Wine wine = Optional.ofNullable(wines.get(wineName)).orElseThrow();
+            costPerUnit = wine.getListing(sellerId).getCostPerUnit();
+            sequence = apply(new WineRecord.Buy(wineName, sellerId, quantity));
         }
-        dps.putObjectAndDigest(wine, Path.of(wineDataDir, wine.getName()));
-        return wl.getCostPerUnit() * quantity;
+        commit(sequence);
+        return costPerUnit * quantity;
     }
 
     public double getPrice(String wineName, String sellerId, int quantity)
@@ -82,12 +132,82 @@ public class WineCatalog {
     }
 
     public void classify(String wineName, int stars) throws NoSuchElementException, IllegalArgumentException {
-        Wine wine = wines.get(wineName);
-        Optional.ofNullable(wine).orElseThrow().addRating(stars);
-        dps.putObjectAndDigest(wine, Path.of(wineDataDir, wine.getName()));
+        long sequence;
+        synchronized (this) {
+            Optional.ofNullable(wines.get(wineName)).orElseThrow();
+            sequence = apply(new WineRecord.Classify(wineName, stars));
+        }
+        commit(sequence);
     }
 
     public boolean contains(String wineName) {
         return wines.containsKey(wineName);
     }
+
+    /**
+     * @return the write-ahead log of the mutations of wines.
+     */
+    public WriteAheadLog<?> getLog() {
+        return log;
+    }
+
+    /**
+     * Applies a mutation and appends it to the log, which must be done while holding the lock of this catalog, so
+     * records are logged in the order they were applied.
+     *
+     * @return the sequence number of the record.
+     */
+    private long apply(WineRecord record) {
+        log.ensureWritable();
+        return logged(record.apply(wines), log.append(record));
+    }
+
+    /**
+     * Marks a wine as mutated by the record with the given sequence number.
+     *
+     * @return the sequence number.
+     */
+    private long logged(Wine wine, long sequence) {
+        wine.setLogSequence(sequence);
+        dirtyWines.add(wine.getName());
+        return sequence;
+    }
+
+    /**
+     * Waits for a record to be committed, and writes a checkpoint if enough records have been logged since the last
+     * one.
+     */
+    private void commit(long sequence) {
+        log.commit(sequence);
+        if (log.getRecordCount() >= checkpointInterval) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Writes the file of every wine mutated since the last checkpoint, and discards the records they cover from the
+     * log, unless another thread is already doing so. The wines are copied while holding the lock of this catalog,
+     * and written after releasing it.
+     */
+    private void checkpoint() {
+        Map<String, byte[]> snapshot = new HashMap<>();
+        synchronized (this) {
+            if (!log.beginCheckpoint()) {
+                return;
+            }
+            for (String wineName : dirtyWines) {
+                snapshot.put(wineName, dps.serialize(wines.get(wineName)));
+            }
+            dirtyWines.clear();
+        }
+        try {
+            log.completeCheckpoint(() -> snapshot.forEach((wineName, bytes) ->
+                    dps.putBytesAndDigest(bytes, Path.of(wineDataDir, wineName))));
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                dirtyWines.addAll(snapshot.keySet()); // their records are still in the log
+            }
+            throw e;
+        }
+    }
 }
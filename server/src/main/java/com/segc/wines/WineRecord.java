@@ -0,0 +1,110 @@
+package com.segc.wines;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * A mutation of a single {@link Wine}, as kept in the write-ahead log of the {@link WineCatalog}.
+ * <p>
+ * A record is only logged once it has been applied without errors, so applying it again on replay cannot fail.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+abstract class WineRecord implements Serializable {
+    private static final long serialVersionUID = -3176329860245106839L;
+    protected final String wineName;
+
+    WineRecord(String wineName) {
+        this.wineName = wineName;
+    }
+
+    String getWineName() {
+        return wineName;
+    }
+
+    /**
+     * Applies this mutation to its wine, among the given wines.
+     *
+     * @param wines the wines, by name.
+     * @return the wine that was mutated.
+     */
+    abstract Wine apply(Map<String, Wine> wines);
+
+    static final class Add extends WineRecord {
+        private static final long serialVersionUID = 5286744906335717121L;
+        private final String labelDigest;
+
+        Add(String wineName, String labelDigest) {
+            super(wineName);
+            this.labelDigest = labelDigest;
+        }
+
+        @Override
+        Wine apply(Map<String, Wine> wines) {
+            return wines.computeIfAbsent(wineName, name -> new Wine(name, labelDigest));
+        }
+    }
+
+    static final class Sell extends WineRecord {
+        private static final long serialVersionUID = -8725064330214379580L;
+        private final String sellerId;
+        private final double costPerUnit;
+        private final int quantity;
+
+        Sell(String wineName, String sellerId, double costPerUnit, int quantity) {
+            super(wineName);
+            this.sellerId = sellerId;
+            this.costPerUnit = costPerUnit;
+            this.quantity = quantity;
+        }
+
+        @Override
+        Wine apply(Map<String, Wine> wines) {
+            Wine wine = wines.get(wineName);
+            wine.getListings().put(sellerId, new WineListing(sellerId, costPerUnit, quantity));
+            return wine;
+        }
+    }
+
+    static final class Buy extends WineRecord {
+        private static final long serialVersionUID = 2093671503297183942L;
+        private final String sellerId;
+        private final int quantity;
+
+        Buy(String wineName, String sellerId, int quantity) {
+            super(wineName);
+            this.sellerId = sellerId;
+            this.quantity = quantity;
+        }
+
+        @Override
+        Wine apply(Map<String, Wine> wines) {
+            Wine wine = wines.get(wineName);
+            WineListing wl = wine.getListing(sellerId);
+            wl.removeQuantity(quantity);
+            if (wl.getQuantity() == 0) {
+                wine.removeListing(sellerId);
+            }
+            return wine;
+        }
+    }
+
+    static final class Classify extends WineRecord {
+        private static final long serialVersionUID = 7452810936127794330L;
+        private final int stars;
+
+        Classify(String wineName, int stars) {
+            super(wineName);
+            this.stars = stars;
+        }
+
+        @Override
+        Wine apply(Map<String, Wine> wines) {
+            Wine wine = wines.get(wineName);
+            wine.addRating(stars);
+            return wine;
+        }
+    }
+}
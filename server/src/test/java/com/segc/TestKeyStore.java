@@ -0,0 +1,48 @@
+package com.segc;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Creates a key store with a self-signed key pair and installs it as the key store of the tests, as the server does
+ * with the key store it is given.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+public final class TestKeyStore {
+    public static final String ALIAS = "server";
+    public static final String PASSWORD = "changeit";
+
+    private TestKeyStore() {
+    }
+
+    /**
+     * Generates the key store with {@code keytool} and points the {@code javax.net.ssl} properties to it.
+     *
+     * @param dir the directory to create the key store in.
+     */
+    public static void install(Path dir) throws IOException, InterruptedException {
+        Path keyStore = dir.resolve("keystore.p12");
+        Path keytool = Path.of(System.getProperty("java.home"), "bin", "keytool");
+        Process process = new ProcessBuilder(keytool.toString(),
+                "-genkeypair",
+                "-alias", ALIAS,
+                "-keyalg", "RSA",
+                "-keysize", "2048",
+                "-dname", "CN=" + ALIAS,
+                "-validity", "1",
+                "-storetype", "PKCS12",
+                "-keystore", keyStore.toString(),
+                "-storepass", PASSWORD,
+                "-keypass", PASSWORD).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes());
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed: " + output);
+        }
+        System.setProperty("javax.net.ssl.keyStore", keyStore.toString());
+        System.setProperty("javax.net.ssl.keyStorePassword", PASSWORD);
+        System.setProperty("javax.net.ssl.keyStoreType", "PKCS12");
+    }
+}
@@ -0,0 +1,77 @@
+package com.segc.net;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+class QueuedOutputStreamTest {
+    private static final int HIGH_WATER_MARK = 16;
+    private static final int MAX_QUEUED_BYTES = 1024;
+    private static final long WRITE_TIMEOUT = 200;
+
+    private final ExecutorService writers = Executors.newSingleThreadExecutor();
+    private final CountDownLatch isReading = new CountDownLatch(1);
+
+    @AfterEach
+    void shutDown() {
+        isReading.countDown();
+        writers.shutdownNow();
+    }
+
+    @Test
+    void writesQueuedDataInOrder() throws IOException {
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        QueuedOutputStream out = new QueuedOutputStream(client, writers, HIGH_WATER_MARK, MAX_QUEUED_BYTES,
+                WRITE_TIMEOUT);
+        byte[] data = new byte[4 * HIGH_WATER_MARK];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        out.write(data, 0, HIGH_WATER_MARK);
+        out.write(data, HIGH_WATER_MARK, data.length - HIGH_WATER_MARK);
+        out.close();
+        assertArrayEquals(data, client.toByteArray());
+    }
+
+    @Test
+    void failsWritesOfAClientThatStopsReading() throws IOException {
+        OutputStream stalledClient = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    isReading.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+        QueuedOutputStream out = new QueuedOutputStream(stalledClient, writers, HIGH_WATER_MARK, MAX_QUEUED_BYTES,
+                WRITE_TIMEOUT);
+
+        long start = System.nanoTime();
+        assertThrows(IOException.class, () -> out.write(new byte[2 * HIGH_WATER_MARK]));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT));
+        assertThrows(IOException.class, () -> out.write(new byte[1]));
+        assertThrows(IOException.class, () -> out.offer(new byte[1], 0, 1));
+        assertThrows(IOException.class, out::close);
+    }
+}
@@ -0,0 +1,128 @@
+package com.segc.services;
+
+import com.segc.Configuration;
+import com.segc.TestKeyStore;
+import com.segc.exception.DataIntegrityException;
+import com.segc.exception.DuplicateElementException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.PBEParameterSpec;
+import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs in the working directory of the tests, where the paths of {@code config.properties} are resolved.
+ *
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+class AuthenticationServiceTest {
+    private static final Configuration config = Configuration.getInstance();
+    private static final char[] PASSWORD = "serverpass".toCharArray();
+    private static CipherService cipherService;
+
+    @BeforeAll
+    static void setUp(@TempDir Path keyDir) throws IOException, InterruptedException {
+        TestKeyStore.install(keyDir);
+        cipherService = CipherService.fromConfig(TestKeyStore.ALIAS, config);
+    }
+
+    @BeforeEach
+    void deleteCredentials() throws IOException {
+        for (String key : List.of("userCredentials", "userCredentialsParameters", "userCredentialsLog")) {
+            Files.deleteIfExists(Path.of(config.getValue(key)));
+        }
+        Path certificatesDir = Path.of(config.getValue("userCertificatesDir"));
+        if (Files.isDirectory(certificatesDir)) {
+            try (Stream<Path> paths = Files.walk(certificatesDir)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    @Test
+    void keepsRegisteredUsersAcrossRestarts() {
+        AuthenticationService service = new AuthenticationService(PASSWORD, cipherService);
+        assertFalse(service.isRegisteredUser("ana"));
+        service.registerUser("ana", cipherService.getCertificate());
+        assertThrows(DuplicateElementException.class,
+                () -> service.registerUser("ana", cipherService.getCertificate()));
+
+        AuthenticationService restarted = new AuthenticationService(PASSWORD, cipherService);
+        assertTrue(restarted.isRegisteredUser("ana"));
+        assertEquals(cipherService.getCertificate(), restarted.getCertificate("ana"));
+    }
+
+    @Test
+    void rejectsUnreadableCertificate() throws IOException {
+        AuthenticationService service = new AuthenticationService(PASSWORD, cipherService);
+        service.registerUser("ana", cipherService.getCertificate());
+        try (Stream<Path> paths = Files.list(Path.of(config.getValue("userCertificatesDir")))) {
+            for (Path path : paths.toList()) {
+                Files.write(path, "not a certificate".getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        AuthenticationService restarted = new AuthenticationService(PASSWORD, cipherService);
+        assertThrows(DataIntegrityException.class, () -> restarted.getCertificate("ana"));
+        assertThrows(DataIntegrityException.class, () -> restarted.getPublicKey("ana"));
+    }
+
+    @Test
+    void migratesCredentialsEncryptedAsAWhole() throws IOException, GeneralSecurityException {
+        new AuthenticationService(PASSWORD, cipherService); // creates the credential parameters
+        Path log = Path.of(config.getValue("userCredentialsLog"));
+        Files.delete(log);
+        Path legacyCredentials = Path.of(config.getValue("userCredentials"));
+        writeLegacyCredentials(legacyCredentials, "ana:server_data/certs/ana.cer\njoao:server_data/certs/joao.cer\n");
+
+        AuthenticationService service = new AuthenticationService(PASSWORD, cipherService);
+        assertTrue(service.isRegisteredUser("ana"));
+        assertTrue(service.isRegisteredUser("joao"));
+        assertFalse(Files.exists(legacyCredentials));
+        assertTrue(Files.exists(log));
+
+        AuthenticationService restarted = new AuthenticationService(PASSWORD, cipherService);
+        assertTrue(restarted.isRegisteredUser("ana"));
+        assertTrue(restarted.isRegisteredUser("joao"));
+        assertFalse(restarted.isRegisteredUser("maria"));
+    }
+
+    /**
+     * Encrypts credentials as the server did before the credential log, with the key derived from the password and
+     * the stored credential parameters.
+     */
+    private static void writeLegacyCredentials(Path path, String credentials)
+            throws IOException, GeneralSecurityException {
+        List<String> lines = Files.readAllLines(Path.of(config.getValue("userCredentialsParameters")));
+        Base64.Decoder decoder = Base64.getUrlDecoder();
+        PBEParameterSpec spec = new PBEParameterSpec(decoder.decode(lines.get(1)),
+                Integer.parseInt(lines.get(0)),
+                new IvParameterSpec(decoder.decode(lines.get(2))));
+        SecretKeyFactory factory = SecretKeyFactory.getInstance(config.getValue("userCredentialsPBEAlgorithm"));
+        SecretKey key = factory.generateSecret(new PBEKeySpec(PASSWORD));
+        cipherService.encrypt(new ByteArrayInputStream(credentials.getBytes(StandardCharsets.UTF_8)),
+                new FileOutputStream(path.toFile()), key, spec);
+    }
+}
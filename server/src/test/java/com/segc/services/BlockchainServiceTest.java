@@ -0,0 +1,150 @@
+package com.segc.services;
+
+import com.segc.Configuration;
+import com.segc.TestKeyStore;
+import com.segc.exception.DataIntegrityException;
+import com.segc.transaction.SignedTransaction;
+import com.segc.transaction.Transaction;
+import com.segc.transaction.TransactionPage;
+import com.segc.transaction.WineTransaction;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+class BlockchainServiceTest {
+    private static CipherService cipherService;
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void setUp(@TempDir Path keyDir) throws IOException, InterruptedException {
+        TestKeyStore.install(keyDir);
+        cipherService = CipherService.fromConfig(TestKeyStore.ALIAS, Configuration.getInstance());
+    }
+
+    @Test
+    void reloadsTransactionsFromCheckpoint() {
+        Path chain = dir.resolve("chain");
+        addTransactions(open(chain), "vinho", 16);
+        open(chain); // verifies every block and checkpoints the last one
+        assertTrue(Files.exists(chain.resolve(BlockchainService.CHECKPOINT_FILENAME)));
+
+        List<SignedTransaction> transactions = open(chain).getTransactions();
+        assertEquals(16, transactions.size());
+        for (int i = 0; i < transactions.size(); i++) {
+            assertEquals("vinho" + i, transactions.get(i).getTransaction().getItemId());
+        }
+    }
+
+    @Test
+    void rejectsBlockAfterCheckpointThatDoesNotLinkToIt() throws IOException {
+        Path chain = dir.resolve("chain");
+        Path otherChain = dir.resolve("other");
+        addTransactions(open(chain), "vinho", 11);
+        addTransactions(open(chain), "vinho", 5); // checkpoints block 2 when opened, then seals block 3
+        addTransactions(open(otherChain), "outro", 16);
+
+        // block 3 and the partial block 4 of the other chain are signed by the same key and link to each other,
+        // so only the link from the checkpoint to block 3 is broken
+        copyBlock(otherChain, chain, 3, BlockchainService.EXTENSION);
+        copyBlock(otherChain, chain, 4, BlockchainService.PART_EXTENSION);
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> open(chain));
+        assertInstanceOf(DataIntegrityException.class, e.getCause());
+    }
+
+    @Test
+    void verifiesEveryBlockWhenCheckpointDoesNotMatch() throws IOException {
+        Path chain = dir.resolve("chain");
+        Path otherChain = dir.resolve("other");
+        addTransactions(open(chain), "vinho", 11);
+        addTransactions(open(chain), "vinho", 5);
+        addTransactions(open(otherChain), "outro", 11);
+
+        copyBlock(otherChain, chain, 2, BlockchainService.EXTENSION); // the block of the checkpoint
+
+        RuntimeException e = assertThrows(RuntimeException.class, () -> open(chain));
+        assertInstanceOf(DataIntegrityException.class, e.getCause());
+    }
+
+    @Test
+    void pagesThroughEveryTransactionWithResumeTokens() {
+        BlockchainService blockchain = open(dir.resolve("chain"));
+        addTransactions(blockchain, "vinho", 13); // two signed blocks and a partial one
+
+        List<String> wineNames = new ArrayList<>();
+        String resumeToken = null;
+        TransactionPage page;
+        do {
+            page = blockchain.getTransactions(resumeToken, 4);
+            assertTrue(page.getTransactions().size() <= 4);
+            page.getTransactions().forEach(t -> wineNames.add(t.getTransaction().getItemId()));
+            assertEquals(13 - wineNames.size(), page.getRemaining());
+            resumeToken = page.getResumeToken();
+        } while (page.getRemaining() > 0);
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 13; i++) {
+            expected.add("vinho" + i);
+        }
+        assertEquals(expected, wineNames);
+    }
+
+    @Test
+    void resumesAfterTheBlockchainGrows() {
+        BlockchainService blockchain = open(dir.resolve("chain"));
+        addTransactions(blockchain, "vinho", 5);
+        TransactionPage page = blockchain.getTransactions(null, 10);
+        assertEquals(5, page.getTransactions().size());
+        assertEquals(0, page.getRemaining());
+
+        addTransactions(blockchain, "vinho", 3); // seals the block the token points into
+        page = blockchain.getTransactions(page.getResumeToken(), 10);
+        assertEquals(3, page.getTransactions().size());
+        assertEquals("vinho5", page.getTransactions().get(0).getTransaction().getItemId());
+        assertEquals(0, page.getRemaining());
+    }
+
+    @Test
+    void rejectsInvalidResumeTokens() {
+        BlockchainService blockchain = open(dir.resolve("chain"));
+        addTransactions(blockchain, "vinho", 7);
+        for (String token : new String[]{"x", "1", "1:2:3", "0:0", "3:0", "1:6", "2:-1"}) {
+            assertThrows(IllegalArgumentException.class, () -> blockchain.getTransactions(token, 10), token);
+        }
+        assertEquals(2, blockchain.getTransactions("1:5", 10).getTransactions().size());
+    }
+
+    private static BlockchainService open(Path chain) {
+        DataPersistenceService dps = new DataPersistenceService("SHA-256", 4, DataPersistenceService.FsyncPolicy.NONE);
+        return new BlockchainService(chain.toString(), cipherService, dps);
+    }
+
+    private static void addTransactions(BlockchainService blockchain, String wineName, int count) {
+        int first = blockchain.getTransactions().size();
+        for (int i = first; i < first + count; i++) {
+            Transaction t = new WineTransaction(wineName + i, "ana", 1, 10, Transaction.Type.BUY);
+            blockchain.addTransaction(new SignedTransaction(cipherService.sign(t)));
+        }
+    }
+
+    private static void copyBlock(Path from, Path to, long blockId, String extension) throws IOException {
+        String fileName = BlockchainService.PREFIX + BlockchainService.SUFFIX_FORMATTER.format(blockId) + extension;
+        Files.copy(from.resolve(fileName), to.resolve(fileName), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
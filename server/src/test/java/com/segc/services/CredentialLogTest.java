@@ -0,0 +1,128 @@
+package com.segc.services;
+
+import com.segc.exception.DataIntegrityException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+class CredentialLogTest {
+    private static final SecretKey KEY = new SecretKeySpec(new byte[32], "AES");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysAppendedCredentials() throws IOException {
+        Path path = dir.resolve("users.log");
+        try (CredentialLog log = new CredentialLog(path, KEY)) {
+            assertFalse(log.exists());
+            assertTrue(log.replay().isEmpty());
+            log.append("ana", "certs/ana.cer");
+            log.append("joao", "certs/joao.cer");
+        }
+        try (CredentialLog log = new CredentialLog(path, KEY)) {
+            assertEquals(Map.of("ana", "certs/ana.cer", "joao", "certs/joao.cer"), log.replay());
+            assertEquals(2, log.getRecordCount());
+        }
+    }
+
+    @Test
+    void discardsIncompleteRecordAtTheEnd() throws IOException {
+        Path path = dir.resolve("users.log");
+        try (CredentialLog log = new CredentialLog(path, KEY)) {
+            log.replay();
+            log.append("ana", "certs/ana.cer");
+        }
+        long validSize = Files.size(path);
+        try (CredentialLog log = new CredentialLog(path, KEY)) {
+            log.replay();
+            log.append("joao", "certs/joao.cer");
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(path) - 5); // the append was cut short
+        }
+
+        try (CredentialLog log = new CredentialLog(path, KEY)) {
+            assertEquals(Map.of("ana", "certs/ana.cer"), log.replay());
+            assertEquals(validSize, Files.size(path));
+            log.append("maria", "certs/maria.cer");
+        }
+        try (CredentialLog log = new CredentialLog(path, KEY)) {
+            assertEquals(Map.of("ana", "certs/ana.cer", "maria", "certs/maria.cer"), log.replay());
+        }
+    }
+
+    @Test
+    void rejectsTamperedRecords() throws IOException {
+        Path path = dir.resolve("users.log");
+        try (CredentialLog log = new CredentialLog(path, KEY)) {
+            log.replay();
+            log.append("ana", "certs/ana.cer");
+        }
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(path, bytes);
+
+        try (CredentialLog log = new CredentialLog(path, KEY)) {
+            assertThrows(DataIntegrityException.class, log::replay);
+        }
+    }
+
+    @Test
+    void rejectsReorderedRecords() throws IOException {
+        Path path = dir.resolve("users.log");
+        long headerSize;
+        long firstRecordEnd;
+        try (CredentialLog log = new CredentialLog(path, KEY)) {
+            log.replay();
+            headerSize = Files.size(path);
+            log.append("ana", "certs/a.cer"); // both records have the same size
+            firstRecordEnd = Files.size(path);
+            log.append("rui", "certs/r.cer");
+        }
+        byte[] bytes = Files.readAllBytes(path);
+        int recordSize = (int) (firstRecordEnd - headerSize);
+        byte[] swapped = bytes.clone();
+        System.arraycopy(bytes, (int) firstRecordEnd, swapped, (int) headerSize, recordSize);
+        System.arraycopy(bytes, (int) headerSize, swapped, (int) firstRecordEnd, recordSize);
+        Files.write(path, swapped);
+
+        try (CredentialLog log = new CredentialLog(path, KEY)) {
+            assertThrows(DataIntegrityException.class, log::replay);
+        }
+    }
+
+    @Test
+    void compactsToOneRecordPerUser() throws IOException {
+        Path path = dir.resolve("users.log");
+        Map<String, String> credentials = new LinkedHashMap<>();
+        credentials.put("ana", "certs/ana.cer");
+        credentials.put("joao", "certs/joao.cer");
+        try (CredentialLog log = new CredentialLog(path, KEY)) {
+            log.replay();
+            log.compact(credentials);
+            assertEquals(2, log.getRecordCount());
+            log.append("maria", "certs/maria.cer");
+        }
+        credentials.put("maria", "certs/maria.cer");
+        try (CredentialLog log = new CredentialLog(path, KEY)) {
+            assertEquals(credentials, log.replay());
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.segc.services;
+
+import com.segc.exception.DataIntegrityException;
+import com.segc.services.DataPersistenceService.FsyncPolicy;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author fc54685 Francisco Correia
+ * @author fc55955 Alexandre Fonseca
+ * @author fc56272 Filipe Egipto
+ */
+class WriteAheadLogTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysCommittedRecordsInOrder() throws IOException {
+        Path path = dir.resolve("test.wal");
+        try (WriteAheadLog<String> log = open(path, new ArrayList<>())) {
+            log.append("a");
+            log.append("b");
+            log.commit(log.append("c"));
+        }
+        List<String> records = new ArrayList<>();
+        try (WriteAheadLog<String> log = open(path, records)) {
+            assertEquals(List.of("1:a", "2:b", "3:c"), records);
+            assertEquals(3, log.getRecordCount());
+        }
+    }
+
+    @Test
+    void discardsIncompleteRecordAtTheEnd() throws IOException {
+        Path path = dir.resolve("test.wal");
+        try (WriteAheadLog<String> log = open(path, new ArrayList<>())) {
+            log.append("a");
+            log.commit(log.append("b"));
+        }
+        long validSize = Files.size(path);
+        try (WriteAheadLog<String> log = open(path, new ArrayList<>())) {
+            log.commit(log.append("c"));
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(path) - 3); // the last group was only partly written
+        }
+
+        List<String> records = new ArrayList<>();
+        try (WriteAheadLog<String> log = open(path, records)) {
+            assertEquals(List.of("1:a", "2:b"), records);
+            assertEquals(validSize, Files.size(path));
+            log.commit(log.append("d"));
+        }
+        records.clear();
+        try (WriteAheadLog<String> log = open(path, records)) {
+            assertEquals(List.of("1:a", "2:b", "3:d"), records);
+        }
+    }
+
+    @Test
+    void discardsCorruptedLastRecord() throws IOException {
+        Path path = dir.resolve("test.wal");
+        try (WriteAheadLog<String> log = open(path, new ArrayList<>())) {
+            log.append("a");
+            log.commit(log.append("b"));
+        }
+        long validSize = Files.size(path);
+        try (WriteAheadLog<String> log = open(path, new ArrayList<>())) {
+            log.commit(log.append("c"));
+        }
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(path, bytes);
+
+        List<String> records = new ArrayList<>();
+        try (WriteAheadLog<String> log = open(path, records)) {
+            assertEquals(List.of("1:a", "2:b"), records);
+            assertEquals(validSize, Files.size(path));
+        }
+    }
+
+    @Test
+    void rejectsCorruptedRecordFollowedByOthers() throws IOException {
+        Path path = dir.resolve("test.wal");
+        try (WriteAheadLog<String> log = open(path, new ArrayList<>())) {
+            log.commit(log.append("a"));
+        }
+        long corruptedOffset = Files.size(path) + 8 + 4; // into the payload of the next record
+        try (WriteAheadLog<String> log = open(path, new ArrayList<>())) {
+            log.append("b");
+            log.commit(log.append("c"));
+        }
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[(int) corruptedOffset] ^= 1;
+        Files.write(path, bytes);
+
+        WriteAheadLog<String> log = new WriteAheadLog<>(path, String.class, FsyncPolicy.NONE);
+        assertThrows(DataIntegrityException.class, () -> log.replay((sequence, record) -> { }));
+        assertArrayEquals(bytes, Files.readAllBytes(path));
+    }
+
+    @Test
+    void checkpointKeepsRecordsAppendedAfterItBegan() throws IOException {
+        Path path = dir.resolve("test.wal");
+        List<String> written = new ArrayList<>();
+        try (WriteAheadLog<String> log = open(path, new ArrayList<>())) {
+            log.append("a");
+            log.append("b");
+            assertTrue(log.beginCheckpoint());
+            log.append("c");
+            log.completeCheckpoint(() -> {
+                assertFalse(log.beginCheckpoint());
+                log.commit(log.append("d"));
+                written.add("entities");
+            });
+            assertEquals(List.of("entities"), written);
+            assertEquals(2, log.getRecordCount());
+            log.commit(log.append("e"));
+        }
+        List<String> records = new ArrayList<>();
+        try (WriteAheadLog<String> log = open(path, records)) {
+            assertEquals(List.of("3:c", "4:d", "5:e"), records);
+            assertTrue(log.beginCheckpoint());
+        }
+    }
+
+    @Test
+    void keepsRecordsIfEntitiesCannotBeWritten() throws IOException {
+        Path path = dir.resolve("test.wal");
+        try (WriteAheadLog<String> log = open(path, new ArrayList<>())) {
+            log.append("a");
+            assertTrue(log.beginCheckpoint());
+            assertThrows(RuntimeException.class, () -> log.completeCheckpoint(() -> {
+                throw new RuntimeException("disk full");
+            }));
+            assertEquals(1, log.getRecordCount());
+            assertTrue(log.beginCheckpoint());
+        }
+        List<String> records = new ArrayList<>();
+        try (WriteAheadLog<String> ignored = open(path, records)) {
+            assertEquals(List.of("1:a"), records);
+        }
+    }
+
+    @Test
+    void rejectsMutationsOnceAGroupCannotBeWritten() throws IOException {
+        Path path = dir.resolve("test.wal");
+        try (WriteAheadLog<String> log = open(path, new ArrayList<>())) {
+            log.ensureWritable();
+            long sequence = log.append("a");
+            log.close(); // writing the group fails
+            assertThrows(RuntimeException.class, () -> log.commit(sequence));
+            assertThrows(IllegalStateException.class, log::ensureWritable);
+            assertThrows(IllegalStateException.class, () -> log.commit(sequence));
+        }
+    }
+
+    private static WriteAheadLog<String> open(Path path, List<String> records) {
+        WriteAheadLog<String> log = new WriteAheadLog<>(path, String.class, FsyncPolicy.NONE);
+        log.replay((sequence, record) -> records.add(sequence + ":" + record));
+        return log;
+    }
+}